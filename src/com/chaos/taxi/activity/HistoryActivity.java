@@ -3,8 +3,12 @@ package com.chaos.taxi.activity;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 
 import com.chaos.taxi.R;
+import com.chaos.taxi.util.GeocodePipeline;
+import com.chaos.taxi.util.RequestCallback;
+import com.chaos.taxi.util.RequestFuture;
 import com.chaos.taxi.util.RequestProcessor;
 import com.chaos.taxi.util.TaxiHistorySqlHelper;
 import com.chaos.taxi.util.TaxiHistorySqlHelper.HistoryItem;
@@ -29,6 +33,7 @@ public class HistoryActivity extends ListActivity {
 	private static final String TAG = "HistoryActivity";
 	private ArrayList<HashMap<String, Object>> mHistoryItems = new ArrayList<HashMap<String, Object>>();
 	private ArrayList<Long> mHistoryItemIds = new ArrayList<Long>();
+	private ArrayList<HistoryItem> mHistoryItemList = new ArrayList<HistoryItem>();
 	SimpleAdapter mSimpleAdapter = null;
 
 	View mFooterView = null;
@@ -37,6 +42,18 @@ public class HistoryActivity extends ListActivity {
 	ProgressDialog mProgressDialog = null;
 	TaxiHistorySqlHelper mTaxiHistorySqlHelper = null;
 	long mTailHistoryId = 0;
+	RequestFuture<ArrayList<HistoryItem>> mInitFuture = null;
+
+	RequestCallback<HistoryItem> mAddressCallback = new RequestCallback<HistoryItem>() {
+		public void onResult(HistoryItem item) {
+			int position = mHistoryItemIds.indexOf(item.mId);
+			if (position >= 0 && mSimpleAdapter != null) {
+				mHistoryItems.get(position).put(ITEM_TEXT,
+						item.getOriginText());
+				mSimpleAdapter.notifyDataSetChanged();
+			}
+		}
+	};
 
 	static final int SHOW_HISTORY_COUNT = 10;
 
@@ -124,11 +141,20 @@ public class HistoryActivity extends ListActivity {
 			mTaxiHistorySqlHelper = new TaxiHistorySqlHelper(this);
 		}
 		mTaxiHistorySqlHelper.open();
+		if (mInitFuture != null && mInitFuture.isCancelled()) {
+			initListView();
+		}
+		GeocodePipeline.resolve(this, mTaxiHistorySqlHelper,
+				mHistoryItemList, mAddressCallback);
 	}
 
 	@Override
 	public void onPause() {
 		super.onPause();
+		// the queries use the database, so stop them before it is closed
+		RequestProcessor.cancelRequests(this);
+		GeocodePipeline.cancel(this);
+		resetFooterView();
 		if (mTaxiHistorySqlHelper != null) {
 			mTaxiHistorySqlHelper.close();
 		}
@@ -148,49 +174,63 @@ public class HistoryActivity extends ListActivity {
 
 	protected void initListView() {
 		setContentView(R.layout.history_refreshing);
-		new Thread(new Runnable() {
-			public void run() {
-				// query server for the new history items
-				ArrayList<HistoryItem> items = RequestProcessor
-						.sendQueryHistoryRequest(0, System.currentTimeMillis(),
-								SHOW_HISTORY_COUNT);
-				saveHistoryItems(items);
-
-				// in case we cannot connect to server
-				if (items == null) {
-					// get the latest local history item
-					HistoryItem tailHistoryItem = mTaxiHistorySqlHelper
-							.queryMaxIdHistory();
-					if (tailHistoryItem != null) {
-						items = mTaxiHistorySqlHelper.batchQueryHistory(
-								tailHistoryItem.mId, SHOW_HISTORY_COUNT);
-					}
-				}
+		mInitFuture = RequestProcessor.submit(this,
+				new Callable<ArrayList<HistoryItem>>() {
+					public ArrayList<HistoryItem> call() {
+						// query server for the new history items
+						ArrayList<HistoryItem> items = RequestProcessor
+								.sendQueryHistoryRequest(0,
+										System.currentTimeMillis(),
+										SHOW_HISTORY_COUNT);
+						saveHistoryItems(items);
 
-				if (items != null) {
-					for (int i = 0; i < items.size(); ++i) {
-						HashMap<String, Object> map = new HashMap<String, Object>();
-						map.put(ITEM_TITLE, items.get(i).mCarNumber);
-						map.put(ITEM_TEXT, items.get(i).mOrigin);
-						mHistoryItems.add(map);
-						mHistoryItemIds.add(items.get(i).mId);
+						// in case we cannot connect to server
+						if (items == null) {
+							// get the latest local history item
+							HistoryItem tailHistoryItem = mTaxiHistorySqlHelper
+									.queryMaxIdHistory();
+							if (tailHistoryItem != null) {
+								items = mTaxiHistorySqlHelper
+										.batchQueryHistory(tailHistoryItem.mId,
+												SHOW_HISTORY_COUNT);
+							}
+						}
+						return items;
 					}
+				}, new RequestCallback<ArrayList<HistoryItem>>() {
+					public void onResult(ArrayList<HistoryItem> items) {
+						if (items != null) {
+							addHistoryItems(items);
+							if (items.size() >= SHOW_HISTORY_COUNT) {
+								addFooterButton();
+							}
+						}
 
-					if (items.size() >= SHOW_HISTORY_COUNT) {
-						addFooterButton();
+						mSimpleAdapter = new SimpleAdapter(
+								HistoryActivity.this, mHistoryItems,
+								R.layout.history, new String[] { ITEM_TITLE,
+										ITEM_TEXT }, new int[] {
+										R.id.ItemTitle, R.id.ItemText });
+						HistoryActivity.this.setListAdapter(mSimpleAdapter);
 					}
-					if (items.size() > 0) {
-						mTailHistoryId = items.get(items.size() - 1).mId;
-					}
-				}
+				});
+	}
 
-				mSimpleAdapter = new SimpleAdapter(HistoryActivity.this,
-						mHistoryItems, R.layout.history, new String[] {
-								ITEM_TITLE, ITEM_TEXT }, new int[] {
-								R.id.ItemTitle, R.id.ItemText });
-				mHandler.sendEmptyMessage(SET_LIST_ADAPTER);
-			}
-		}).start();
+	private void addHistoryItems(ArrayList<HistoryItem> items) {
+		for (int i = 0; i < items.size(); ++i) {
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			map.put(ITEM_TITLE, items.get(i).mCarNumber);
+			map.put(ITEM_TEXT, items.get(i).getOriginText());
+			mHistoryItems.add(map);
+			mHistoryItemIds.add(items.get(i).mId);
+			mHistoryItemList.add(items.get(i));
+		}
+		if (items.size() > 0) {
+			mTailHistoryId = items.get(items.size() - 1).mId;
+		}
+		// shown with coordinates, the names come in later
+		GeocodePipeline.resolve(this, mTaxiHistorySqlHelper, items,
+				mAddressCallback);
 	}
 
 	private void initFooterView() {
@@ -207,75 +247,77 @@ public class HistoryActivity extends ListActivity {
 		mFooterButton.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
 				Log.d(TAG, "mFooterButton onClick.");
-				new Thread(new Runnable() {
-					public void run() {
-						mHandler.sendEmptyMessage(SET_FOOTER_BUTTON_INVISIBLE);
-						mHandler.sendEmptyMessage(SET_FOOTER_BAR_VISIBLE);
-
-						// first check the local database
-						ArrayList<HistoryItem> items = mTaxiHistorySqlHelper
-								.batchQueryHistory(mTailHistoryId - 1,
-										SHOW_HISTORY_COUNT);
-						int countNeedToQuery = SHOW_HISTORY_COUNT;
-						if (items != null && items.size() > 0) {
-							for (int i = 0; i < items.size() - 1; ++i) {
-								if (items.get(i).mNextId == items.get(i + 1).mId) {
-									--countNeedToQuery;
+				mFooterButton.setVisibility(View.GONE);
+				mFooterProgressBar.setVisibility(View.VISIBLE);
+				final long tailHistoryId = mTailHistoryId;
+				RequestProcessor.submit(HistoryActivity.this,
+						new Callable<ArrayList<HistoryItem>>() {
+							public ArrayList<HistoryItem> call() {
+								return queryMoreHistory(tailHistoryId);
+							}
+						}, new RequestCallback<ArrayList<HistoryItem>>() {
+							public void onResult(ArrayList<HistoryItem> items) {
+								// add the history to view
+								if (items == null || items.size() == 0) {
+									mHandler.sendMessage(mHandler
+											.obtainMessage(SHOW_TOAST_TEXT,
+													"No More History."));
 								} else {
-									break;
+									addHistoryItems(items);
+									mSimpleAdapter.notifyDataSetChanged();
 								}
-
+								resetFooterView();
 							}
-						}
+						});
+			}
+		});
+	}
 
-						// if history not enough, query the server
-						if (countNeedToQuery > 0) {
-							// query from server
-							HistoryItem tailHistoryItem = mTaxiHistorySqlHelper
-									.queryHistory(mTailHistoryId);
-							if (tailHistoryItem == null) {
-								Log.wtf(TAG,
-										"Should have a HistoryItem with mTailHistoryId: "
-												+ mTailHistoryId);
-								return;
-							}
-							ArrayList<HistoryItem> itemsFromServer = RequestProcessor
-									.sendQueryHistoryRequest(0,
-											tailHistoryItem.mStartTimeStamp,
-											countNeedToQuery);
-							saveHistoryItems(itemsFromServer);
-
-							if (items == null) {
-								items = itemsFromServer;
-							} else {
-								if (itemsFromServer != null) {
-									items.addAll(itemsFromServer);
-								}
-							}
-						}
+	private ArrayList<HistoryItem> queryMoreHistory(long tailHistoryId) {
+		// first check the local database
+		ArrayList<HistoryItem> items = mTaxiHistorySqlHelper.batchQueryHistory(
+				tailHistoryId - 1, SHOW_HISTORY_COUNT);
+		int countNeedToQuery = SHOW_HISTORY_COUNT;
+		if (items != null && items.size() > 0) {
+			for (int i = 0; i < items.size() - 1; ++i) {
+				if (items.get(i).mNextId == items.get(i + 1).mId) {
+					--countNeedToQuery;
+				} else {
+					break;
+				}
 
-						// add the history to view
-						if (items == null || items.size() == 0) {
-							mHandler.sendMessage(mHandler.obtainMessage(
-									SHOW_TOAST_TEXT, "No More History."));
-						} else {
-							for (int i = 0; i < items.size(); ++i) {
-								HashMap<String, Object> map = new HashMap<String, Object>();
-								map.put(ITEM_TITLE, items.get(i).mCarNumber);
-								map.put(ITEM_TEXT, items.get(i).mOrigin);
-								mHistoryItems.add(map);
-								mHistoryItemIds.add(items.get(i).mId);
-							}
-							mHandler.sendEmptyMessage(NOTIFY_DATASET_CHANGED);
-							mTailHistoryId = items.get(items.size() - 1).mId;
-						}
+			}
+		}
 
-						mHandler.sendEmptyMessage(SET_FOOTER_BUTTON_VISIBLE);
-						mHandler.sendEmptyMessage(SET_FOOTER_BAR_INVISIBLE);
-					}
-				}).start();
+		// if history not enough, query the server
+		if (countNeedToQuery > 0) {
+			// query from server
+			HistoryItem tailHistoryItem = mTaxiHistorySqlHelper
+					.queryHistory(tailHistoryId);
+			if (tailHistoryItem == null) {
+				Log.wtf(TAG, "Should have a HistoryItem with mTailHistoryId: "
+						+ tailHistoryId);
+				return items;
 			}
-		});
+			ArrayList<HistoryItem> itemsFromServer = RequestProcessor
+					.sendQueryHistoryRequest(0,
+							tailHistoryItem.mStartTimeStamp, countNeedToQuery);
+			saveHistoryItems(itemsFromServer);
+
+			if (items == null) {
+				items = itemsFromServer;
+			} else {
+				if (itemsFromServer != null) {
+					items.addAll(itemsFromServer);
+				}
+			}
+		}
+		return items;
+	}
+
+	private void resetFooterView() {
+		mFooterButton.setVisibility(View.VISIBLE);
+		mFooterProgressBar.setVisibility(View.GONE);
 	}
 
 	protected void saveHistoryItems(ArrayList<HistoryItem> items) {
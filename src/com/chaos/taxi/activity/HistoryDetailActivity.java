@@ -1,6 +1,10 @@
 package com.chaos.taxi.activity;
 
+import java.util.ArrayList;
+
 import com.chaos.taxi.R;
+import com.chaos.taxi.util.GeocodePipeline;
+import com.chaos.taxi.util.RequestCallback;
 import com.chaos.taxi.util.RequestProcessor;
 import com.chaos.taxi.util.TaxiHistorySqlHelper;
 import com.chaos.taxi.util.TaxiHistorySqlHelper.HistoryItem;
@@ -109,54 +113,32 @@ public class HistoryDetailActivity extends Activity {
 				});
 		mSubmitCommentButton.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
-				new Thread(new Runnable() {
-					public void run() {
-						double rating = (int) Math.floor(mPassengerRatingBar
-								.getRating());
-						if (mPassengerRatingBar.getRating() - rating > 0.5) {
-							rating += 0.5;
-						}
-						if (rating == 0) {
-							mHandler.sendMessage(mHandler.obtainMessage(
-									SHOW_TOAST_TEXT, "Must set the rating."));
-							return;
-						}
-						mHandler.sendEmptyMessage(PASSENGER_RATING_ON);
-						mHandler.sendEmptyMessage(EDIT_COMMENT_ET_ON);
-						mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_OFF);
-						mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_ON);
-
-						String comment = mAddCommentEditText.getText() == null ? null
-								: mAddCommentEditText.getText().toString();
-						if (RequestProcessor.sendSubmitCommentRequest(
-								mHistoryItem.mId, comment, rating)) {
-							mHandler.sendEmptyMessage(PASSENGER_RATING_OFF);
-							mHandler.sendEmptyMessage(EDIT_COMMENT_ET_OFF);
-							mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_OFF);
-							mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_OFF);
-
-							if (comment != null)
-								mPassengerCommentTV.setText(comment);
-							else
-								mPassengerCommentTV
-										.setText("Passenger left no comment.");
-
-							mHandler.sendEmptyMessage(COMMENT_TEXTVIEW_ON);
-
-							mHistoryItem.mPassengerEvaluation = rating;
-							mHistoryItem.mPassengerComment = comment;
-							mTaxiHistorySqlHelper.replaceHistory(mHistoryItem);
-						} else {
-							mHandler.sendEmptyMessage(PASSENGER_RATING_ON);
-							mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_ON);
-							mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_OFF);
-
-							mHandler.sendMessage(mHandler.obtainMessage(
-									SHOW_TOAST_TEXT,
-									"Submit comment fail. Please retry later."));
-						}
-					}
-				}).start();
+				double rating = (int) Math.floor(mPassengerRatingBar
+						.getRating());
+				if (mPassengerRatingBar.getRating() - rating > 0.5) {
+					rating += 0.5;
+				}
+				if (rating == 0) {
+					mHandler.sendMessage(mHandler.obtainMessage(
+							SHOW_TOAST_TEXT, "Must set the rating."));
+					return;
+				}
+				mHandler.sendEmptyMessage(PASSENGER_RATING_ON);
+				mHandler.sendEmptyMessage(EDIT_COMMENT_ET_ON);
+				mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_OFF);
+				mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_ON);
+
+				final String comment = mAddCommentEditText.getText() == null ? null
+						: mAddCommentEditText.getText().toString();
+				final double submitRating = rating;
+				RequestProcessor.submitCommentAsync(HistoryDetailActivity.this,
+						mHistoryItem.mId, comment, submitRating,
+						new RequestCallback<Boolean>() {
+							public void onResult(Boolean succeed) {
+								onSubmitCommentResult(succeed, comment,
+										submitRating);
+							}
+						});
 			}
 		});
 
@@ -165,21 +147,7 @@ public class HistoryDetailActivity extends Activity {
 				+ mHistoryItem.mPhoneNumber + ". DriverName is "
 				+ mHistoryItem.mNickName);
 
-		String locationStr = "From: "
-				+ (mHistoryItem.mOrigin == null ? "Latitude: "
-						+ mHistoryItem.mOriginLatitude + ", Longitude"
-						+ mHistoryItem.mOriginLongitude : mHistoryItem.mOrigin);
-		if (mHistoryItem.mDestination != null
-				|| (mHistoryItem.mDestinationLatitude != null
-						&& mHistoryItem.mDestinationLongitude != null
-						&& mHistoryItem.mDestinationLatitude != 0 && mHistoryItem.mDestinationLongitude != 0)) {
-			locationStr += " To: "
-					+ (mHistoryItem.mDestination == null ? "Latitude: "
-							+ mHistoryItem.mDestinationLatitude + ", Longitude"
-							+ mHistoryItem.mDestinationLongitude
-							: mHistoryItem.mDestination);
-		}
-		mLocationInfoTV.setText(locationStr);
+		showLocationInfo();
 
 		if (mHistoryItem.mDriverEvaluation != null) {
 			mDriverRatingBar.setRating((float) Math
@@ -217,6 +185,51 @@ public class HistoryDetailActivity extends Activity {
 		});
 	}
 
+	private void showLocationInfo() {
+		String locationStr = "From: " + mHistoryItem.getOriginText();
+		if (mHistoryItem.mDestination != null
+				|| (mHistoryItem.mDestinationLatitude != null
+						&& mHistoryItem.mDestinationLongitude != null
+						&& mHistoryItem.mDestinationLatitude != 0 && mHistoryItem.mDestinationLongitude != 0)) {
+			locationStr += " To: " + mHistoryItem.getDestinationText();
+		}
+		mLocationInfoTV.setText(locationStr);
+	}
+
+	// succeed is null if the server was not reached, the comment is kept
+	// and sent later, so it is shown but not saved until the server has it
+	private void onSubmitCommentResult(Boolean succeed, String comment,
+			double rating) {
+		if (succeed == null || succeed) {
+			if (succeed != null) {
+				mHistoryItem.mPassengerEvaluation = rating;
+				mHistoryItem.mPassengerComment = comment;
+				mTaxiHistorySqlHelper.replaceHistory(mHistoryItem);
+			} else {
+				mHandler.sendMessage(mHandler.obtainMessage(SHOW_TOAST_TEXT,
+						"Comment will be sent when the server is reachable."));
+			}
+			mHandler.sendEmptyMessage(PASSENGER_RATING_OFF);
+			mHandler.sendEmptyMessage(EDIT_COMMENT_ET_OFF);
+			mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_OFF);
+			mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_OFF);
+
+			if (comment != null)
+				mPassengerCommentTV.setText(comment);
+			else
+				mPassengerCommentTV.setText("Passenger left no comment.");
+
+			mHandler.sendEmptyMessage(COMMENT_TEXTVIEW_ON);
+		} else {
+			mHandler.sendEmptyMessage(PASSENGER_RATING_ON);
+			mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_ON);
+			mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_OFF);
+
+			mHandler.sendMessage(mHandler.obtainMessage(SHOW_TOAST_TEXT,
+					"Submit comment fail. Please retry later."));
+		}
+	}
+
 	@Override
 	public void onResume() {
 		super.onResume();
@@ -225,11 +238,28 @@ public class HistoryDetailActivity extends Activity {
 			mTaxiHistorySqlHelper = new TaxiHistorySqlHelper(this);
 		}
 		mTaxiHistorySqlHelper.open();
+		if (mHistoryItem != null) {
+			ArrayList<HistoryItem> items = new ArrayList<HistoryItem>();
+			items.add(mHistoryItem);
+			GeocodePipeline.resolve(this, mTaxiHistorySqlHelper, items,
+					new RequestCallback<HistoryItem>() {
+						public void onResult(HistoryItem item) {
+							showLocationInfo();
+						}
+					});
+		}
 	}
 
 	@Override
 	public void onPause() {
 		super.onPause();
+		// the submit result writes to the database, so stop hearing of it
+		// before it is closed, the comment itself is still sent
+		if (RequestProcessor.cancelRequests(this) > 0) {
+			mHandler.sendEmptyMessage(SUBMIT_COMMENT_BTN_ON);
+			mHandler.sendEmptyMessage(SUBMIT_COMMENT_BAR_OFF);
+		}
+		GeocodePipeline.cancel(this);
 		if (mTaxiHistorySqlHelper != null) {
 			mTaxiHistorySqlHelper.close();
 		}
@@ -1,6 +1,8 @@
 package com.chaos.taxi.activity;
 
 import com.chaos.taxi.R;
+import com.chaos.taxi.util.HttpConnectionManager;
+import com.chaos.taxi.util.RequestCallback;
 import com.chaos.taxi.util.RequestProcessor;
 
 import android.app.Activity;
@@ -67,43 +69,41 @@ public class LoginActivity extends Activity {
 			public void onClick(View v) {
 				Log.d(TAG, "login_btn onClick!");
 
-				new Thread(new Runnable() {
-					public void run() {
-						String phoneNumber = phoneNumber_et.getText()
-								.toString();
-						String password = password_et.getText().toString();
-						Log.d(TAG, "phoneNumber is " + phoneNumber
-								+ " password is " + password);
-						if (phoneNumber == null || phoneNumber.equals("")) {
-							mHandler.sendMessage(mHandler.obtainMessage(
-									SHOW_TOAST_TEXT,
-									"Should input the PhoneNumber"));
-						} else if (password == null || password.equals("")) {
-							mHandler.sendMessage(mHandler.obtainMessage(
-									SHOW_TOAST_TEXT,
-									"Should input the Password"));
-						} else {
-							mHandler.sendEmptyMessage(SHOW_PROGRESS_DIALOG);
-
-							String msg = RequestProcessor.login(phoneNumber,
-									password);
-							if (msg.equals(RequestProcessor.LOGIN_SUCCESS)) {
-								if (!TaxiActivity.sStarted) {
-									LoginActivity.this
-											.startActivity(new Intent(
-													LoginActivity.this,
-													TaxiActivity.class));
+				String phoneNumber = phoneNumber_et.getText().toString();
+				String password = password_et.getText().toString();
+				Log.d(TAG, "phoneNumber is " + phoneNumber + " password is "
+						+ password);
+				if (phoneNumber == null || phoneNumber.equals("")) {
+					mHandler.sendMessage(mHandler.obtainMessage(
+							SHOW_TOAST_TEXT, "Should input the PhoneNumber"));
+				} else if (password == null || password.equals("")) {
+					mHandler.sendMessage(mHandler.obtainMessage(
+							SHOW_TOAST_TEXT, "Should input the Password"));
+				} else {
+					mHandler.sendEmptyMessage(SHOW_PROGRESS_DIALOG);
+					RequestProcessor.loginAsync(LoginActivity.this,
+							phoneNumber, password,
+							new RequestCallback<String>() {
+								public void onResult(String msg) {
+									if (msg != null
+											&& msg.equals(RequestProcessor.LOGIN_SUCCESS)) {
+										if (!TaxiActivity.sStarted) {
+											LoginActivity.this
+													.startActivity(new Intent(
+															LoginActivity.this,
+															TaxiActivity.class));
+										}
+										mHandler.sendEmptyMessage(DISMISS_PROGRESS_DIALOG);
+										LoginActivity.this.finish();
+									} else {
+										mHandler.sendMessage(mHandler
+												.obtainMessage(SHOW_TOAST_TEXT,
+														"Login Fail: " + msg));
+										mHandler.sendEmptyMessage(DISMISS_PROGRESS_DIALOG);
+									}
 								}
-								mHandler.sendEmptyMessage(DISMISS_PROGRESS_DIALOG);
-								LoginActivity.this.finish();
-							} else {
-								mHandler.sendMessage(mHandler.obtainMessage(
-										SHOW_TOAST_TEXT, "Login Fail: " + msg));
-								mHandler.sendEmptyMessage(DISMISS_PROGRESS_DIALOG);
-							}
-						}
-					}
-				}).start();
+							});
+				}
 			}
 		});
 
@@ -132,5 +132,15 @@ public class LoginActivity extends Activity {
 	public void onResume() {
 		super.onResume();
 		RequestProcessor.initRequestProcessor(this);
+		// while the user types, so the login finds a connection
+		HttpConnectionManager.warmUp();
+	}
+
+	@Override
+	public void onStop() {
+		// the login is dropped with the activity
+		RequestProcessor.cancelRequests(this);
+		mHandler.sendEmptyMessage(DISMISS_PROGRESS_DIALOG);
+		super.onStop();
 	}
 }
@@ -1,6 +1,7 @@
 package com.chaos.taxi.activity;
 
 import com.chaos.taxi.R;
+import com.chaos.taxi.util.RequestCallback;
 import com.chaos.taxi.util.RequestProcessor;
 
 import android.app.Activity;
@@ -48,34 +49,48 @@ public class RegisterActivity extends Activity {
 					Toast.makeText(RegisterActivity.this,
 							"Password should not be null!", 4000).show();
 				} else {
-					String message = RequestProcessor.register(nickName,
-							phoneNumber, password);
-					if (message.equals(RequestProcessor.REGISTER_SUCCESS)) {
-						setResult(REGISTER_SUCCESS_CODE);
-						AlertDialog.Builder dialog = new AlertDialog.Builder(
-								RegisterActivity.this);
-						dialog.setTitle("Register Success!");
-						dialog.setMessage("Register Success!")
-								.setNegativeButton("OK",
-										new DialogInterface.OnClickListener() {
-											public void onClick(
-													DialogInterface dialog,
-													int which) {
-												RegisterActivity.this.finish();
-											}
-										});
-						dialog.show();
-					} else {
-						Toast.makeText(RegisterActivity.this, message, 5000);
-					}
+					mRegisterButton.setEnabled(false);
+					RequestProcessor.registerAsync(RegisterActivity.this,
+							nickName, phoneNumber, password,
+							new RequestCallback<String>() {
+								public void onResult(String message) {
+									mRegisterButton.setEnabled(true);
+									onRegisterResult(message);
+								}
+							});
 				}
 			}
 		});
 	}
 
+	private void onRegisterResult(String message) {
+		if (message != null && message.equals(RequestProcessor.REGISTER_SUCCESS)) {
+			setResult(REGISTER_SUCCESS_CODE);
+			AlertDialog.Builder dialog = new AlertDialog.Builder(
+					RegisterActivity.this);
+			dialog.setTitle("Register Success!");
+			dialog.setMessage("Register Success!").setNegativeButton("OK",
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							RegisterActivity.this.finish();
+						}
+					});
+			dialog.show();
+		} else {
+			Toast.makeText(RegisterActivity.this, message, 5000);
+		}
+	}
+
 	@Override
 	public void onResume() {
 		super.onResume();
 		RequestProcessor.initRequestProcessor(this);
 	}
+
+	@Override
+	public void onStop() {
+		RequestProcessor.cancelRequests(this);
+		mRegisterButton.setEnabled(true);
+		super.onStop();
+	}
 }
@@ -5,6 +5,8 @@ import org.json.JSONObject;
 
 import com.chaos.taxi.R;
 import com.chaos.taxi.map.TaxiMapView;
+import com.chaos.taxi.util.Geodesy;
+import com.chaos.taxi.util.NearbyTaxiCache;
 import com.chaos.taxi.util.RequestProcessor;
 import com.chaos.taxi.util.TaxiUtil;
 import com.google.android.maps.GeoPoint;
@@ -243,8 +245,8 @@ public class TaxiActivity extends MapActivity {
 			GeoPoint point = null;
 			JSONObject locationJson = driverJson.optJSONObject("location");
 			if (locationJson != null) {
-				int latitude = (int) (locationJson.optDouble("latitude", -1) * 1000000);
-				int longitude = (int) (locationJson.optDouble("longitude", -1) * 1000000);
+				int latitude = Geodesy.toE6(locationJson.optDouble("latitude", -1));
+				int longitude = Geodesy.toE6(locationJson.optDouble("longitude", -1));
 				if (latitude >= 0 && longitude >= 0) {
 					point = new GeoPoint(latitude, longitude);
 				}
@@ -264,6 +266,15 @@ public class TaxiActivity extends MapActivity {
 		}
 	}
 
+	@Override
+	public void onStop() {
+		// drop the find-taxi and prefetches in flight, their overlays are of
+		// no use now
+		RequestProcessor.cancelRequests(this);
+		NearbyTaxiCache.reset();
+		super.onStop();
+	}
+
 	@Override
 	public void onDestroy() {
 		sStarted = false;
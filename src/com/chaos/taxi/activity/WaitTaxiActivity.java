@@ -1,7 +1,11 @@
 package com.chaos.taxi.activity;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import com.chaos.taxi.R;
 import com.chaos.taxi.util.RequestProcessor;
+import com.chaos.taxi.util.TaxiExecutors;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -39,7 +43,7 @@ public class WaitTaxiActivity extends Activity {
 	Integer mLeftWaitTaxiTime = 0;
 	String mTaxiPhoneNumber = null;
 
-	// Thread mSetWaitTimeThread = null;
+	ScheduledFuture<?> mWaitFuture = null;
 
 	private void setLeftWaitTaxiTime(int val) {
 		synchronized (mLeftWaitTaxiTime) {
@@ -77,7 +81,7 @@ public class WaitTaxiActivity extends Activity {
 			}
 		});
 
-		new Thread(mTask).start();
+		startWaitTask();
 	}
 
 	class MyHandler extends Handler {
@@ -141,69 +145,70 @@ public class WaitTaxiActivity extends Activity {
 	@Override
 	public void onDestroy() {
 		Log.d(TAG, "onDestroy");
+		stopWaitTask();
 		super.onDestroy();
 	}
 
+	// runs once a second on the scheduler until the call is answered or the
+	// wait time is used up
 	Runnable mTask = new Runnable() {
 		public void run() {
-			Log.d(TAG, "enter wait taxi thread");
-			while (true) {
-				Message msg = mHandler.obtainMessage();
-				msg.what = SET_WAITTIME_TEXT;
-				mHandler.sendMessage(msg);
-
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			int status = RequestProcessor.getCallTaxiStatus(mRequestKey);
+			Intent retIntent = new Intent();
+			if (status == RequestProcessor.CALL_TAXI_STATUS_SUCCEED) {
+				Log.d(TAG, "status is CALL_TAXI_STATUS_SUCCEED!");
+				retIntent.putExtra(RET_CODE, SUCCEED_WAIT);
+			} else if (status == RequestProcessor.CALL_TAXI_STATUS_REJECTED) {
+				Log.d(TAG, "status is CALL_TAXI_STATUS_REJECTED!");
+				retIntent.putExtra(RET_CODE, REJECT_WAIT);
+			} else if (status == RequestProcessor.CALL_TAXI_STATUS_DRIVER_UNAVAILABLE) {
+				Log.d(TAG, "status is CALL_TAXI_DRIVER_UNAVAILABLE!");
+				retIntent.putExtra(RET_CODE, DRIVER_UNAVAILABLE);
+			} else if (status == RequestProcessor.CALL_TAXI_STATUS_SERVER_ERROR) {
+				Log.d(TAG, "status is CALL_TAXI_STATUS_SERVER_ERROR!");
+				retIntent.putExtra(RET_CODE, SERVER_ERROR);
+				retIntent.putExtra("TaxiPhoneNumber", mTaxiPhoneNumber);
+			} else if (status == RequestProcessor.CALL_TAXI_STATUS_CANCELED) {
+				Log.d(TAG, "status is CALL_TAXI_STATUS_CANCELED!");
+				retIntent.putExtra(RET_CODE, CANCEL_WAIT);
+			} else {
+				retIntent = null;
+			}
+			if (retIntent != null) {
+				stopWaitTask();
+				setResult(0, retIntent);
+				WaitTaxiActivity.this.finish();
+				return;
+			}
 
-				int status = RequestProcessor.getCallTaxiStatus(mRequestKey);
-				if (status == RequestProcessor.CALL_TAXI_STATUS_SUCCEED) {
-					Log.d(TAG, "status is CALL_TAXI_STATUS_SUCCEED!");
-					Intent retIntent = new Intent();
-					retIntent.putExtra(RET_CODE, SUCCEED_WAIT);
-					setResult(0, retIntent);
-					WaitTaxiActivity.this.finish();
-				} else if (status == RequestProcessor.CALL_TAXI_STATUS_REJECTED) {
-					Log.d(TAG, "status is CALL_TAXI_STATUS_REJECTED!");
-					Intent retIntent = new Intent();
-					retIntent.putExtra(RET_CODE, REJECT_WAIT);
-					setResult(0, retIntent);
-					WaitTaxiActivity.this.finish();
-				} else if (status == RequestProcessor.CALL_TAXI_STATUS_DRIVER_UNAVAILABLE) {
-					Log.d(TAG, "status is CALL_TAXI_DRIVER_UNAVAILABLE!");
-					Intent retIntent = new Intent();
-					retIntent.putExtra(RET_CODE, DRIVER_UNAVAILABLE);
-					setResult(0, retIntent);
-					WaitTaxiActivity.this.finish();
-				} else if (status == RequestProcessor.CALL_TAXI_STATUS_SERVER_ERROR) {
-					Log.d(TAG, "status is CALL_TAXI_STATUS_SERVER_ERROR!");
-					Intent retIntent = new Intent();
-					retIntent.putExtra(RET_CODE, SERVER_ERROR);
-					retIntent.putExtra("TaxiPhoneNumber", mTaxiPhoneNumber);
-					setResult(0, retIntent);
-					WaitTaxiActivity.this.finish();
-				} else if (status == RequestProcessor.CALL_TAXI_STATUS_CANCELED) {
-					Log.d(TAG, "status is CALL_TAXI_STATUS_CANCELED!");
-					Intent retIntent = new Intent();
-					retIntent.putExtra(RET_CODE, CANCEL_WAIT);
-					setResult(0, retIntent);
-					WaitTaxiActivity.this.finish();
-				}
+			decreaseSetLeftWaitTaxiTime();
+			if (0 >= getLeftWaitTaxiTime()) {
+				stopWaitTask();
+				mHandler.sendEmptyMessage(SET_RESEND_VIEW);
+			} else {
+				mHandler.sendEmptyMessage(SET_WAITTIME_TEXT);
+			}
+		}
+	};
 
-				decreaseSetLeftWaitTaxiTime();
-				if (0 == getLeftWaitTaxiTime()) {
-					msg = mHandler.obtainMessage();
-					msg.what = SET_RESEND_VIEW;
-					mHandler.sendMessage(msg);
+	private void startWaitTask() {
+		synchronized (mTask) {
+			if (mWaitFuture != null) {
+				mWaitFuture.cancel(false);
+			}
+			mWaitFuture = TaxiExecutors.scheduler().scheduleAtFixedRate(mTask,
+					1000, 1000, TimeUnit.MILLISECONDS);
+		}
+	}
 
-					break;
-				}
+	private void stopWaitTask() {
+		synchronized (mTask) {
+			if (mWaitFuture != null) {
+				mWaitFuture.cancel(false);
+				mWaitFuture = null;
 			}
-			Log.d(TAG, "leave wait taxi thread");
 		}
-	};
+	}
 
 	@Override
 	public void onBackPressed() {
@@ -0,0 +1,52 @@
+package com.chaos.taxi.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Reconciles the markers on the map with a new answer by key: unchanged
+// markers stay, changed ones are replaced, and only the difference goes to
+// the overlay. Knows nothing of the map, so it runs off the device too.
+public class OverlayReconciler {
+	public interface Adapter<I, P> {
+		public String getKey(P param);
+
+		public P getParam(I item);
+
+		// whether the item of param can stay for other, an overlay item
+		// cannot change its point
+		public boolean isSame(P param, P other);
+
+		public I create(P param);
+	}
+
+	// returns the items for params, in their order. addItems gets the items
+	// created, removeItems the current ones that are gone or changed
+	public static <I, P> ArrayList<I> reconcile(ArrayList<I> currentItems,
+			ArrayList<P> params, Adapter<I, P> adapter, ArrayList<I> addItems,
+			ArrayList<I> removeItems) {
+		HashMap<String, I> keyItems = new HashMap<String, I>(
+				currentItems.size() * 2);
+		for (int i = 0; i < currentItems.size(); ++i) {
+			I item = currentItems.get(i);
+			keyItems.put(adapter.getKey(adapter.getParam(item)), item);
+		}
+
+		ArrayList<I> items = new ArrayList<I>(params.size());
+		for (int i = 0; i < params.size(); ++i) {
+			P param = params.get(i);
+			I item = keyItems.remove(adapter.getKey(param));
+			if (item != null && adapter.isSame(adapter.getParam(item), param)) {
+				items.add(item);
+				continue;
+			}
+			if (item != null) {
+				removeItems.add(item);
+			}
+			item = adapter.create(param);
+			items.add(item);
+			addItems.add(item);
+		}
+		removeItems.addAll(keyItems.values());
+		return items;
+	}
+}
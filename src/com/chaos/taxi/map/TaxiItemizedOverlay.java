@@ -1,6 +1,7 @@
 package com.chaos.taxi.map;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
@@ -14,6 +15,12 @@ public class TaxiItemizedOverlay extends ItemizedOverlay<OverlayItem> {
 	private static final String TAG = "TaxiItemizedOverlay";
 	private Context mContext = null;
 	private ArrayList<MyOverlayItem> mOverlayItems = new ArrayList<MyOverlayItem>();
+	private Drawable[] mMarkers = new Drawable[MyOverlayItem.AROUND_OVERLAY_ITEM + 1];
+
+	private int mUpdateDepth = 0;
+	private boolean mDirty = false;
+	// removed in the current update, filtered out at commit
+	private IdentityHashMap<MyOverlayItem, Boolean> mRemovedItems = new IdentityHashMap<MyOverlayItem, Boolean>();
 
 	public TaxiItemizedOverlay(Drawable defaultMarker) {
 		super(boundCenterBottom(defaultMarker));
@@ -34,31 +41,90 @@ public class TaxiItemizedOverlay extends ItemizedOverlay<OverlayItem> {
 		return mOverlayItems.size();
 	}
 
+	// adds and removes between beginUpdate() and commit() are populated once
+	public void beginUpdate() {
+		++mUpdateDepth;
+	}
+
+	public void commit() {
+		if (mUpdateDepth == 0) {
+			Log.w(TAG, "commit without beginUpdate");
+			return;
+		}
+		if (--mUpdateDepth > 0 || !mDirty) {
+			return;
+		}
+		if (mRemovedItems.size() > 0) {
+			ArrayList<MyOverlayItem> items = new ArrayList<MyOverlayItem>(
+					mOverlayItems.size());
+			for (int i = 0; i < mOverlayItems.size(); ++i) {
+				if (!mRemovedItems.containsKey(mOverlayItems.get(i))) {
+					items.add(mOverlayItems.get(i));
+				}
+			}
+			mOverlayItems = items;
+			mRemovedItems.clear();
+			setLastFocusedIndex(-1);
+		}
+		mDirty = false;
+		populate();
+	}
+
 	public void addOverlayItem(MyOverlayItem item) {
-		switch (item.mType) {
-		case MyOverlayItem.USER_OVERLAY_ITEM:
-			item.setMarker(boundCenterBottom(mContext.getResources()
-					.getDrawable(R.drawable.my_location)));
-			break;
-		case MyOverlayItem.DRIVER_OVERLAY_ITEM:
-			item.setMarker(boundCenterBottom(mContext.getResources()
-					.getDrawable(R.drawable.my_car)));
-			break;
-		case MyOverlayItem.AROUND_OVERLAY_ITEM:
-			item.setMarker(boundCenterBottom(mContext.getResources()
-					.getDrawable(R.drawable.car)));
-			break;
+		item.setMarker(getMarker(item.mType));
+		// added back before its removal was committed, it is still listed
+		if (mRemovedItems.remove(item) != null) {
+			return;
 		}
 		mOverlayItems.add(item);
+		if (mUpdateDepth > 0) {
+			mDirty = true;
+			return;
+		}
 		populate();
 	}
 
 	public void removeOverlayItem(MyOverlayItem item) {
+		if (mUpdateDepth > 0) {
+			mRemovedItems.put(item, Boolean.TRUE);
+			mDirty = true;
+			return;
+		}
 		mOverlayItems.remove(item);
 		setLastFocusedIndex(-1);
 		populate();
 	}
 
+	public void updateOverlayItems(ArrayList<? extends MyOverlayItem> removeItems,
+			ArrayList<? extends MyOverlayItem> addItems) {
+		beginUpdate();
+		for (int i = 0; i < removeItems.size(); ++i) {
+			removeOverlayItem(removeItems.get(i));
+		}
+		for (int i = 0; i < addItems.size(); ++i) {
+			addOverlayItem(addItems.get(i));
+		}
+		commit();
+	}
+
+	// one bounded drawable per type, shared by all its items
+	private Drawable getMarker(int type) {
+		if (mMarkers[type] == null) {
+			int resId = R.drawable.car;
+			switch (type) {
+			case MyOverlayItem.USER_OVERLAY_ITEM:
+				resId = R.drawable.my_location;
+				break;
+			case MyOverlayItem.DRIVER_OVERLAY_ITEM:
+				resId = R.drawable.my_car;
+				break;
+			}
+			mMarkers[type] = boundCenterBottom(mContext.getResources()
+					.getDrawable(resId));
+		}
+		return mMarkers[type];
+	}
+
 	@Override
 	protected boolean onTap(int index) {
 		Log.d(TAG, "onTap: " + index);
@@ -2,8 +2,8 @@ package com.chaos.taxi.map;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.graphics.Point;
@@ -14,6 +14,8 @@ import android.view.MotionEvent;
 import com.chaos.taxi.R;
 import com.chaos.taxi.map.TaxiOverlayItem.TaxiOverlayItemParam;
 import com.chaos.taxi.map.UserOverlayItem.UserOverlayItemParam;
+import com.chaos.taxi.util.NearbyTaxiCache;
+import com.chaos.taxi.util.TaxiExecutors;
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapView;
 
@@ -27,7 +29,7 @@ public class TaxiMapView extends MapView {
 
 	private Context mContext = null;
 	private GeoPoint mLastMapCenter;
-	private Timer mLongpressTimer = new Timer();
+	private ScheduledFuture<?> mLongpressFuture = null;
 	private long mLastClickTime = 0;
 	private Point mLastClickPixPoint = null;
 
@@ -107,13 +109,13 @@ public class TaxiMapView extends MapView {
 
 		Log.d(TAG, "showUserOverlay: " + param.mPoint.getLatitudeE6() + " "
 				+ param.mPoint.getLongitudeE6());
+		mTaxiItemizedOverlay.beginUpdate();
 		if (mUserOverlayItem != null) {
 			mTaxiItemizedOverlay.removeOverlayItem(mUserOverlayItem);
 		}
 		mUserOverlayItem = new UserOverlayItem(mContext, param);
-		mUserOverlayItem.setMarker(mContext.getResources().getDrawable(
-				R.drawable.my_location));
 		mTaxiItemizedOverlay.addOverlayItem(mUserOverlayItem);
+		mTaxiItemizedOverlay.commit();
 		getController().animateTo(param.mPoint);
 		invalidate();
 	}
@@ -146,36 +148,78 @@ public class TaxiMapView extends MapView {
 		invalidate();
 	}
 
-	public void showAroundTaxiOverlay(TaxiOverlayItemParam[] params) {
-		for (int index = 0; index < params.length; ++index) {
-			if (params[index].mPoint == null) {
-				Log.wtf(TAG, "showAroundOverlay with empty point. "
-						+ params[index].mCarNumber);
-				continue;
+	// reconciles the around taxis with a new answer by phone number: unchanged
+	// markers stay, moved ones are replaced, and only the difference is added
+	// and removed, with a single populate()
+	public void updateAroundTaxiOverlay(ArrayList<TaxiOverlayItemParam> params) {
+		long start = System.currentTimeMillis();
+		ArrayList<TaxiOverlayItemParam> shownParams = new ArrayList<TaxiOverlayItemParam>(
+				params.size());
+		for (int i = 0; i < params.size(); ++i) {
+			TaxiOverlayItemParam param = params.get(i);
+			if (param.mPoint != null && !isMyCar(param)) {
+				shownParams.add(param);
 			}
-			TaxiOverlayItem item = new TaxiOverlayItem(mContext, params[index],
-					false);
-			if (mTaxiOverlayItem != null
-					&& item.mParam.mCarNumber
-							.equals(mTaxiOverlayItem.mParam.mCarNumber)) {
-				Log.d(TAG, item.mParam.mCarNumber + " is myCar.");
-				continue;
-			}
-			mAroundTaxiOverlayItem.add(item);
-			mTaxiItemizedOverlay.addOverlayItem(item);
 		}
-		invalidate();
+
+		ArrayList<TaxiOverlayItem> addItems = new ArrayList<TaxiOverlayItem>();
+		ArrayList<TaxiOverlayItem> removeItems = new ArrayList<TaxiOverlayItem>();
+		mAroundTaxiOverlayItem = OverlayReconciler.reconcile(
+				mAroundTaxiOverlayItem, shownParams, mAroundTaxiAdapter,
+				addItems, removeItems);
+		int kept = mAroundTaxiOverlayItem.size() - addItems.size();
+
+		mTaxiItemizedOverlay.updateOverlayItems(removeItems, addItems);
+		if (removeItems.size() > 0 || addItems.size() > 0) {
+			invalidate();
+		}
+		Log.d(TAG, "updateAroundTaxiOverlay: kept " + kept + " added "
+				+ addItems.size() + " removed " + removeItems.size() + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
 	}
 
 	public void removeAroundOverlay() {
-		Iterator<TaxiOverlayItem> iter = mAroundTaxiOverlayItem.iterator();
-		while (iter.hasNext()) {
-			mTaxiItemizedOverlay.removeOverlayItem(iter.next());
-		}
-		mAroundTaxiOverlayItem.clear();
+		mTaxiItemizedOverlay.updateOverlayItems(mAroundTaxiOverlayItem,
+				new ArrayList<TaxiOverlayItem>());
+		mAroundTaxiOverlayItem = new ArrayList<TaxiOverlayItem>();
 		invalidate();
 	}
 
+	private boolean isMyCar(TaxiOverlayItemParam param) {
+		return mTaxiOverlayItem != null
+				&& param.mCarNumber != null
+				&& param.mCarNumber.equals(mTaxiOverlayItem.mParam.mCarNumber);
+	}
+
+	private OverlayReconciler.Adapter<TaxiOverlayItem, TaxiOverlayItemParam> mAroundTaxiAdapter = new OverlayReconciler.Adapter<TaxiOverlayItem, TaxiOverlayItemParam>() {
+		public String getKey(TaxiOverlayItemParam param) {
+			return param.mPhoneNumber != null ? param.mPhoneNumber : "car:"
+					+ param.mCarNumber;
+		}
+
+		public TaxiOverlayItemParam getParam(TaxiOverlayItem item) {
+			return item.mParam;
+		}
+
+		public boolean isSame(TaxiOverlayItemParam param,
+				TaxiOverlayItemParam other) {
+			return param.mPoint.getLatitudeE6() == other.mPoint
+					.getLatitudeE6()
+					&& param.mPoint.getLongitudeE6() == other.mPoint
+							.getLongitudeE6()
+					&& isEqual(param.mCarNumber, other.mCarNumber)
+					&& isEqual(param.mNickName, other.mNickName);
+		}
+
+		public TaxiOverlayItem create(TaxiOverlayItemParam param) {
+			return new TaxiOverlayItem(mContext, param, false);
+		}
+	};
+
+	private static boolean isEqual(String str, String other) {
+		return str == null ? other == null : str.equals(other);
+	}
+
 	private void handleLongPress(GeoPoint lastPixPoint) {
 		// Log.d(TAG, "handle long press here!");
 	}
@@ -211,24 +255,45 @@ public class TaxiMapView extends MapView {
 						(int) event.getY());
 			}
 
-			mLongpressTimer = new Timer();
-			mLongpressTimer.schedule(new TimerTask() {
-				@Override
-				public void run() {
-					GeoPoint longpressLocation = getProjection().fromPixels(
-							(int) event.getX(), (int) event.getY());
-					handleLongPress(longpressLocation);
-				}
-			}, LONGPRESS_THRESHOLD);
+			// the event is recycled once dispatched
+			final int x = (int) event.getX();
+			final int y = (int) event.getY();
+			cancelLongpress();
+			mLongpressFuture = TaxiExecutors.scheduler().schedule(
+					new Runnable() {
+						public void run() {
+							GeoPoint longpressLocation = getProjection()
+									.fromPixels(x, y);
+							handleLongPress(longpressLocation);
+						}
+					}, LONGPRESS_THRESHOLD, TimeUnit.MILLISECONDS);
 
 			mLastMapCenter = getMapCenter();
 		} else if (event.getAction() == MotionEvent.ACTION_MOVE) {
 			if (!getMapCenter().equals(mLastMapCenter)) {
-				mLongpressTimer.cancel();
+				cancelLongpress();
 			}
 			mLastMapCenter = getMapCenter();
 		} else if (event.getAction() == MotionEvent.ACTION_UP) {
-			mLongpressTimer.cancel();
+			cancelLongpress();
+		}
+	}
+
+	private void cancelLongpress() {
+		if (mLongpressFuture != null) {
+			mLongpressFuture.cancel(false);
+			mLongpressFuture = null;
+		}
+	}
+
+	// runs with every frame of a pan or zoom
+	@Override
+	public void computeScroll() {
+		super.computeScroll();
+		// the queries belong to the activity, it cancels them when it stops
+		if (mContext != null) {
+			NearbyTaxiCache.onViewportChanged(mContext, getMapCenter(),
+					getZoomLevel());
 		}
 	}
 
@@ -16,6 +16,7 @@ public class TaxiOverlayItem extends MyOverlayItem {
 	private Context mContext = null;
 
 	public TaxiOverlayItemParam mParam;
+	private String mSnippet = null;
 
 	public static class TaxiOverlayItemParam extends MyOverlayItemParam
 			implements Parcelable {
@@ -65,16 +66,24 @@ public class TaxiOverlayItem extends MyOverlayItem {
 
 	public TaxiOverlayItem(Context context, TaxiOverlayItemParam param,
 			boolean isMyCar) {
-		super(param.mPoint, "Taxi", "CarNumber is " + param.mCarNumber
-				+ "\nPhoneNumber is " + param.mPhoneNumber + "\nDriverName is "
-				+ param.mNickName, (isMyCar ? MyOverlayItem.DRIVER_OVERLAY_ITEM
-				: MyOverlayItem.AROUND_OVERLAY_ITEM));
-		Log.d(TAG, "CarNumber is " + param.mCarNumber + "PhoneNumber is "
-				+ param.mPhoneNumber + "NickName is " + param.mNickName);
+		super(param.mPoint, "Taxi", null,
+				(isMyCar ? MyOverlayItem.DRIVER_OVERLAY_ITEM
+						: MyOverlayItem.AROUND_OVERLAY_ITEM));
 		mContext = context;
 		mParam = param;
 	}
 
+	// built when first shown, most around taxis never are
+	@Override
+	public String getSnippet() {
+		if (mSnippet == null) {
+			mSnippet = "CarNumber is " + mParam.mCarNumber
+					+ "\nPhoneNumber is " + mParam.mPhoneNumber
+					+ "\nDriverName is " + mParam.mNickName;
+		}
+		return mSnippet;
+	}
+
 	@Override
 	public TaxiOverlayItemParam getParam() {
 		return mParam;
@@ -4,6 +4,7 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.util.Log;
 
+import com.chaos.taxi.util.OfflineGeocoder;
 import com.google.android.maps.GeoPoint;
 
 public class UserOverlayItem extends MyOverlayItem {
@@ -35,7 +36,9 @@ public class UserOverlayItem extends MyOverlayItem {
 		Log.d(TAG, "onTap");
 		AlertDialog.Builder dialog = new AlertDialog.Builder(mContext);
 		dialog.setTitle("Me");
-		dialog.setMessage("I'm here!");
+		String address = OfflineGeocoder.lookup(
+				mParam.mPoint.getLatitudeE6(), mParam.mPoint.getLongitudeE6());
+		dialog.setMessage(address == null ? "I'm here!" : "I'm at " + address);
 		dialog.setNegativeButton("OK", null);
 		dialog.show();
 	}
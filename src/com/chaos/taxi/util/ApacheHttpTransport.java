@@ -0,0 +1,134 @@
+package com.chaos.taxi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.util.Log;
+
+public class ApacheHttpTransport implements HttpTransport {
+	private static final String TAG = "ApacheHttpTransport";
+
+	DefaultHttpClient mHttpClient;
+
+	public ApacheHttpTransport(DefaultHttpClient httpClient) {
+		mHttpClient = httpClient;
+	}
+
+	public HttpTransportResponse execute(HttpTransportRequest request)
+			throws IOException {
+		final HttpUriRequest httpUriRequest;
+		if (request.getMethod().equals(HttpTransportRequest.POST)) {
+			HttpPost httpPost = new HttpPost(request.getUrl());
+			if (request.getBody() != null) {
+				httpPost.setEntity(new ByteArrayEntity(request.getBody()));
+			}
+			httpUriRequest = httpPost;
+		} else if (request.getMethod().equals(HttpTransportRequest.HEAD)) {
+			httpUriRequest = new HttpHead(request.getUrl());
+		} else {
+			httpUriRequest = new HttpGet(request.getUrl());
+		}
+		Iterator<Entry<String, String>> iter = request.getHeaders().entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Entry<String, String> header = iter.next();
+			httpUriRequest.setHeader(header.getKey(), header.getValue());
+		}
+
+		if (!request.setAbortHandler(new Runnable() {
+			public void run() {
+				httpUriRequest.abort();
+			}
+		})) {
+			throw new IOException("request aborted");
+		}
+		long startTime = System.currentTimeMillis();
+		boolean responded = false;
+		try {
+			HttpResponse httpResponse = mHttpClient.execute(httpUriRequest);
+			HttpConnectionManager.recordExecute(getName(),
+					System.currentTimeMillis() - startTime);
+			responded = true;
+			// the response drops the abort handler when it is closed
+			return new ApacheResponse(request, httpResponse);
+		} catch (ConnectTimeoutException e) {
+			throw new ConnectException("connect timeout: " + e.getMessage());
+		} finally {
+			if (!responded) {
+				request.setAbortHandler(null);
+			}
+		}
+	}
+
+	public String getCookieHeader() {
+		StringBuilder builder = new StringBuilder();
+		Iterator<Cookie> iter = mHttpClient.getCookieStore().getCookies()
+				.iterator();
+		while (iter.hasNext()) {
+			Cookie cookie = iter.next();
+			if (builder.length() > 0) {
+				builder.append("; ");
+			}
+			builder.append(cookie.getName()).append('=')
+					.append(cookie.getValue());
+		}
+		return builder.toString();
+	}
+
+	public String getName() {
+		return "apache";
+	}
+
+	static class ApacheResponse implements HttpTransportResponse {
+		HttpTransportRequest mRequest;
+		HttpResponse mHttpResponse;
+
+		ApacheResponse(HttpTransportRequest request, HttpResponse httpResponse) {
+			mRequest = request;
+			mHttpResponse = httpResponse;
+		}
+
+		public int getStatusCode() {
+			return mHttpResponse.getStatusLine().getStatusCode();
+		}
+
+		public String getHeader(String name) {
+			Header header = mHttpResponse.getFirstHeader(name);
+			return header == null ? null : header.getValue();
+		}
+
+		public InputStream getContent() throws IOException {
+			HttpEntity entity = mHttpResponse.getEntity();
+			return mRequest.getAbortableContent(entity == null ? null : entity
+					.getContent());
+		}
+
+		public void close() {
+			HttpEntity entity = mHttpResponse.getEntity();
+			if (entity != null) {
+				try {
+					// release the connection back to the pool
+					entity.consumeContent();
+				} catch (IOException e) {
+					Log.w(TAG, "cannot consume content: " + e.getMessage());
+				}
+			}
+			mRequest.setAbortHandler(null);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package com.chaos.taxi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+// Compact encoding for the frequent small messages: location updates going
+// up and refresh messages coming down. Coordinates are E6 integers written
+// as zigzag varints, each message starts with a type tag, and anything
+// without a schema is carried as embedded json. The server tells us it
+// speaks it in Accept, and we ask for it in Accept on refresh; json stays
+// the fallback both ways.
+//
+// location update: [version][TAG_LOCATION_UPDATE][zz lat][zz lng]
+// location stream: [version][TAG_LOCATION_STREAM][seq][flags][count][zz ...]
+// refresh response: [version][zz status][flags][count] then per message
+// [tag][id + 1, 0 if none][fields]
+public class BinaryCodec {
+	private static final String TAG = "BinaryCodec";
+
+	public static final String CONTENT_TYPE = "application/x-taxi-binary";
+	static final String JSON_CONTENT_TYPE = "application/json";
+	static final int VERSION = 1;
+
+	static final int TAG_JSON = 0;
+	static final int TAG_LOCATION_UPDATE = 1;
+	static final int TAG_CALL_TAXI_RESPONSE = 2;
+	static final int TAG_CALL_TAXI_COMPLETE = 3;
+	static final int TAG_LOCATION_STREAM = 4;
+
+	static final int FLAG_LONG_POLL = 1;
+	static final int FLAG_KEYFRAME = 1;
+	static final int FLAG_ACCEPT = 1;
+	static final int FLAG_HAS_TOKEN = 2;
+	static final int FLAG_HAS_DRIVER = 4;
+
+	static Object mLock = new Object();
+	static boolean mEnabled = true;
+	// learned from the Accept header of the server responses
+	static boolean mServerAcceptsBinary = false;
+
+	// one message in SAMPLE_INTERVAL is also sized as json, the others only
+	// count the bytes already at hand
+	static final int SAMPLE_INTERVAL = 16;
+	static final int STAT_COUNT = 0;
+	static final int STAT_BINARY_BYTES = 1;
+	static final int STAT_NANOS = 2;
+	static final int STAT_SAMPLES = 3;
+	static final int STAT_SAMPLE_JSON_BYTES = 4;
+	static final int STAT_SAMPLE_BINARY_BYTES = 5;
+	static final int STAT_SIZE = 6;
+
+	// for the binary bodies sent, the binary responses decoded and the json
+	// responses we would have got as binary
+	static long[] mEncodeStats = new long[STAT_SIZE];
+	static long[] mDecodeStats = new long[STAT_SIZE];
+	static long[] mJsonStats = new long[STAT_SIZE];
+	static long mJsonResponseCount = 0;
+
+	public static void setEnabled(boolean enabled) {
+		synchronized (mLock) {
+			mEnabled = enabled;
+		}
+	}
+
+	public static boolean isEnabled() {
+		synchronized (mLock) {
+			return mEnabled;
+		}
+	}
+
+	static boolean canSendBinary() {
+		synchronized (mLock) {
+			return mEnabled && mServerAcceptsBinary;
+		}
+	}
+
+	// called with every response of our server
+	static void onResponse(String acceptHeader, String contentType) {
+		boolean accepts;
+		if (isBinary(contentType)) {
+			accepts = true;
+		} else if (acceptHeader != null) {
+			accepts = acceptHeader.contains(CONTENT_TYPE);
+		} else {
+			return;
+		}
+		synchronized (mLock) {
+			if (accepts != mServerAcceptsBinary) {
+				Log.i(TAG, "server accepts binary: " + accepts);
+			}
+			mServerAcceptsBinary = accepts;
+		}
+	}
+
+	// the server refused a binary body, go back to json until it says again
+	static void onRejected() {
+		synchronized (mLock) {
+			Log.i(TAG, "binary body rejected, fall back to json");
+			mServerAcceptsBinary = false;
+		}
+	}
+
+	static boolean isBinary(String contentType) {
+		return contentType != null && contentType.startsWith(CONTENT_TYPE);
+	}
+
+	static String getAcceptHeader() {
+		return CONTENT_TYPE + ", " + JSON_CONTENT_TYPE;
+	}
+
+	// returns null if the request has no binary schema
+	static byte[] encodeRequest(String requestType, JSONObject requestJson) {
+		if (requestJson == null) {
+			return null;
+		}
+		long startTime = System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(12);
+		out.write(VERSION);
+		if (requestType.equals(RequestManager.LOCATION_UPDATE_REQUEST)) {
+			out.write(TAG_LOCATION_UPDATE);
+			writeE6(out, requestJson.optDouble("latitude"));
+			writeE6(out, requestJson.optDouble("longitude"));
+		} else if (requestType.equals(RequestManager.LOCATION_STREAM_REQUEST)) {
+			JSONArray points = requestJson.optJSONArray("points");
+			if (points == null) {
+				return null;
+			}
+			out.write(TAG_LOCATION_STREAM);
+			writeVarint(out, requestJson.optLong("seq"));
+			out.write(requestJson.optBoolean("keyframe") ? FLAG_KEYFRAME : 0);
+			writeVarint(out, points.length());
+			for (int i = 0; i < points.length(); ++i) {
+				writeZigZag(out, points.optLong(i));
+			}
+		} else {
+			return null;
+		}
+		byte[] bytes = out.toByteArray();
+		long encodeTime = System.nanoTime() - startTime;
+		// what setHttpEntity would have sent
+		long jsonBytes = isSample(mEncodeStats) ? ("json_data=" + requestJson
+				.toString()).length() : -1;
+		record(mEncodeStats, jsonBytes, bytes.length, encodeTime);
+		return bytes;
+	}
+
+	// the same json the refresh handlers get from a json response
+	static JSONObject decodeResponse(InputStream in) throws IOException,
+			JSONException {
+		long startTime = System.nanoTime();
+		CountingStream countingIn = new CountingStream(in);
+		checkVersion(countingIn);
+		JSONObject responseJson = new JSONObject();
+		responseJson.put("status", readZigZag(countingIn));
+		int flags = readByte(countingIn);
+		if ((flags & FLAG_LONG_POLL) != 0) {
+			responseJson.put("long_poll", true);
+		}
+		int count = (int) readVarint(countingIn);
+		JSONArray messages = new JSONArray();
+		for (int i = 0; i < count; ++i) {
+			messages.put(readMessage(countingIn));
+		}
+		responseJson.put("messages", messages);
+		long decodeTime = System.nanoTime() - startTime;
+		long jsonBytes = isSample(mDecodeStats) ? responseJson.toString()
+				.length() : -1;
+		record(mDecodeStats, jsonBytes, countingIn.mCount, decodeTime);
+		return responseJson;
+	}
+
+	// a refresh response that came as json, for a sample count what binary
+	// would have taken so the two can be compared on real traffic
+	static void recordJsonResponse(JSONObject responseJson) {
+		JSONArray messages = responseJson.optJSONArray("messages");
+		if (messages == null || messages.length() == 0) {
+			return;
+		}
+		synchronized (mLock) {
+			if (mJsonResponseCount++ % SAMPLE_INTERVAL != 0) {
+				return;
+			}
+		}
+		try {
+			long startTime = System.nanoTime();
+			byte[] bytes = encodeResponse(responseJson);
+			long encodeTime = System.nanoTime() - startTime;
+			record(mJsonStats, responseJson.toString().length(), bytes.length,
+					encodeTime);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// the server side of decodeResponse
+	static byte[] encodeResponse(JSONObject responseJson) throws JSONException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		out.write(VERSION);
+		writeZigZag(out, responseJson.optInt("status", -1));
+		out.write(responseJson.optBoolean("long_poll", false) ? FLAG_LONG_POLL
+				: 0);
+		JSONArray messages = responseJson.optJSONArray("messages");
+		int count = messages == null ? 0 : messages.length();
+		writeVarint(out, count);
+		for (int i = 0; i < count; ++i) {
+			writeMessage(out, messages.getJSONObject(i));
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeMessage(ByteArrayOutputStream out,
+			JSONObject messageJson) {
+		String type = messageJson.optString("type");
+		long id = messageJson.optLong("id", -1);
+		if (type.equals(RequestManager.LOCATION_UPDATE_REQUEST)
+				&& messageJson.optJSONObject("location") != null) {
+			JSONObject locationJson = messageJson.optJSONObject("location");
+			out.write(TAG_LOCATION_UPDATE);
+			writeVarint(out, id + 1);
+			writeE6(out, locationJson.optDouble("latitude"));
+			writeE6(out, locationJson.optDouble("longitude"));
+		} else if (type.equals(RequestManager.CALL_TAXI_RESPONSE)) {
+			String token = messageJson.optString("token", null);
+			String driver = messageJson.optString("driver", null);
+			int flags = (messageJson.optBoolean("accept") ? FLAG_ACCEPT : 0)
+					| (token != null ? FLAG_HAS_TOKEN : 0)
+					| (driver != null ? FLAG_HAS_DRIVER : 0);
+			out.write(TAG_CALL_TAXI_RESPONSE);
+			writeVarint(out, id + 1);
+			out.write(flags);
+			writeZigZag(out, messageJson.optLong("key", -1));
+			if (token != null) {
+				writeString(out, token);
+			}
+			if (driver != null) {
+				writeString(out, driver);
+			}
+		} else if (type.equals(RequestManager.CALL_TAXI_COMPLETE)) {
+			out.write(TAG_CALL_TAXI_COMPLETE);
+			writeVarint(out, id + 1);
+		} else {
+			out.write(TAG_JSON);
+			writeVarint(out, id + 1);
+			writeString(out, messageJson.toString());
+		}
+	}
+
+	private static JSONObject readMessage(InputStream in) throws IOException,
+			JSONException {
+		int tag = readByte(in);
+		long id = readVarint(in) - 1;
+		JSONObject messageJson;
+		switch (tag) {
+		case TAG_LOCATION_UPDATE:
+			messageJson = new JSONObject();
+			messageJson.put("type", RequestManager.LOCATION_UPDATE_REQUEST);
+			JSONObject locationJson = new JSONObject();
+			locationJson.put("latitude", readE6(in));
+			locationJson.put("longitude", readE6(in));
+			messageJson.put("location", locationJson);
+			break;
+		case TAG_CALL_TAXI_RESPONSE:
+			messageJson = new JSONObject();
+			messageJson.put("type", RequestManager.CALL_TAXI_RESPONSE);
+			int flags = readByte(in);
+			messageJson.put("accept", (flags & FLAG_ACCEPT) != 0);
+			messageJson.put("key", readZigZag(in));
+			if ((flags & FLAG_HAS_TOKEN) != 0) {
+				messageJson.put("token", readString(in));
+			}
+			if ((flags & FLAG_HAS_DRIVER) != 0) {
+				messageJson.put("driver", readString(in));
+			}
+			break;
+		case TAG_CALL_TAXI_COMPLETE:
+			messageJson = new JSONObject();
+			messageJson.put("type", RequestManager.CALL_TAXI_COMPLETE);
+			break;
+		case TAG_JSON:
+			messageJson = new JSONObject(readString(in));
+			break;
+		default:
+			// the length of an unknown message is unknown, give up
+			throw new IOException("unknown message tag: " + tag);
+		}
+		if (id >= 0) {
+			messageJson.put("id", id);
+		}
+		return messageJson;
+	}
+
+	private static void checkVersion(InputStream in) throws IOException {
+		int version = readByte(in);
+		if (version != VERSION) {
+			throw new IOException("unknown binary version: " + version);
+		}
+	}
+
+	static void writeE6(ByteArrayOutputStream out, double degrees) {
+		writeZigZag(out, Geodesy.toE6(degrees));
+	}
+
+	static double readE6(InputStream in) throws IOException {
+		return Geodesy.fromE6((int) readZigZag(in));
+	}
+
+	static void writeZigZag(ByteArrayOutputStream out, long value) {
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	static long readZigZag(InputStream in) throws IOException {
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte(in);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("varint too long");
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			writeVarint(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		int length = (int) readVarint(in);
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int n = in.read(bytes, offset, length - offset);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			offset += n;
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	// whether the next message recorded in stat is a sample
+	static boolean isSample(long[] stat) {
+		synchronized (mLock) {
+			return stat[STAT_COUNT] % SAMPLE_INTERVAL == 0;
+		}
+	}
+
+	// jsonBytes is -1 if the message is not a sample
+	static void record(long[] stat, long jsonBytes, long binaryBytes,
+			long nanos) {
+		synchronized (mLock) {
+			++stat[STAT_COUNT];
+			stat[STAT_BINARY_BYTES] += binaryBytes;
+			stat[STAT_NANOS] += nanos;
+			if (jsonBytes >= 0) {
+				++stat[STAT_SAMPLES];
+				stat[STAT_SAMPLE_JSON_BYTES] += jsonBytes;
+				stat[STAT_SAMPLE_BINARY_BYTES] += binaryBytes;
+			}
+		}
+	}
+
+	// what the traffic took, and for the samples what json would have taken
+	public static void dumpStats() {
+		synchronized (mLock) {
+			dumpStat("encode", mEncodeStats);
+			dumpStat("decode", mDecodeStats);
+			dumpStat("json response", mJsonStats);
+		}
+	}
+
+	private static void dumpStat(String name, long[] stat) {
+		if (stat[STAT_COUNT] == 0) {
+			return;
+		}
+		long jsonBytes = stat[STAT_SAMPLE_JSON_BYTES];
+		Log.d(TAG, name + " " + stat[STAT_COUNT] + " messages, binary: "
+				+ stat[STAT_BINARY_BYTES] + " avg: " + stat[STAT_NANOS]
+				/ stat[STAT_COUNT] / 1000 + "us, " + stat[STAT_SAMPLES]
+				+ " samples ratio: "
+				+ (jsonBytes == 0 ? 0 : stat[STAT_SAMPLE_BINARY_BYTES] * 100
+						/ jsonBytes) + "%");
+	}
+
+	static class CountingStream extends FilterInputStream {
+		long mCount = 0;
+
+		CountingStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				++mCount;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			int n = super.read(buffer, offset, count);
+			if (n > 0) {
+				mCount += n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.chaos.taxi.util;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import android.util.Log;
+
+// Per endpoint circuit breaker. After FAILURE_THRESHOLD transport failures
+// in a row the endpoint is failed fast for a jittered open period, then one
+// probe request is let through to see if it came back.
+public class CircuitBreaker {
+	private static final String TAG = "CircuitBreaker";
+
+	static final int STATE_CLOSED = 0;
+	static final int STATE_OPEN = 1;
+	static final int STATE_HALF_OPEN = 2;
+
+	static final int FAILURE_THRESHOLD = 5;
+	// Time in ms
+	static final int MIN_OPEN_TIME = 10 * 1000;
+	static final int MAX_OPEN_TIME = 5 * 60 * 1000;
+
+	static class Endpoint {
+		int mState = STATE_CLOSED;
+		int mFailureCount = 0;
+		int mOpenCount = 0;
+		long mRetryTime = 0;
+		boolean mProbing = false;
+	}
+
+	static Object mLock = new Object();
+	static HashMap<String, Endpoint> mEndpoints = new HashMap<String, Endpoint>();
+	static Random mRandom = new Random();
+
+	private static Endpoint getEndpoint(String endpoint) {
+		Endpoint state = mEndpoints.get(endpoint);
+		if (state == null) {
+			state = new Endpoint();
+			mEndpoints.put(endpoint, state);
+		}
+		return state;
+	}
+
+	public static boolean allowRequest(String endpoint) {
+		synchronized (mLock) {
+			Endpoint state = getEndpoint(endpoint);
+			switch (state.mState) {
+			case STATE_OPEN:
+				if (System.currentTimeMillis() < state.mRetryTime) {
+					return false;
+				}
+				state.mState = STATE_HALF_OPEN;
+				state.mProbing = false;
+				// fall through, this request is the probe
+			case STATE_HALF_OPEN:
+				if (state.mProbing) {
+					return false;
+				}
+				state.mProbing = true;
+				return true;
+			default:
+				return true;
+			}
+		}
+	}
+
+	public static void onSuccess(String endpoint) {
+		synchronized (mLock) {
+			Endpoint state = getEndpoint(endpoint);
+			if (state.mState != STATE_CLOSED) {
+				Log.i(TAG, endpoint + " is back, close circuit");
+			}
+			state.mState = STATE_CLOSED;
+			state.mFailureCount = 0;
+			state.mOpenCount = 0;
+			state.mProbing = false;
+		}
+	}
+
+	public static void onFailure(String endpoint) {
+		synchronized (mLock) {
+			Endpoint state = getEndpoint(endpoint);
+			++state.mFailureCount;
+			if (state.mState == STATE_HALF_OPEN
+					|| state.mFailureCount >= FAILURE_THRESHOLD) {
+				open(endpoint, state);
+			}
+		}
+	}
+
+	// the request ended with no answer either way, e.g. it was aborted; a
+	// probe gives its turn to the next request
+	public static void onAborted(String endpoint) {
+		synchronized (mLock) {
+			Endpoint state = getEndpoint(endpoint);
+			if (state.mState == STATE_HALF_OPEN) {
+				state.mProbing = false;
+			}
+		}
+	}
+
+	public static boolean isOpen(String endpoint) {
+		synchronized (mLock) {
+			return getEndpoint(endpoint).mState != STATE_CLOSED;
+		}
+	}
+
+	// must hold mLock
+	private static void open(String endpoint, Endpoint state) {
+		// double the open period each time the probe fails, and spread it so
+		// clients do not all probe at the same moment
+		long openTime = Math.min((long) MIN_OPEN_TIME << state.mOpenCount,
+				MAX_OPEN_TIME);
+		openTime = openTime / 2 + (long) (mRandom.nextDouble() * openTime / 2);
+		if (state.mOpenCount < 16) {
+			++state.mOpenCount;
+		}
+		state.mState = STATE_OPEN;
+		state.mProbing = false;
+		state.mRetryTime = System.currentTimeMillis() + openTime;
+		Log.w(TAG, "open circuit for " + endpoint + " " + openTime + "ms");
+	}
+}
@@ -0,0 +1,247 @@
+package com.chaos.taxi.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+// Reverse geocode results keyed by a grid cell of CELL_SIZE_E6, so fixes a
+// few meters apart share one geocoder call. An LRU in memory sits in front
+// of a table in geocode_db; entries older than TTL are misses and get
+// replaced. The offline index answers before both, and only a miss of all
+// of them goes to the geocoder.
+public class GeocodeCache extends SQLiteOpenHelper {
+	private static final String TAG = "GeocodeCache";
+	static final String TABLE_NAME = "geocode";
+	static final String CELL = "cell";
+	static final String ADDRESS = "address";
+	static final String TIMESTAMP = "timestamp";
+
+	// about 55m of latitude, less than a street address spans
+	static final int CELL_SIZE_E6 = 500;
+	static final int MEMORY_CAPACITY = 128;
+	static final int MAX_ROWS = 2000;
+	// Time in ms, addresses do not move but names do
+	static final long TTL = 30L * 24 * 60 * 60 * 1000;
+
+	static Object mLock = new Object();
+	static GeocodeCache mInstance = null;
+	static boolean mPruned = false;
+	// cell -> { address, timestamp }, in access order
+	static LinkedHashMap<Long, Object[]> mMemory = new LinkedHashMap<Long, Object[]>(
+			MEMORY_CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Object[]> eldest) {
+			return size() > MEMORY_CAPACITY;
+		}
+	};
+
+	static long mMemoryHits = 0;
+	static long mDiskHits = 0;
+	static long mMisses = 0;
+	// ns
+	static long mLookupTime = 0;
+	static long mGeocoderCalls = 0;
+	// ms
+	static long mGeocoderTime = 0;
+
+	GeocodeCache(Context context) {
+		super(context, "geocode_db", null, 1);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		String str = "create table if not exists " + TABLE_NAME + "(" + CELL
+				+ " integer primary key, " + ADDRESS + " text not null, "
+				+ TIMESTAMP + " integer not null)";
+		Log.d(TAG, str);
+		db.execSQL(str);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion != newVersion) {
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+			onCreate(db);
+		}
+	}
+
+	// cheap, the database is opened with the first lookup
+	public static void open(Context context) {
+		synchronized (mLock) {
+			if (mInstance == null) {
+				mInstance = new GeocodeCache(context.getApplicationContext());
+			}
+		}
+	}
+
+	// blocks on the geocoder for a miss, keep it off the UI thread
+	public static String getAddress(double latitude, double longitude) {
+		String address = OfflineGeocoder.lookup(latitude, longitude);
+		if (address != null) {
+			return address;
+		}
+		address = lookup(latitude, longitude);
+		if (address != null) {
+			return address;
+		}
+		long start = System.currentTimeMillis();
+		address = RequestProcessor.sendQueryGpscoderRequest(latitude,
+				longitude);
+		synchronized (mLock) {
+			++mGeocoderCalls;
+			mGeocoderTime += System.currentTimeMillis() - start;
+		}
+		// a failed call is not cached, the next lookup tries again
+		if (address != null) {
+			store(latitude, longitude, address);
+		}
+		return address;
+	}
+
+	public static String lookup(double latitude, double longitude) {
+		long start = System.nanoTime();
+		long cell = getCell(latitude, longitude);
+		long now = System.currentTimeMillis();
+		String address = null;
+		synchronized (mLock) {
+			Object[] entry = mMemory.get(cell);
+			if (entry != null && !isExpired((Long) entry[1], now)) {
+				++mMemoryHits;
+				mLookupTime += System.nanoTime() - start;
+				return (String) entry[0];
+			}
+		}
+
+		GeocodeCache instance = getInstance();
+		if (instance != null) {
+			Cursor cursor = null;
+			try {
+				cursor = instance.getReadableDatabase().query(TABLE_NAME,
+						new String[] { ADDRESS, TIMESTAMP }, CELL + "=" + cell,
+						null, null, null, null);
+				if (cursor != null && cursor.moveToFirst()
+						&& !isExpired(cursor.getLong(1), now)) {
+					address = cursor.getString(0);
+					synchronized (mLock) {
+						mMemory.put(cell, new Object[] { address,
+								cursor.getLong(1) });
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				if (cursor != null) {
+					cursor.close();
+				}
+			}
+		}
+		synchronized (mLock) {
+			if (address != null) {
+				++mDiskHits;
+			} else {
+				++mMisses;
+			}
+			mLookupTime += System.nanoTime() - start;
+		}
+		return address;
+	}
+
+	public static void store(double latitude, double longitude, String address) {
+		long cell = getCell(latitude, longitude);
+		long now = System.currentTimeMillis();
+		synchronized (mLock) {
+			mMemory.put(cell, new Object[] { address, now });
+		}
+		GeocodeCache instance = getInstance();
+		if (instance == null) {
+			return;
+		}
+		ContentValues cv = new ContentValues();
+		cv.put(CELL, cell);
+		cv.put(ADDRESS, address);
+		cv.put(TIMESTAMP, now);
+		try {
+			instance.getWritableDatabase().replace(TABLE_NAME, null, cv);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// drops expired rows and the oldest beyond MAX_ROWS, once per process
+	static GeocodeCache getInstance() {
+		GeocodeCache instance;
+		boolean prune;
+		synchronized (mLock) {
+			instance = mInstance;
+			prune = instance != null && !mPruned;
+			mPruned = mPruned || prune;
+		}
+		if (prune) {
+			try {
+				SQLiteDatabase db = instance.getWritableDatabase();
+				db.delete(TABLE_NAME, TIMESTAMP + "<"
+						+ (System.currentTimeMillis() - TTL), null);
+				db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + CELL
+						+ " NOT IN (SELECT " + CELL + " FROM " + TABLE_NAME
+						+ " ORDER BY " + TIMESTAMP + " DESC LIMIT " + MAX_ROWS
+						+ ")");
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return instance;
+	}
+
+	// row and column of the grid packed in one long
+	static long getCell(double latitude, double longitude) {
+		long row = Math.round(Geodesy.toE6(latitude) / (double) CELL_SIZE_E6);
+		long column = Math.round(Geodesy.toE6(longitude)
+				/ (double) CELL_SIZE_E6);
+		return (row << 32) | (column & 0xffffffffL);
+	}
+
+	static boolean isExpired(long timestamp, long now) {
+		return now - timestamp > TTL;
+	}
+
+	public static double getHitRate() {
+		synchronized (mLock) {
+			long lookups = mMemoryHits + mDiskHits + mMisses;
+			return lookups == 0 ? 0 : (mMemoryHits + mDiskHits)
+					/ (double) lookups;
+		}
+	}
+
+	// us
+	public static long getAverageLookupTime() {
+		synchronized (mLock) {
+			long lookups = mMemoryHits + mDiskHits + mMisses;
+			return lookups == 0 ? 0 : mLookupTime / lookups / 1000;
+		}
+	}
+
+	// ms
+	public static long getAverageGeocoderTime() {
+		synchronized (mLock) {
+			return mGeocoderCalls == 0 ? 0 : mGeocoderTime / mGeocoderCalls;
+		}
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			Log.d(TAG, "memory hits: " + mMemoryHits + " disk hits: "
+					+ mDiskHits + " misses: " + mMisses);
+		}
+		Log.d(TAG, "hit rate: " + (int) (getHitRate() * 100)
+				+ "% lookup: " + getAverageLookupTime() + "us geocoder: "
+				+ getAverageGeocoderTime() + "ms");
+	}
+}
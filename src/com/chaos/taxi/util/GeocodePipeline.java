@@ -0,0 +1,271 @@
+package com.chaos.taxi.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.chaos.taxi.util.RequestManager.Request;
+import com.chaos.taxi.util.TaxiHistorySqlHelper.HistoryItem;
+
+// Fills in the missing origin and destination names of history items in the
+// background, so the list shows coordinates at once instead of waiting for
+// the geocoder. Points in the same GeocodeCache cell share one lookup, at
+// most MAX_WORKERS lookups run at a time on the io pool, and each name is
+// written back to the history database before the callback runs.
+public class GeocodePipeline {
+	private static final String TAG = "GeocodePipeline";
+
+	// leave an io thread for foreground requests
+	static final int MAX_WORKERS = 2;
+	// Time in ms, street addresses found meanwhile go up in one upload
+	static final long PUSH_DELAY = 2000;
+
+	static Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	static Object mLock = new Object();
+	// held while a name is written, cancel() takes it to wait for the write
+	// in flight before the owner closes its database
+	static Object mWriteLock = new Object();
+	// cell -> job, queued or running
+	static HashMap<Long, Job> mJobs = new HashMap<Long, Job>();
+	static LinkedList<Job> mQueue = new LinkedList<Job>();
+	static int mActiveWorkers = 0;
+	// resolved, the callback is posted but did not run yet
+	static ArrayList<Waiter> mDelivering = new ArrayList<Waiter>();
+	static ArrayList<Request> mPendingPushes = new ArrayList<Request>();
+	static ScheduledFuture<?> mPushFuture = null;
+
+	static long mResolvedCount = 0;
+	static long mDedupedCount = 0;
+
+	static class Job {
+		long mCell;
+		double mLatitude;
+		double mLongitude;
+		ArrayList<Waiter> mWaiters = new ArrayList<Waiter>();
+	}
+
+	static class Waiter {
+		Object mOwner;
+		TaxiHistorySqlHelper mSqlHelper;
+		HistoryItem mItem;
+		boolean mOrigin;
+		RequestCallback<HistoryItem> mCallback;
+		boolean mCanceled = false;
+	}
+
+	// the callback gets each item whose origin or destination got a name, on
+	// the main looper, until cancel(owner)
+	public static void resolve(Object owner, TaxiHistorySqlHelper sqlHelper,
+			ArrayList<HistoryItem> items, RequestCallback<HistoryItem> callback) {
+		if (items == null) {
+			return;
+		}
+		for (int i = 0; i < items.size(); ++i) {
+			HistoryItem item = items.get(i);
+			if (item.needsOriginName()) {
+				enqueue(owner, sqlHelper, item, true, item.mOriginLatitude,
+						item.mOriginLongitude, callback);
+			}
+			if (item.needsDestinationName()) {
+				enqueue(owner, sqlHelper, item, false,
+						item.mDestinationLatitude, item.mDestinationLongitude,
+						callback);
+			}
+		}
+		startWorkers();
+	}
+
+	// the owner gets no more callbacks and its database is not written
+	public static void cancel(Object owner) {
+		synchronized (mLock) {
+			ArrayList<Job> jobs = new ArrayList<Job>(mJobs.values());
+			for (int i = 0; i < jobs.size(); ++i) {
+				Job job = jobs.get(i);
+				for (int j = job.mWaiters.size() - 1; j >= 0; --j) {
+					if (job.mWaiters.get(j).mOwner == owner) {
+						job.mWaiters.remove(j).mCanceled = true;
+					}
+				}
+				// a running job finishes, its name still goes to the cache
+				if (job.mWaiters.isEmpty() && mQueue.remove(job)) {
+					mJobs.remove(job.mCell);
+				}
+			}
+			for (int i = mDelivering.size() - 1; i >= 0; --i) {
+				if (mDelivering.get(i).mOwner == owner) {
+					mDelivering.remove(i).mCanceled = true;
+				}
+			}
+		}
+		// a write that started before the waiters were canceled ends here
+		synchronized (mWriteLock) {
+		}
+	}
+
+	private static void enqueue(Object owner, TaxiHistorySqlHelper sqlHelper,
+			HistoryItem item, boolean origin, double latitude,
+			double longitude, RequestCallback<HistoryItem> callback) {
+		Waiter waiter = new Waiter();
+		waiter.mOwner = owner;
+		waiter.mSqlHelper = sqlHelper;
+		waiter.mItem = item;
+		waiter.mOrigin = origin;
+		waiter.mCallback = callback;
+
+		long cell = GeocodeCache.getCell(latitude, longitude);
+		synchronized (mLock) {
+			Job job = mJobs.get(cell);
+			if (job != null) {
+				++mDedupedCount;
+			} else {
+				job = new Job();
+				job.mCell = cell;
+				job.mLatitude = latitude;
+				job.mLongitude = longitude;
+				mJobs.put(cell, job);
+				mQueue.add(job);
+			}
+			job.mWaiters.add(waiter);
+		}
+	}
+
+	private static void startWorkers() {
+		while (true) {
+			synchronized (mLock) {
+				if (mActiveWorkers >= MAX_WORKERS
+						|| mActiveWorkers >= mQueue.size()) {
+					return;
+				}
+				++mActiveWorkers;
+			}
+			try {
+				TaxiExecutors.io().execute(new Runnable() {
+					public void run() {
+						runJobs();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the jobs stay queued for the next resolve()
+				synchronized (mLock) {
+					--mActiveWorkers;
+				}
+				return;
+			}
+		}
+	}
+
+	private static void runJobs() {
+		while (true) {
+			Job job;
+			synchronized (mLock) {
+				job = mQueue.poll();
+				if (job == null) {
+					--mActiveWorkers;
+					return;
+				}
+			}
+			String address = GeocodeCache.getAddress(job.mLatitude,
+					job.mLongitude);
+			ArrayList<Waiter> waiters;
+			synchronized (mLock) {
+				mJobs.remove(job.mCell);
+				waiters = new ArrayList<Waiter>(job.mWaiters);
+				if (address != null) {
+					++mResolvedCount;
+					mDelivering.addAll(waiters);
+				}
+			}
+			if (address != null) {
+				for (int i = 0; i < waiters.size(); ++i) {
+					deliver(waiters.get(i), address);
+				}
+			}
+		}
+	}
+
+	private static void deliver(final Waiter waiter, final String address) {
+		String column = waiter.mOrigin ? HistoryItem.ORIGIN
+				: HistoryItem.DESTINATION;
+		synchronized (mWriteLock) {
+			synchronized (mLock) {
+				if (waiter.mCanceled) {
+					return;
+				}
+			}
+			try {
+				waiter.mSqlHelper.updateAddress(waiter.mItem.mId, column,
+						address);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		mMainHandler.post(new Runnable() {
+			public void run() {
+				synchronized (mLock) {
+					mDelivering.remove(waiter);
+					if (waiter.mCanceled) {
+						return;
+					}
+				}
+				if (waiter.mOrigin) {
+					waiter.mItem.mOrigin = address;
+				} else {
+					waiter.mItem.mDestination = address;
+				}
+				if (waiter.mCallback != null) {
+					waiter.mCallback.onResult(waiter.mItem);
+				}
+			}
+		});
+	}
+
+	// a street address the geocoder found goes to the server with the others
+	// found within PUSH_DELAY
+	static void pushAddress(String address, double latitude, double longitude) {
+		Request request = RequestManager.generatePushGpscoderRequest(address,
+				latitude, longitude);
+		if (request == null) {
+			return;
+		}
+		synchronized (mLock) {
+			mPendingPushes.add(request);
+			if (mPushFuture != null) {
+				return;
+			}
+			mPushFuture = TaxiExecutors.scheduler().schedule(new Runnable() {
+				public void run() {
+					flushPushes();
+				}
+			}, PUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	static void flushPushes() {
+		ArrayList<Request> requests;
+		synchronized (mLock) {
+			mPushFuture = null;
+			requests = new ArrayList<Request>(mPendingPushes);
+			mPendingPushes.clear();
+		}
+		if (requests.size() > 0) {
+			Log.d(TAG, "push " + requests.size() + " addresses");
+			// queued together, a lane worker sends them in one batch
+			RequestManager.addRequests(requests);
+		}
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			Log.d(TAG, "resolved: " + mResolvedCount + " deduped: "
+					+ mDedupedCount + " queued: " + mQueue.size());
+		}
+	}
+}
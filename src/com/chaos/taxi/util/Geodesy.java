@@ -0,0 +1,115 @@
+package com.chaos.taxi.util;
+
+// Geodesy on E6 coordinates, the ints GeoPoint and the server use. Nothing
+// here allocates, so it is cheap enough to run on every gps fix and every
+// overlay item. Distances are meters on a sphere of the mean earth radius,
+// within 0.5% of the ellipsoid.
+public class Geodesy {
+	public static final double EARTH_RADIUS = 6371009;
+	static final double E6 = 1000000.0;
+	static final double RADIANS_PER_E6 = Math.PI / 180 / E6;
+	static final int MAX_LATITUDE_E6 = 90000000;
+	static final int MAX_LONGITUDE_E6 = 180000000;
+
+	// index of the values in a bounding box
+	public static final int BOX_MIN_LATITUDE = 0;
+	public static final int BOX_MIN_LONGITUDE = 1;
+	public static final int BOX_MAX_LATITUDE = 2;
+	public static final int BOX_MAX_LONGITUDE = 3;
+	public static final int BOX_SIZE = 4;
+
+	public static int toE6(double degrees) {
+		return (int) Math.round(degrees * E6);
+	}
+
+	public static double fromE6(int degreesE6) {
+		return degreesE6 / E6;
+	}
+
+	// great circle distance, exact on the sphere at any range
+	public static double distance(int latitudeE6, int longitudeE6,
+			int otherLatitudeE6, int otherLongitudeE6) {
+		double latitude = latitudeE6 * RADIANS_PER_E6;
+		double otherLatitude = otherLatitudeE6 * RADIANS_PER_E6;
+		double sinLatitude = Math.sin((otherLatitude - latitude) / 2);
+		double sinLongitude = Math.sin(longitudeDelta(longitudeE6,
+				otherLongitudeE6) * RADIANS_PER_E6 / 2);
+		double a = sinLatitude * sinLatitude + Math.cos(latitude)
+				* Math.cos(otherLatitude) * sinLongitude * sinLongitude;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	// equirectangular, one cos and one sqrt; within a meter of distance()
+	// up to tens of kilometers away from the poles, use it for city ranges
+	public static double fastDistance(int latitudeE6, int longitudeE6,
+			int otherLatitudeE6, int otherLongitudeE6) {
+		double x = longitudeDelta(longitudeE6, otherLongitudeE6)
+				* RADIANS_PER_E6
+				* Math.cos((latitudeE6 + (double) otherLatitudeE6) / 2
+						* RADIANS_PER_E6);
+		double y = (otherLatitudeE6 - latitudeE6) * RADIANS_PER_E6;
+		return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+	}
+
+	// initial bearing from the first point to the other, degrees clockwise
+	// from north in [0, 360)
+	public static double bearing(int latitudeE6, int longitudeE6,
+			int otherLatitudeE6, int otherLongitudeE6) {
+		double latitude = latitudeE6 * RADIANS_PER_E6;
+		double otherLatitude = otherLatitudeE6 * RADIANS_PER_E6;
+		double longitude = longitudeDelta(longitudeE6, otherLongitudeE6)
+				* RADIANS_PER_E6;
+		double y = Math.sin(longitude) * Math.cos(otherLatitude);
+		double x = Math.cos(latitude) * Math.sin(otherLatitude)
+				- Math.sin(latitude) * Math.cos(otherLatitude)
+				* Math.cos(longitude);
+		double degrees = Math.toDegrees(Math.atan2(y, x));
+		return degrees < 0 ? degrees + 360 : degrees;
+	}
+
+	// fills box with the points within radius of the center. Longitudes
+	// are not wrapped, a box over the antimeridian has max > 180E6
+	public static void boundingBox(int latitudeE6, int longitudeE6,
+			double radius, int[] box) {
+		int latitudeSpan = (int) Math.ceil(radius / EARTH_RADIUS
+				/ RADIANS_PER_E6);
+		box[BOX_MIN_LATITUDE] = Math.max(latitudeE6 - latitudeSpan,
+				-MAX_LATITUDE_E6);
+		box[BOX_MAX_LATITUDE] = Math.min(latitudeE6 + latitudeSpan,
+				MAX_LATITUDE_E6);
+		double cos = Math.cos(Math.max(Math.abs(box[BOX_MIN_LATITUDE]), Math
+				.abs(box[BOX_MAX_LATITUDE]))
+				* RADIANS_PER_E6);
+		int longitudeSpan = cos <= 0 ? MAX_LONGITUDE_E6 : (int) Math.min(
+				MAX_LONGITUDE_E6, Math.ceil(latitudeSpan / cos));
+		box[BOX_MIN_LONGITUDE] = longitudeE6 - longitudeSpan;
+		box[BOX_MAX_LONGITUDE] = longitudeE6 + longitudeSpan;
+	}
+
+	public static boolean contains(int[] box, int latitudeE6, int longitudeE6) {
+		if (latitudeE6 < box[BOX_MIN_LATITUDE]
+				|| latitudeE6 > box[BOX_MAX_LATITUDE]) {
+			return false;
+		}
+		if (longitudeE6 >= box[BOX_MIN_LONGITUDE]
+				&& longitudeE6 <= box[BOX_MAX_LONGITUDE]) {
+			return true;
+		}
+		// the box may reach over the antimeridian on either side
+		long wrapped = longitudeE6 < box[BOX_MIN_LONGITUDE] ? longitudeE6 + 2L
+				* MAX_LONGITUDE_E6 : longitudeE6 - 2L * MAX_LONGITUDE_E6;
+		return wrapped >= box[BOX_MIN_LONGITUDE]
+				&& wrapped <= box[BOX_MAX_LONGITUDE];
+	}
+
+	// the shorter way around, in [-180E6, 180E6]
+	static long longitudeDelta(int longitudeE6, int otherLongitudeE6) {
+		long delta = (long) otherLongitudeE6 - longitudeE6;
+		if (delta > MAX_LONGITUDE_E6) {
+			delta -= 2L * MAX_LONGITUDE_E6;
+		} else if (delta < -MAX_LONGITUDE_E6) {
+			delta += 2L * MAX_LONGITUDE_E6;
+		}
+		return delta;
+	}
+}
@@ -0,0 +1,198 @@
+package com.chaos.taxi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+import com.chaos.taxi.util.HttpTransport.HttpTransportResponse;
+
+public class HttpCompression {
+	private static final String TAG = "HttpCompression";
+
+	static final String ACCEPT_ENCODING = "Accept-Encoding";
+	static final String CONTENT_ENCODING = "Content-Encoding";
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	// request bodies smaller than this are not worth the cpu
+	static final int COMPRESS_THRESHOLD = 1024;
+
+	static Object mLock = new Object();
+	// hosts that told us with Accept-Encoding that they take gzip bodies,
+	// the taxi server and the geocoder need not agree
+	static HashSet<String> mGzipHosts = new HashSet<String>();
+	// endpoint -> { raw up, wire up, raw down, wire down }
+	static HashMap<String, long[]> mStats = new HashMap<String, long[]>();
+
+	public static void prepareRequest(HttpTransportRequest request) {
+		request.setHeader(ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+		byte[] raw = request.getBody();
+		if (raw == null) {
+			return;
+		}
+		String endpoint = request.getPath();
+		long rawLength = raw.length;
+		boolean acceptsGzip;
+		synchronized (mLock) {
+			acceptsGzip = mGzipHosts.contains(request.getHost());
+		}
+		if (!acceptsGzip || rawLength < COMPRESS_THRESHOLD) {
+			record(endpoint, rawLength, rawLength, 0, 0);
+			return;
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					raw.length / 2);
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(raw);
+			gzip.close();
+			if (out.size() >= raw.length) {
+				record(endpoint, raw.length, raw.length, 0, 0);
+				return;
+			}
+			request.setBody(out.toByteArray());
+			request.setHeader(CONTENT_ENCODING, GZIP);
+			record(endpoint, raw.length, out.size(), 0, 0);
+		} catch (IOException e) {
+			Log.w(TAG, "cannot compress request body for " + endpoint);
+			e.printStackTrace();
+		}
+	}
+
+	// returns null if the response has no body
+	public static InputStream getContent(HttpTransportRequest request,
+			HttpTransportResponse response) throws IOException {
+		String endpoint = request.getPath();
+		String acceptHeader = response.getHeader(ACCEPT_ENCODING);
+		if (acceptHeader != null) {
+			String host = request.getHost();
+			synchronized (mLock) {
+				if (acceptHeader.contains(GZIP)) {
+					mGzipHosts.add(host);
+				} else {
+					mGzipHosts.remove(host);
+				}
+			}
+		}
+
+		InputStream content = response.getContent();
+		if (content == null) {
+			return null;
+		}
+		CountingInputStream wireIn = new CountingInputStream(content, null,
+				null);
+		InputStream decodedIn = wireIn;
+		String encoding = response.getHeader(CONTENT_ENCODING);
+		if (encoding != null) {
+			if (encoding.equalsIgnoreCase(GZIP)) {
+				decodedIn = new GZIPInputStream(wireIn);
+			} else if (encoding.equalsIgnoreCase(DEFLATE)) {
+				decodedIn = new InflaterInputStream(wireIn);
+			} else {
+				Log.w(TAG, "unknown content encoding: " + encoding);
+			}
+		}
+		return new CountingInputStream(decodedIn, wireIn, endpoint);
+	}
+
+	static void record(String endpoint, long rawUp, long wireUp, long rawDown,
+			long wireDown) {
+		if (endpoint == null) {
+			return;
+		}
+		synchronized (mLock) {
+			long[] stat = mStats.get(endpoint);
+			if (stat == null) {
+				stat = new long[4];
+				mStats.put(endpoint, stat);
+			}
+			stat[0] += rawUp;
+			stat[1] += wireUp;
+			stat[2] += rawDown;
+			stat[3] += wireDown;
+		}
+	}
+
+	public static long getBytesSaved(String endpoint) {
+		synchronized (mLock) {
+			long[] stat = mStats.get(endpoint);
+			if (stat == null) {
+				return 0;
+			}
+			return (stat[0] - stat[1]) + (stat[2] - stat[3]);
+		}
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			Iterator<Entry<String, long[]>> iter = mStats.entrySet()
+					.iterator();
+			while (iter.hasNext()) {
+				Entry<String, long[]> entry = iter.next();
+				long[] stat = entry.getValue();
+				Log.d(TAG, entry.getKey() + " up: " + stat[1] + "/" + stat[0]
+						+ " down: " + stat[3] + "/" + stat[2] + " saved: "
+						+ ((stat[0] - stat[1]) + (stat[2] - stat[3])));
+			}
+		}
+	}
+
+	static class CountingInputStream extends FilterInputStream {
+		long mCount = 0;
+		CountingInputStream mWireIn;
+		String mEndpoint;
+		boolean mClosed = false;
+
+		CountingInputStream(InputStream in, CountingInputStream wireIn,
+				String endpoint) {
+			super(in);
+			mWireIn = wireIn;
+			mEndpoint = endpoint;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c != -1) {
+				++mCount;
+			}
+			return c;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			int n = super.read(buffer, offset, count);
+			if (n > 0) {
+				mCount += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			mCount += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if (!mClosed && mWireIn != null) {
+				record(mEndpoint, 0, 0, mCount, mWireIn.mCount);
+			}
+			mClosed = true;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package com.chaos.taxi.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+// Owns the pooled connections to the server: the pool is sized to the
+// threads that can talk to the server at once, idle sockets are closed
+// before the server or a NAT drops them, and login warms up one connection
+// so the first find-taxi does not pay for DNS and the handshake.
+public class HttpConnectionManager {
+	private static final String TAG = "HttpConnectionManager";
+
+	static final int WAIT_TIMEOUT = 10 * 1000; // 10 seconds
+	static final int READ_TIMEOUT = 60 * 1000; // 60 seconds
+	static final int CONNECT_TIMEOUT = 10 * 1000; // 10 seconds
+	// used when the server does not send Keep-Alive: timeout=
+	static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+	static final long MAX_KEEP_ALIVE = 60 * 1000;
+	static final long IDLE_TIMEOUT = 30 * 1000;
+	static final long REAPER_INTERVAL = 15 * 1000;
+
+	public static final int TRANSPORT_APACHE = 0;
+	public static final int TRANSPORT_URL_CONNECTION = 1;
+	// picked by the build in the manifest, the value is a transport name:
+	// <meta-data android:name="com.chaos.taxi.HTTP_TRANSPORT"
+	// android:value="urlconnection" />
+	static final String TRANSPORT_META_DATA = "com.chaos.taxi.HTTP_TRANSPORT";
+
+	static Object mLock = new Object();
+	static ClientConnectionManager mConnManager = null;
+	static ScheduledFuture<?> mReaperFuture = null;
+	static boolean mStop = true;
+	// a warmed connection stays pooled for IDLE_TIMEOUT
+	static long mWarmUpTime = 0;
+	static HttpTransport mTransport = null;
+	// transport name -> { requests, total ms, max ms } until the headers
+	static HashMap<String, long[]> mExecuteStats = new HashMap<String, long[]>();
+
+	// connection stats
+	static long mRequestCount = 0;
+	static long mConnectCount = 0;
+	static long mConnectTimeTotal = 0;
+	static long mConnectTimeMax = 0;
+
+	// lane workers, the refresh thread, the push channel and the io pool
+	static int getPoolSize() {
+		int size = 2 + TaxiExecutors.IO_THREADS;
+		for (int lane = 0; lane < RequestDispatcher.LANE_COUNT; ++lane) {
+			size += RequestDispatcher.LANE_WORKERS[lane];
+		}
+		return size;
+	}
+
+	public static DefaultHttpClient createHttpClient() {
+		BasicHttpParams httpParams = new BasicHttpParams();
+		int poolSize = getPoolSize();
+		ConnManagerParams.setMaxTotalConnections(httpParams, poolSize);
+		ConnManagerParams.setTimeout(httpParams, WAIT_TIMEOUT);
+		// talking to one host, it may use the whole pool
+		ConnManagerParams.setMaxConnectionsPerRoute(httpParams,
+				new ConnPerRouteBean(poolSize));
+		HttpConnectionParams.setConnectionTimeout(httpParams, CONNECT_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(httpParams, READ_TIMEOUT);
+		HttpConnectionParams.setStaleCheckingEnabled(httpParams, true);
+		HttpConnectionParams.setTcpNoDelay(httpParams, true);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", new CountingSocketFactory(
+				PlainSocketFactory.getSocketFactory()), 80));
+		registry.register(new Scheme("https", new CountingSocketFactory(
+				SSLSocketFactory.getSocketFactory()), 443));
+
+		synchronized (mLock) {
+			mConnManager = new ThreadSafeClientConnManager(httpParams, registry);
+		}
+		DefaultHttpClient httpClient = new DefaultHttpClient(mConnManager,
+				httpParams);
+		httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+		httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context)
+					throws HttpException, IOException {
+				synchronized (mLock) {
+					++mRequestCount;
+				}
+			}
+		});
+		return httpClient;
+	}
+
+	public static HttpTransport getTransport() {
+		synchronized (mLock) {
+			if (mTransport == null) {
+				mTransport = new ApacheHttpTransport(
+						RequestProcessor.mHttpClient);
+			}
+			return mTransport;
+		}
+	}
+
+	// takes effect for the next request, the session cookie does not move
+	// over so switch before login
+	public static void setTransport(int transport) {
+		synchronized (mLock) {
+			if (transport == TRANSPORT_URL_CONNECTION) {
+				mTransport = new UrlConnectionHttpTransport();
+			} else {
+				mTransport = new ApacheHttpTransport(
+						RequestProcessor.mHttpClient);
+			}
+			Log.i(TAG, "use " + mTransport.getName() + " transport");
+		}
+	}
+
+	// once per process, before login, from the manifest of the build
+	public static void configureTransport(Context context) {
+		synchronized (mLock) {
+			if (mTransport != null) {
+				return;
+			}
+		}
+		String name = null;
+		try {
+			ApplicationInfo info = context.getPackageManager()
+					.getApplicationInfo(context.getPackageName(),
+							PackageManager.GET_META_DATA);
+			if (info.metaData != null) {
+				name = info.metaData.getString(TRANSPORT_META_DATA);
+			}
+		} catch (NameNotFoundException e) {
+			e.printStackTrace();
+		}
+		setTransport(UrlConnectionHttpTransport.NAME.equals(name)
+				? TRANSPORT_URL_CONNECTION : TRANSPORT_APACHE);
+	}
+
+	static void recordExecute(String transportName, long executeTime) {
+		synchronized (mLock) {
+			long[] stat = mExecuteStats.get(transportName);
+			if (stat == null) {
+				stat = new long[3];
+				mExecuteStats.put(transportName, stat);
+			}
+			++stat[0];
+			stat[1] += executeTime;
+			if (executeTime > stat[2]) {
+				stat[2] = executeTime;
+			}
+		}
+	}
+
+	public static long getAverageExecuteTime(String transportName) {
+		synchronized (mLock) {
+			long[] stat = mExecuteStats.get(transportName);
+			return (stat == null || stat[0] == 0) ? 0 : stat[1] / stat[0];
+		}
+	}
+
+	public static void start() {
+		synchronized (mLock) {
+			if (!mStop) {
+				return;
+			}
+			mStop = false;
+			mReaperFuture = TaxiExecutors.scheduler().scheduleWithFixedDelay(
+					new Runnable() {
+						public void run() {
+							closeIdleConnections(IDLE_TIMEOUT);
+						}
+					}, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static void stop() {
+		synchronized (mLock) {
+			if (mStop) {
+				return;
+			}
+			mStop = true;
+			mReaperFuture.cancel(false);
+			mReaperFuture = null;
+		}
+		// nothing will use the pooled sockets until we start again
+		closeIdleConnections(0);
+		dumpStats();
+	}
+
+	// resolve the server and open a connection to it in the background, so
+	// the first request of the screen finds it; call before that request is
+	// made, not along with it
+	public static void warmUp() {
+		synchronized (mLock) {
+			long now = System.currentTimeMillis();
+			if (now - mWarmUpTime < IDLE_TIMEOUT) {
+				return;
+			}
+			mWarmUpTime = now;
+		}
+		try {
+			TaxiExecutors.io().execute(new Runnable() {
+				public void run() {
+					long startTime = System.currentTimeMillis();
+					String host = URI.create(RequestProcessor.HTTPSERVER)
+							.getHost();
+					try {
+						InetAddress.getByName(host);
+					} catch (UnknownHostException e) {
+						Log.w(TAG, "cannot resolve " + host);
+						return;
+					}
+					HttpTransportRequest request = new HttpTransportRequest(
+							HttpTransportRequest.HEAD, RequestProcessor.HTTPSERVER
+									+ "/");
+					try {
+						HttpTransport.HttpTransportResponse response = getTransport()
+								.execute(request);
+						Log.d(TAG, "warm up " + host + " status "
+								+ response.getStatusCode() + " in "
+								+ (System.currentTimeMillis() - startTime) + "ms");
+						response.close();
+					} catch (IOException e) {
+						Log.w(TAG, "warm up fail: " + e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the pool is busy with real requests, they open the connection
+			Log.d(TAG, "skip warm up, io pool is busy");
+		}
+	}
+
+	static void closeIdleConnections(long idleTime) {
+		ClientConnectionManager connManager;
+		synchronized (mLock) {
+			connManager = mConnManager;
+		}
+		if (connManager != null) {
+			connManager.closeExpiredConnections();
+			connManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			HeaderElementIterator iter = new BasicHeaderElementIterator(
+					response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (iter.hasNext()) {
+				HeaderElement element = iter.nextElement();
+				if ("timeout".equalsIgnoreCase(element.getName())
+						&& element.getValue() != null) {
+					try {
+						// leave a second so we close before the server does
+						long keepAlive = Long.parseLong(element.getValue()) * 1000 - 1000;
+						return Math.max(0, Math.min(keepAlive, MAX_KEEP_ALIVE));
+					} catch (NumberFormatException e) {
+						Log.w(TAG, "bad keep alive timeout: "
+								+ element.getValue());
+					}
+				}
+			}
+			return DEFAULT_KEEP_ALIVE;
+		}
+	}
+
+	static class CountingSocketFactory implements SocketFactory {
+		SocketFactory mSocketFactory;
+
+		CountingSocketFactory(SocketFactory socketFactory) {
+			mSocketFactory = socketFactory;
+		}
+
+		public Socket createSocket() throws IOException {
+			return mSocketFactory.createSocket();
+		}
+
+		public Socket connectSocket(Socket sock, String host, int port,
+				InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException,
+				ConnectTimeoutException {
+			long startTime = System.currentTimeMillis();
+			Socket socket = mSocketFactory.connectSocket(sock, host, port,
+					localAddress, localPort, params);
+			long connectTime = System.currentTimeMillis() - startTime;
+			synchronized (mLock) {
+				++mConnectCount;
+				mConnectTimeTotal += connectTime;
+				if (connectTime > mConnectTimeMax) {
+					mConnectTimeMax = connectTime;
+				}
+			}
+			Log.d(TAG, "new connection to " + host + ":" + port + " in "
+					+ connectTime + "ms");
+			return socket;
+		}
+
+		public boolean isSecure(Socket sock) throws IllegalArgumentException {
+			return mSocketFactory.isSecure(sock);
+		}
+	}
+
+	// share of requests that went out on an already open connection
+	public static double getReuseRatio() {
+		synchronized (mLock) {
+			if (mRequestCount == 0) {
+				return 0;
+			}
+			return Math.max(0, 1.0 - (double) mConnectCount / mRequestCount);
+		}
+	}
+
+	public static long getAverageConnectTime() {
+		synchronized (mLock) {
+			return mConnectCount == 0 ? 0 : mConnectTimeTotal / mConnectCount;
+		}
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			Log.d(TAG, "requests: " + mRequestCount + " connections: "
+					+ mConnectCount + " avg connect: "
+					+ (mConnectCount == 0 ? 0 : mConnectTimeTotal
+							/ mConnectCount) + "ms max connect: "
+					+ mConnectTimeMax + "ms");
+			Iterator<Entry<String, long[]>> iter = mExecuteStats.entrySet()
+					.iterator();
+			while (iter.hasNext()) {
+				Entry<String, long[]> entry = iter.next();
+				long[] stat = entry.getValue();
+				Log.d(TAG, entry.getKey() + " transport requests: " + stat[0]
+						+ " avg: " + (stat[0] == 0 ? 0 : stat[1] / stat[0])
+						+ "ms max: " + stat[2] + "ms");
+			}
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.chaos.taxi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// The http stack requests go out on. Implementations must be thread safe;
+// a request can be aborted from another thread while execute blocks.
+public interface HttpTransport {
+	// connect failures, where the request never left, are reported as
+	// java.net.ConnectException or a subclass of it
+	public HttpTransportResponse execute(HttpTransportRequest request)
+			throws IOException;
+
+	// cookies the server has set, as a Cookie header value
+	public String getCookieHeader();
+
+	public String getName();
+
+	public interface HttpTransportResponse {
+		public int getStatusCode();
+
+		public String getHeader(String name);
+
+		// the body as it came over the wire, null if there is none
+		public InputStream getContent() throws IOException;
+
+		// drain and release the connection
+		public void close();
+	}
+}
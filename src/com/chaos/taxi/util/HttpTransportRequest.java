@@ -0,0 +1,136 @@
+package com.chaos.taxi.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+
+public class HttpTransportRequest {
+	public static final String GET = "GET";
+	public static final String POST = "POST";
+	public static final String HEAD = "HEAD";
+
+	String mMethod;
+	String mUrl;
+	LinkedHashMap<String, String> mHeaders = new LinkedHashMap<String, String>();
+	byte[] mBody = null;
+
+	Object mAbortLock = new Object();
+	boolean mAborted = false;
+	Runnable mAbortHandler = null;
+
+	public HttpTransportRequest(String method, String url) {
+		mMethod = method;
+		mUrl = url;
+	}
+
+	public String getMethod() {
+		return mMethod;
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	public String getPath() {
+		return URI.create(mUrl).getPath();
+	}
+
+	public String getHost() {
+		return URI.create(mUrl).getHost();
+	}
+
+	public void setHeader(String name, String value) {
+		mHeaders.put(name, value);
+	}
+
+	public String getHeader(String name) {
+		return mHeaders.get(name);
+	}
+
+	public LinkedHashMap<String, String> getHeaders() {
+		return mHeaders;
+	}
+
+	public byte[] getBody() {
+		return mBody;
+	}
+
+	public void setBody(byte[] body) {
+		mBody = body;
+	}
+
+	public void abort() {
+		Runnable abortHandler = null;
+		synchronized (mAbortLock) {
+			mAborted = true;
+			abortHandler = mAbortHandler;
+		}
+		if (abortHandler != null) {
+			abortHandler.run();
+		}
+	}
+
+	public boolean isAborted() {
+		synchronized (mAbortLock) {
+			return mAborted;
+		}
+	}
+
+	// the transport tells how to stop the request while it is in flight,
+	// returns false if it has already been aborted
+	boolean setAbortHandler(Runnable abortHandler) {
+		synchronized (mAbortLock) {
+			mAbortHandler = abortHandler;
+			return !mAborted;
+		}
+	}
+
+	// the body is read after execute returns, the request stays abortable
+	// until it is closed. A read cut off by the abort fails, some streams
+	// would report the end of the body instead
+	InputStream getAbortableContent(InputStream content) {
+		if (content == null) {
+			setAbortHandler(null);
+			return null;
+		}
+		return new FilterInputStream(content) {
+			@Override
+			public int read() throws IOException {
+				checkAborted();
+				int c = super.read();
+				if (c == -1) {
+					checkAborted();
+				}
+				return c;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count)
+					throws IOException {
+				checkAborted();
+				int read = super.read(buffer, offset, count);
+				if (read == -1) {
+					checkAborted();
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					setAbortHandler(null);
+				}
+			}
+		};
+	}
+
+	private void checkAborted() throws IOException {
+		if (isAborted()) {
+			throw new IOException("request aborted");
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.chaos.taxi.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Builds org.json objects straight from a response stream in a single pass,
+// without collecting the body into a String first.
+public class JsonStreamParser {
+	static final int BUFFER_SIZE = 4096;
+
+	private Reader mReader;
+	private char[] mBuffer = new char[BUFFER_SIZE];
+	private int mPos = 0;
+	private int mLimit = 0;
+	private StringBuilder mStringBuilder = new StringBuilder();
+
+	public JsonStreamParser(Reader reader) {
+		mReader = reader;
+	}
+
+	// returns null for an empty body
+	public static JSONObject parseObject(Reader reader) throws IOException,
+			JSONException {
+		JsonStreamParser parser = new JsonStreamParser(reader);
+		int c = parser.nextClean();
+		if (c == -1) {
+			return null;
+		}
+		if (c != '{') {
+			throw parser.syntaxError("expect '{' but get " + (char) c);
+		}
+		return parser.readObject();
+	}
+
+	private int read() throws IOException {
+		if (mPos == mLimit) {
+			mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+			mPos = 0;
+			if (mLimit <= 0) {
+				mLimit = 0;
+				return -1;
+			}
+		}
+		return mBuffer[mPos++];
+	}
+
+	private void unread() {
+		--mPos;
+	}
+
+	private int nextClean() throws IOException {
+		int c = read();
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+			c = read();
+		}
+		return c;
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException("JsonStreamParser: " + message);
+	}
+
+	private Object readValue(int c) throws IOException, JSONException {
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expectLiteral("rue");
+			return Boolean.TRUE;
+		case 'f':
+			expectLiteral("alse");
+			return Boolean.FALSE;
+		case 'n':
+			expectLiteral("ull");
+			return JSONObject.NULL;
+		case -1:
+			throw syntaxError("unexpected end of stream");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return readNumber(c);
+			}
+			throw syntaxError("unexpected char " + (char) c);
+		}
+	}
+
+	private JSONObject readObject() throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+		int c = nextClean();
+		if (c == '}') {
+			return object;
+		}
+		while (true) {
+			if (c != '"') {
+				throw syntaxError("expect key string");
+			}
+			String key = readString();
+			if (nextClean() != ':') {
+				throw syntaxError("expect ':' after " + key);
+			}
+			object.put(key, readValue(nextClean()));
+			c = nextClean();
+			if (c == '}') {
+				return object;
+			} else if (c != ',') {
+				throw syntaxError("expect ',' or '}' in object");
+			}
+			c = nextClean();
+		}
+	}
+
+	private JSONArray readArray() throws IOException, JSONException {
+		JSONArray array = new JSONArray();
+		int c = nextClean();
+		if (c == ']') {
+			return array;
+		}
+		while (true) {
+			array.put(readValue(c));
+			c = nextClean();
+			if (c == ']') {
+				return array;
+			} else if (c != ',') {
+				throw syntaxError("expect ',' or ']' in array");
+			}
+			c = nextClean();
+		}
+	}
+
+	private String readString() throws IOException, JSONException {
+		mStringBuilder.setLength(0);
+		while (true) {
+			int c = read();
+			switch (c) {
+			case -1:
+				throw syntaxError("unterminated string");
+			case '"':
+				return mStringBuilder.toString();
+			case '\\':
+				c = read();
+				switch (c) {
+				case 'b':
+					mStringBuilder.append('\b');
+					break;
+				case 'f':
+					mStringBuilder.append('\f');
+					break;
+				case 'n':
+					mStringBuilder.append('\n');
+					break;
+				case 'r':
+					mStringBuilder.append('\r');
+					break;
+				case 't':
+					mStringBuilder.append('\t');
+					break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; ++i) {
+						int digit = Character.digit(read(), 16);
+						if (digit < 0) {
+							throw syntaxError("bad unicode escape");
+						}
+						code = (code << 4) | digit;
+					}
+					mStringBuilder.append((char) code);
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					mStringBuilder.append((char) c);
+					break;
+				default:
+					throw syntaxError("bad escape");
+				}
+				break;
+			default:
+				mStringBuilder.append((char) c);
+			}
+		}
+	}
+
+	private Object readNumber(int c) throws IOException, JSONException {
+		mStringBuilder.setLength(0);
+		boolean isDecimal = false;
+		while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E'
+				|| (c >= '0' && c <= '9')) {
+			if (c == '.' || c == 'e' || c == 'E') {
+				isDecimal = true;
+			}
+			mStringBuilder.append((char) c);
+			c = read();
+		}
+		if (c != -1) {
+			unread();
+		}
+		String number = mStringBuilder.toString();
+		if (!isDecimal) {
+			try {
+				long value = Long.parseLong(number);
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+					return Integer.valueOf((int) value);
+				}
+				return Long.valueOf(value);
+			} catch (NumberFormatException e) {
+				// too large for a long, fall through to double
+			}
+		}
+		try {
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw syntaxError("bad number " + number);
+		}
+	}
+
+	private void expectLiteral(String rest) throws IOException,
+			JSONException {
+		for (int i = 0; i < rest.length(); ++i) {
+			if (read() != rest.charAt(i)) {
+				throw syntaxError("bad literal");
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.chaos.taxi.util;
+
+import android.util.Log;
+
+// Dead reckoning for the passenger location. The server moves the last fix
+// it got along the velocity between the last two fixes it got, for at most
+// MAX_PREDICT_TIME. We run the same model and only send a fix when it is
+// further than the tolerance of the trip state from that prediction, so
+// gps jitter of a passenger standing still is not sent.
+public class LocationPredictor {
+	private static final String TAG = "LocationPredictor";
+
+	// meters, per RefreshScheduler state
+	static final double TOLERANCE_IDLE = 50;
+	// the call is pending, the pickup point matters
+	static final double TOLERANCE_CALLING = 15;
+	// the track of the ride is kept
+	static final double TOLERANCE_HAS_TAXI = 25;
+	// the server stops extrapolating after this
+	static final long MAX_PREDICT_TIME = 60 * 1000;
+	// send now and then so the server knows the fix is still good
+	static final long MAX_SILENCE = 2 * 60 * 1000;
+	// closer sent fixes are jitter, the last position is sent again
+	static final double MIN_VELOCITY_DISTANCE = 10;
+
+	static Object mLock = new Object();
+	// last two fixes sent, { lat E6, lng E6, time }
+	static long[] mLastSent = null;
+	static long[] mPrevSent = null;
+
+	static long mFixCount = 0;
+	static long mSuppressedCount = 0;
+	// worst distance between a suppressed fix and the prediction, meters
+	static double mMaxError = 0;
+
+	// returns the position to send for the fix, { lat E6, lng E6 }, or null
+	// if the server predicts it well enough; the position is then taken as
+	// sent. A fix close to the last one sent goes as that position again,
+	// so the velocity the server derives is zero and it does not move
+	// the passenger along gps jitter
+	static int[] getFixToSend(int latitudeE6, int longitudeE6, int state) {
+		return getFixToSend(latitudeE6, longitudeE6, state, System
+				.currentTimeMillis());
+	}
+
+	// with the time of the fix, a recorded trace replays at any speed
+	static int[] getFixToSend(int latitudeE6, int longitudeE6, int state,
+			long now) {
+		synchronized (mLock) {
+			++mFixCount;
+			if (mLastSent != null && now - mLastSent[2] < MAX_SILENCE) {
+				double error = distance(latitudeE6, longitudeE6,
+						predictLatitudeE6(now), predictLongitudeE6(now));
+				if (error <= getTolerance(state)) {
+					++mSuppressedCount;
+					if (error > mMaxError) {
+						mMaxError = error;
+					}
+					return null;
+				}
+			}
+			if (mLastSent != null
+					&& distance(latitudeE6, longitudeE6, (int) mLastSent[0],
+							(int) mLastSent[1]) < MIN_VELOCITY_DISTANCE) {
+				// standing still, within every tolerance of the fix
+				latitudeE6 = (int) mLastSent[0];
+				longitudeE6 = (int) mLastSent[1];
+			}
+			mPrevSent = mLastSent;
+			mLastSent = new long[] { latitudeE6, longitudeE6, now };
+			return new int[] { latitudeE6, longitudeE6 };
+		}
+	}
+
+	// a new session starts without any fix on the server
+	static void reset() {
+		synchronized (mLock) {
+			if (mFixCount > 0) {
+				Log.d(TAG, "fixes: " + mFixCount + " suppressed: "
+						+ mSuppressedCount + " max error: " + (int) mMaxError
+						+ "m");
+			}
+			mLastSent = null;
+			mPrevSent = null;
+		}
+	}
+
+	static double getTolerance(int state) {
+		switch (state) {
+		case RefreshScheduler.STATE_CALLING:
+			return TOLERANCE_CALLING;
+		case RefreshScheduler.STATE_HAS_TAXI:
+			return TOLERANCE_HAS_TAXI;
+		default:
+			return TOLERANCE_IDLE;
+		}
+	}
+
+	// must hold mLock
+	private static int predictLatitudeE6(long now) {
+		return (int) predict(0, now);
+	}
+
+	// must hold mLock
+	private static int predictLongitudeE6(long now) {
+		return (int) predict(1, now);
+	}
+
+	private static long predict(int index, long now) {
+		if (mPrevSent == null || mLastSent[2] <= mPrevSent[2]) {
+			return mLastSent[index];
+		}
+		long elapsed = Math.min(now - mLastSent[2], MAX_PREDICT_TIME);
+		return mLastSent[index] + (mLastSent[index] - mPrevSent[index])
+				* elapsed / (mLastSent[2] - mPrevSent[2]);
+	}
+
+	public static long getSuppressedCount() {
+		synchronized (mLock) {
+			return mSuppressedCount;
+		}
+	}
+
+	public static double getMaxError() {
+		synchronized (mLock) {
+			return mMaxError;
+		}
+	}
+
+	// the fixes are meters apart, the fast distance is exact enough
+	private static double distance(int latitudeE6, int longitudeE6,
+			int otherLatitudeE6, int otherLongitudeE6) {
+		return Geodesy.fastDistance(latitudeE6, longitudeE6, otherLatitudeE6,
+				otherLongitudeE6);
+	}
+}
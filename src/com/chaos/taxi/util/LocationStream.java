@@ -0,0 +1,201 @@
+package com.chaos.taxi.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import com.chaos.taxi.util.RequestManager.Request;
+import com.google.android.maps.GeoPoint;
+
+// During a ride the passenger track goes up in batches instead of one
+// location-update per fix. A batch is a flat list of { lat E6, lng E6, time }
+// triples. A keyframe batch starts with absolute values, every other triple
+// is the delta from the one before it, across batches too, so the server
+// rebuilds the track by summing from the last keyframe. Only one batch is
+// in flight, a failed one is put back and the next batch is a keyframe.
+public class LocationStream {
+	private static final String TAG = "LocationStream";
+
+	// the stream only runs while the passenger has a taxi, the refresh
+	// state never changes under it
+	static final int BATCH_INTERVAL = 10 * 1000;
+	// a keyframe every this many batches bounds what one lost batch costs
+	static final int KEYFRAME_INTERVAL = 6;
+	// flush early rather than let a batch grow without bound
+	static final int MAX_BATCH_FIXES = 60;
+
+	static Object mLock = new Object();
+	static boolean mEnabled = true;
+	static ScheduledFuture<?> mFlushFuture = null;
+
+	// { lat E6, lng E6, time } not sent yet
+	static ArrayList<long[]> mFixes = new ArrayList<long[]>();
+	// last fix of the last batch the server got
+	static long[] mLastSentFix = null;
+	static long mSeq = 0;
+	static int mBatchesSinceKeyframe = 0;
+	static boolean mInFlight = false;
+
+	static long mFixCount = 0;
+	static long mBatchCount = 0;
+
+	public static void setEnabled(boolean enabled) {
+		synchronized (mLock) {
+			mEnabled = enabled;
+		}
+	}
+
+	public static boolean isEnabled() {
+		synchronized (mLock) {
+			return mEnabled;
+		}
+	}
+
+	public static void start() {
+		synchronized (mLock) {
+			if (mFlushFuture != null || !mEnabled) {
+				return;
+			}
+			Log.d(TAG, "start location stream every " + BATCH_INTERVAL
+					+ "ms");
+			// fixes of the last ride that never went up
+			mFixes.clear();
+			mLastSentFix = null;
+			mFlushFuture = TaxiExecutors.scheduler().scheduleWithFixedDelay(
+					new Runnable() {
+						public void run() {
+							flush();
+						}
+					}, BATCH_INTERVAL, BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// sends what is buffered, later fixes go out as location-update again
+	public static void stop() {
+		synchronized (mLock) {
+			if (mFlushFuture == null) {
+				return;
+			}
+			mFlushFuture.cancel(false);
+			mFlushFuture = null;
+			Log.d(TAG, "stop location stream, fixes: " + mFixCount
+					+ " batches: " + mBatchCount);
+		}
+		flush();
+	}
+
+	static void addFix(GeoPoint point) {
+		boolean full;
+		synchronized (mLock) {
+			mFixes.add(new long[] { point.getLatitudeE6(),
+					point.getLongitudeE6(), System.currentTimeMillis() });
+			++mFixCount;
+			full = mFixes.size() >= MAX_BATCH_FIXES;
+		}
+		if (full) {
+			flush();
+		}
+	}
+
+	static void flush() {
+		ArrayList<long[]> fixes;
+		boolean keyframe;
+		long seq;
+		long[] base;
+		synchronized (mLock) {
+			if (mInFlight || mFixes.isEmpty()) {
+				return;
+			}
+			fixes = new ArrayList<long[]>(mFixes);
+			mFixes.clear();
+			keyframe = mLastSentFix == null
+					|| mBatchesSinceKeyframe >= KEYFRAME_INTERVAL;
+			base = keyframe ? null : mLastSentFix;
+			seq = ++mSeq;
+			mInFlight = true;
+		}
+
+		JSONObject streamJson = new JSONObject();
+		try {
+			streamJson.put("seq", seq);
+			streamJson.put("keyframe", keyframe);
+			JSONArray points = new JSONArray();
+			long[] last = base;
+			for (int i = 0; i < fixes.size(); ++i) {
+				long[] fix = fixes.get(i);
+				for (int j = 0; j < fix.length; ++j) {
+					points.put(last == null ? fix[j] : fix[j] - last[j]);
+				}
+				last = fix;
+			}
+			streamJson.put("points", points);
+		} catch (JSONException e) {
+			e.printStackTrace();
+			synchronized (mLock) {
+				mInFlight = false;
+			}
+			return;
+		}
+		Log.d(TAG, "send batch " + seq + " with " + fixes.size()
+				+ " fixes, keyframe: " + keyframe);
+		RequestManager.addRequest(new Request(
+				RequestManager.LOCATION_STREAM_REQUEST, streamJson), fixes);
+	}
+
+	// called with the result of each batch
+	@SuppressWarnings("unchecked")
+	static void onBatchResult(Request request, boolean delivered) {
+		ArrayList<long[]> fixes = (ArrayList<long[]>) request.mData;
+		boolean keyframe = request.mRequestJson.optBoolean("keyframe");
+		boolean flushTail = false;
+		synchronized (mLock) {
+			mInFlight = false;
+			if (delivered) {
+				++mBatchCount;
+				mLastSentFix = fixes.get(fixes.size() - 1);
+				mBatchesSinceKeyframe = keyframe ? 1
+						: mBatchesSinceKeyframe + 1;
+				// stopped while this batch was out, send the rest of the ride
+				flushTail = mFlushFuture == null && !mFixes.isEmpty();
+			} else {
+				// the server lost the chain, restart it with these fixes;
+				// once stopped nothing would send them
+				if (mFlushFuture != null) {
+					mFixes.addAll(0, fixes);
+				}
+				mLastSentFix = null;
+			}
+		}
+		if (flushTail) {
+			flush();
+		}
+	}
+
+	// the server does not know the endpoint, send plain updates from now on
+	static void onRejected(Request request) {
+		synchronized (mLock) {
+			if (!mEnabled) {
+				return;
+			}
+			Log.i(TAG, "location stream rejected, use location-update");
+			mEnabled = false;
+			mInFlight = false;
+			mFixes.clear();
+			if (mFlushFuture != null) {
+				mFlushFuture.cancel(false);
+				mFlushFuture = null;
+			}
+		}
+		@SuppressWarnings("unchecked")
+		ArrayList<long[]> fixes = (ArrayList<long[]>) request.mData;
+		long[] lastFix = fixes.get(fixes.size() - 1);
+		RequestManager.addLocationUpdateRequest(new GeoPoint(
+				(int) lastFix[0], (int) lastFix[1]));
+	}
+}
@@ -0,0 +1,299 @@
+package com.chaos.taxi.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import android.util.Log;
+
+import com.chaos.taxi.map.TaxiOverlayItem.TaxiOverlayItemParam;
+import com.google.android.maps.GeoPoint;
+
+// Nearby taxis by map cell. Cells are squares of a grid halving with each
+// zoom level, about two map tiles wide at the current zoom, so the viewport
+// spans a cell and its neighbors. The cell under the map center is queried
+// first and its eight neighbors are prefetched, at most MAX_QUERIES at a
+// time. Answers are kept for TTL and shown for MAX_AGE, so panning back and
+// forth shows taxis without waiting and costs no requests.
+public class NearbyTaxiCache {
+	private static final String TAG = "NearbyTaxiCache";
+
+	// Time in ms, a cell older than this is queried again
+	static final long TTL = 30 * 1000;
+	// Time in ms, taxis move, older answers are not shown
+	static final long MAX_AGE = 2 * 60 * 1000;
+	static final int MAX_CELLS = 64;
+	// leave the io pool to the requests the user makes
+	static final int MAX_QUERIES = 2;
+	static final int MAX_LEVEL = 21;
+	static final long LATITUDE_RANGE_E6 = 180000000L;
+	static final long LONGITUDE_RANGE_E6 = 360000000L;
+
+	static Object mLock = new Object();
+	// cell -> { time, taxis }, in access order
+	static LinkedHashMap<Long, Object[]> mCells = new LinkedHashMap<Long, Object[]>(
+			MAX_CELLS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Object[]> eldest) {
+			return size() > MAX_CELLS;
+		}
+	};
+	// cell -> query, a done (or canceled) query no longer counts
+	static HashMap<Long, RequestFuture<ArrayList<TaxiOverlayItemParam>>> mQueries = new HashMap<Long, RequestFuture<ArrayList<TaxiOverlayItemParam>>>();
+	// the cell under the map center, or -1
+	static long mCenterCell = -1;
+	// the queries are canceled with the requests of the owner
+	static Object mOwner = null;
+
+	static long mHitCount = 0;
+	static long mQueryCount = 0;
+
+	// called as the map moves, cheap when the center stays in its cell
+	public static void onViewportChanged(Object owner, GeoPoint center,
+			int zoomLevel) {
+		// the map shows only my taxi during a ride
+		if (center == null || RequestProcessor.hasTaxi()) {
+			return;
+		}
+		long cell = getCell(center.getLatitudeE6(), center.getLongitudeE6(),
+				getLevel(zoomLevel));
+		synchronized (mLock) {
+			if (cell == mCenterCell && owner == mOwner) {
+				return;
+			}
+			mCenterCell = cell;
+			mOwner = owner;
+		}
+		showCells();
+		queryCells();
+	}
+
+	// the queries were canceled, the next onViewportChanged starts over
+	public static void reset() {
+		synchronized (mLock) {
+			mCenterCell = -1;
+			mOwner = null;
+			mQueries.clear();
+			Log.d(TAG, "hits: " + mHitCount + " queries: " + mQueryCount);
+		}
+	}
+
+	// taxis around the point if its cell was queried within TTL, else null
+	public static ArrayList<TaxiOverlayItemParam> getFresh(GeoPoint point,
+			int zoomLevel) {
+		long cell = getCell(point.getLatitudeE6(), point.getLongitudeE6(),
+				getLevel(zoomLevel));
+		synchronized (mLock) {
+			Object[] entry = mCells.get(cell);
+			if (entry == null
+					|| System.currentTimeMillis() - (Long) entry[0] > TTL) {
+				return null;
+			}
+			++mHitCount;
+			@SuppressWarnings("unchecked")
+			ArrayList<TaxiOverlayItemParam> taxis = (ArrayList<TaxiOverlayItemParam>) entry[1];
+			return taxis;
+		}
+	}
+
+	public static void put(GeoPoint point, int zoomLevel,
+			ArrayList<TaxiOverlayItemParam> taxis) {
+		long cell = getCell(point.getLatitudeE6(), point.getLongitudeE6(),
+				getLevel(zoomLevel));
+		synchronized (mLock) {
+			mCells.put(cell, new Object[] { System.currentTimeMillis(), taxis });
+		}
+	}
+
+	// queries the cells in view that are not fresh, the center first, until
+	// MAX_QUERIES are in flight; each answer starts the next query
+	private static void queryCells() {
+		while (true) {
+			long cell = -1;
+			Object owner;
+			synchronized (mLock) {
+				if (mCenterCell < 0) {
+					return;
+				}
+				int inFlight = 0;
+				Iterator<RequestFuture<ArrayList<TaxiOverlayItemParam>>> iter = mQueries
+						.values().iterator();
+				while (iter.hasNext()) {
+					if (iter.next().isDone()) {
+						iter.remove();
+					} else {
+						++inFlight;
+					}
+				}
+				if (inFlight >= MAX_QUERIES) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long[] cells = getNeighborhood(mCenterCell);
+				for (int i = 0; i < cells.length; ++i) {
+					Object[] entry = mCells.get(cells[i]);
+					if (entry != null && now - (Long) entry[0] <= TTL) {
+						continue;
+					}
+					if (!mQueries.containsKey(cells[i])) {
+						cell = cells[i];
+						break;
+					}
+				}
+				if (cell < 0) {
+					return;
+				}
+				++mQueryCount;
+				owner = mOwner;
+			}
+			RequestFuture<ArrayList<TaxiOverlayItemParam>> future = query(
+					owner, cell);
+			synchronized (mLock) {
+				if (future.isDone()) {
+					// rejected as the pool is busy, the next move tries again;
+					// or already answered, its callback goes on
+					return;
+				}
+				mQueries.put(cell, future);
+			}
+		}
+	}
+
+	private static RequestFuture<ArrayList<TaxiOverlayItemParam>> query(
+			Object owner, final long cell) {
+		final GeoPoint center = getCenter(cell);
+		return RequestProcessor.submit(owner,
+				new Callable<ArrayList<TaxiOverlayItemParam>>() {
+					public ArrayList<TaxiOverlayItemParam> call() {
+						ArrayList<TaxiOverlayItemParam> taxis = RequestProcessor
+								.queryNearbyTaxis(center, true);
+						if (taxis != null) {
+							synchronized (mLock) {
+								mCells.put(cell, new Object[] {
+										System.currentTimeMillis(), taxis });
+							}
+						}
+						return taxis;
+					}
+				}, new RequestCallback<ArrayList<TaxiOverlayItemParam>>() {
+					public void onResult(ArrayList<TaxiOverlayItemParam> taxis) {
+						// a failed query is not repeated until the map moves
+						if (taxis == null) {
+							return;
+						}
+						if (isInView(cell)) {
+							showCells();
+						}
+						queryCells();
+					}
+				}, true);
+	}
+
+	// the taxis of the cells in view, each taxi once
+	private static void showCells() {
+		ArrayList<TaxiOverlayItemParam> taxis = new ArrayList<TaxiOverlayItemParam>();
+		synchronized (mLock) {
+			if (mCenterCell < 0) {
+				return;
+			}
+			HashSet<String> phoneNumbers = new HashSet<String>();
+			long now = System.currentTimeMillis();
+			long[] cells = getNeighborhood(mCenterCell);
+			for (int i = 0; i < cells.length; ++i) {
+				Object[] entry = mCells.get(cells[i]);
+				if (entry == null || now - (Long) entry[0] > MAX_AGE) {
+					continue;
+				}
+				@SuppressWarnings("unchecked")
+				ArrayList<TaxiOverlayItemParam> cellTaxis = (ArrayList<TaxiOverlayItemParam>) entry[1];
+				for (int j = 0; j < cellTaxis.size(); ++j) {
+					if (phoneNumbers.add(cellTaxis.get(j).mPhoneNumber)) {
+						taxis.add(cellTaxis.get(j));
+					}
+				}
+			}
+		}
+		RequestProcessor.showAroundTaxis(taxis);
+	}
+
+	private static boolean isInView(long cell) {
+		synchronized (mLock) {
+			if (mCenterCell < 0) {
+				return false;
+			}
+			long[] cells = getNeighborhood(mCenterCell);
+			for (int i = 0; i < cells.length; ++i) {
+				if (cells[i] == cell) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	// a grid cell is about two 256 pixel tiles wide at the zoom level
+	static int getLevel(int zoomLevel) {
+		return Math.max(0, Math.min(MAX_LEVEL, zoomLevel - 1));
+	}
+
+	static long getCellSize(int level) {
+		return LONGITUDE_RANGE_E6 >> level;
+	}
+
+	// level, row and column packed in one long
+	static long getCell(int latitudeE6, int longitudeE6, int level) {
+		long size = getCellSize(level);
+		long rows = (LATITUDE_RANGE_E6 + size - 1) / size;
+		long columns = 1L << level;
+		long row = Math.min(rows - 1, (latitudeE6 + LATITUDE_RANGE_E6 / 2)
+				/ size);
+		long column = ((longitudeE6 + LONGITUDE_RANGE_E6 / 2) / size)
+				% columns;
+		return ((long) level << 56) | (row << 28) | column;
+	}
+
+	static GeoPoint getCenter(long cell) {
+		int level = (int) (cell >>> 56);
+		long size = getCellSize(level);
+		long row = (cell >>> 28) & 0xfffffff;
+		long column = cell & 0xfffffff;
+		long latitudeE6 = Math.min(row * size + size / 2, LATITUDE_RANGE_E6)
+				- LATITUDE_RANGE_E6 / 2;
+		long longitudeE6 = column * size + size / 2 - LONGITUDE_RANGE_E6 / 2;
+		return new GeoPoint((int) latitudeE6, (int) longitudeE6);
+	}
+
+	// the cell first, then its neighbors; columns wrap around the
+	// antimeridian, rows stop at the poles
+	static long[] getNeighborhood(long cell) {
+		int level = (int) (cell >>> 56);
+		long size = getCellSize(level);
+		long rows = (LATITUDE_RANGE_E6 + size - 1) / size;
+		long columns = 1L << level;
+		long row = (cell >>> 28) & 0xfffffff;
+		long column = cell & 0xfffffff;
+		ArrayList<Long> cells = new ArrayList<Long>();
+		cells.add(cell);
+		for (long r = row - 1; r <= row + 1; ++r) {
+			for (long c = column - 1; c <= column + 1; ++c) {
+				long wrapped = (c + columns) % columns;
+				long neighbor = ((long) level << 56) | (r << 28) | wrapped;
+				if (r < 0 || r >= rows || cells.contains(neighbor)) {
+					continue;
+				}
+				cells.add(neighbor);
+			}
+		}
+		long[] result = new long[cells.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = cells.get(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,371 @@
+package com.chaos.taxi.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+// Nearest address from an index file made by tools/OfflineGeocoderBuilder, so the
+// names of Jiangsu points need no network. The file is
+// [int MAGIC][int VERSION][int count] then count records of
+// [long key][int lat E6][int lng E6][int name offset] sorted by key, then the
+// names as [short length][utf-8]. The key is a binary geohash: the bits of
+// the longitude and the latitude interleaved, so a geohash cell is one key
+// range. The file ships in the assets, is copied to the files dir once per
+// app version, and is memory mapped and searched in place there.
+public class OfflineGeocoder {
+	private static final String TAG = "OfflineGeocoder";
+
+	public static final String INDEX_FILE = "geocode_index";
+	public static final int MAGIC = 0x54584743;
+	public static final int VERSION = 1;
+	static final int HEADER_SIZE = 12;
+	static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+	// bits per axis in a key
+	static final int KEY_BITS = 31;
+
+	// meters, a farther address does not name the point
+	static final double MAX_DISTANCE = 100;
+	// records checked per cell, bounds the time of a dense cell
+	static final int MAX_SCAN = 256;
+
+	static final String PREFS_NAME = "offline_geocoder";
+	static final String INSTALLED_VERSION = "installed_version";
+
+	static Object mLock = new Object();
+	static boolean mInstalling = false;
+	static MappedByteBuffer mBuffer = null;
+	static int mCount = 0;
+	static int mNamesOffset = 0;
+
+	static long mHitCount = 0;
+	static long mMissCount = 0;
+	// ns
+	static long mLookupTime = 0;
+
+	// copies the index from the assets if the files dir has none or one of
+	// an older app version, then opens it. The copy runs on the io pool,
+	// lookups miss until it is done.
+	public static void install(Context context) {
+		final Context appContext = context.getApplicationContext();
+		final File dir = appContext.getFilesDir();
+		final int appVersion = getAppVersion(appContext);
+		final SharedPreferences prefs = appContext.getSharedPreferences(
+				PREFS_NAME, Context.MODE_PRIVATE);
+		if (new File(dir, INDEX_FILE).exists()
+				&& prefs.getInt(INSTALLED_VERSION, -1) == appVersion) {
+			open(dir);
+			return;
+		}
+		synchronized (mLock) {
+			if (mInstalling || mBuffer != null) {
+				return;
+			}
+			mInstalling = true;
+		}
+		try {
+			TaxiExecutors.io().execute(new Runnable() {
+				public void run() {
+					try {
+						if (copyAsset(appContext, dir)) {
+							prefs.edit().putInt(INSTALLED_VERSION, appVersion)
+									.commit();
+						}
+						open(dir);
+					} finally {
+						synchronized (mLock) {
+							mInstalling = false;
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// an older index is better than none, the next start copies
+			synchronized (mLock) {
+				mInstalling = false;
+			}
+			open(dir);
+		}
+	}
+
+	// the catch is not of NameNotFoundException, so the desktop builder can
+	// load this class without the android classes
+	private static int getAppVersion(Context context) {
+		try {
+			return context.getPackageManager().getPackageInfo(
+					context.getPackageName(), 0).versionCode;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	// written next to the index and renamed over it, so a killed copy never
+	// leaves a truncated index
+	private static boolean copyAsset(Context context, File dir) {
+		File file = new File(dir, INDEX_FILE);
+		File tmpFile = new File(dir, INDEX_FILE + ".tmp");
+		InputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = context.getAssets().open(INDEX_FILE);
+			out = new FileOutputStream(tmpFile);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmpFile.renameTo(file)) {
+				Log.e(TAG, "cannot install index file " + file);
+				return false;
+			}
+			Log.i(TAG, "installed index file " + file);
+			return true;
+		} catch (FileNotFoundException e) {
+			Log.w(TAG, "no index in the assets");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		tmpFile.delete();
+		return false;
+	}
+
+	// a missing or bad file leaves the offline geocoder off
+	public static void open(File dir) {
+		synchronized (mLock) {
+			if (mBuffer != null) {
+				return;
+			}
+			File file = new File(dir, INDEX_FILE);
+			if (!file.exists()) {
+				return;
+			}
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file, "r");
+				MappedByteBuffer buffer = raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (buffer.limit() < HEADER_SIZE
+						|| buffer.getInt(0) != MAGIC
+						|| buffer.getInt(4) != VERSION) {
+					Log.w(TAG, "bad index file " + file);
+					return;
+				}
+				int count = buffer.getInt(8);
+				if (HEADER_SIZE + (long) count * RECORD_SIZE > buffer.limit()) {
+					Log.w(TAG, "truncated index file " + file);
+					return;
+				}
+				mBuffer = buffer;
+				mCount = count;
+				mNamesOffset = HEADER_SIZE + count * RECORD_SIZE;
+				Log.d(TAG, "open " + count + " addresses");
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				// the mapping stays valid after the file is closed
+				if (raf != null) {
+					try {
+						raf.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	public static boolean isOpen() {
+		synchronized (mLock) {
+			return mBuffer != null;
+		}
+	}
+
+	public static String lookup(double latitude, double longitude) {
+		return lookup(Geodesy.toE6(latitude), Geodesy.toE6(longitude));
+	}
+
+	// microseconds, fine for the UI thread
+	public static String lookup(int latitudeE6, int longitudeE6) {
+		MappedByteBuffer buffer;
+		int count;
+		synchronized (mLock) {
+			buffer = mBuffer;
+			count = mCount;
+		}
+		if (buffer == null) {
+			return null;
+		}
+		long start = System.nanoTime();
+		int[] box = new int[Geodesy.BOX_SIZE];
+		Geodesy.boundingBox(latitudeE6, longitudeE6, MAX_DISTANCE, box);
+
+		int level = getLevel(box);
+		int shift = 2 * (KEY_BITS - level);
+
+		int nearest = -1;
+		double nearestDistance = MAX_DISTANCE;
+		long minLatitudeCell = cellIndex(box[Geodesy.BOX_MIN_LATITUDE], true,
+				level);
+		long maxLatitudeCell = cellIndex(box[Geodesy.BOX_MAX_LATITUDE], true,
+				level);
+		long minLongitudeCell = cellIndex(box[Geodesy.BOX_MIN_LONGITUDE],
+				false, level);
+		long maxLongitudeCell = cellIndex(box[Geodesy.BOX_MAX_LONGITUDE],
+				false, level);
+		for (long latitudeCell = minLatitudeCell; latitudeCell <= maxLatitudeCell; ++latitudeCell) {
+			for (long longitudeCell = minLongitudeCell; longitudeCell <= maxLongitudeCell; ++longitudeCell) {
+				long first = interleave(latitudeCell, longitudeCell) << shift;
+				long last = first + (1L << shift);
+				int i = lowerBound(buffer, count, first);
+				for (int scanned = 0; i < count && scanned < MAX_SCAN; ++i, ++scanned) {
+					int offset = HEADER_SIZE + i * RECORD_SIZE;
+					if (buffer.getLong(offset) >= last) {
+						break;
+					}
+					int pointLatitudeE6 = buffer.getInt(offset + 8);
+					int pointLongitudeE6 = buffer.getInt(offset + 12);
+					if (!Geodesy.contains(box, pointLatitudeE6,
+							pointLongitudeE6)) {
+						continue;
+					}
+					double distance = Geodesy.fastDistance(latitudeE6,
+							longitudeE6, pointLatitudeE6, pointLongitudeE6);
+					if (distance <= nearestDistance) {
+						nearest = i;
+						nearestDistance = distance;
+					}
+				}
+			}
+		}
+
+		String name = nearest < 0 ? null : readName(buffer, buffer
+				.getInt(HEADER_SIZE + nearest * RECORD_SIZE + 16));
+		synchronized (mLock) {
+			if (name != null) {
+				++mHitCount;
+			} else {
+				++mMissCount;
+			}
+			mLookupTime += System.nanoTime() - start;
+		}
+		return name;
+	}
+
+	// the finest level whose cells are as large as the box, so the box
+	// touches at most 2 x 2 cells
+	private static int getLevel(int[] box) {
+		int level = KEY_BITS;
+		while (level > 0) {
+			long latitudeCells = cellIndex(box[Geodesy.BOX_MAX_LATITUDE], true,
+					level)
+					- cellIndex(box[Geodesy.BOX_MIN_LATITUDE], true, level);
+			long longitudeCells = cellIndex(box[Geodesy.BOX_MAX_LONGITUDE],
+					false, level)
+					- cellIndex(box[Geodesy.BOX_MIN_LONGITUDE], false, level);
+			if (latitudeCells <= 1 && longitudeCells <= 1) {
+				break;
+			}
+			--level;
+		}
+		return level;
+	}
+
+	// first record with a key >= key
+	private static int lowerBound(MappedByteBuffer buffer, int count, long key) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (buffer.getLong(HEADER_SIZE + middle * RECORD_SIZE) < key) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static String readName(MappedByteBuffer buffer, int nameOffset) {
+		int offset = mNamesOffset + nameOffset;
+		if (offset < 0 || offset + 2 > buffer.limit()) {
+			return null;
+		}
+		int length = buffer.getShort(offset) & 0xffff;
+		if (offset + 2 + length > buffer.limit()) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			bytes[i] = buffer.get(offset + 2 + i);
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// KEY_BITS of the coordinate scaled over its range, taken to level bits.
+	// Longitudes past the antimeridian are wrapped.
+	static long cellIndex(int degreesE6, boolean latitude, int level) {
+		long range = latitude ? 180000000L : 360000000L;
+		long value = (long) degreesE6 + range / 2;
+		if (!latitude) {
+			value = ((value % range) + range) % range;
+		} else if (value >= range) {
+			value = range - 1;
+		}
+		long scaled = (value << KEY_BITS) / range;
+		return scaled >> (KEY_BITS - level);
+	}
+
+	// longitude bit first at each level, as in a geohash
+	static long interleave(long latitudeBits, long longitudeBits) {
+		long key = 0;
+		for (int i = KEY_BITS - 1; i >= 0; --i) {
+			key = (key << 1) | ((longitudeBits >> i) & 1);
+			key = (key << 1) | ((latitudeBits >> i) & 1);
+		}
+		return key;
+	}
+
+	public static long getKey(int latitudeE6, int longitudeE6) {
+		return interleave(cellIndex(latitudeE6, true, KEY_BITS), cellIndex(
+				longitudeE6, false, KEY_BITS));
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			long lookups = mHitCount + mMissCount;
+			Log.d(TAG, "hits: " + mHitCount + " misses: " + mMissCount
+					+ " lookup: "
+					+ (lookups == 0 ? 0 : mLookupTime / lookups / 1000) + "us");
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package com.chaos.taxi.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashSet;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+// Persistent connection that streams refresh messages as they happen. Frames
+// are single-line json objects in both directions. After a reconnect the
+// server resumes after the last message id we have seen. Only used when the
+// login response names a push port, and given up after MAX_CONNECT_FAILURES
+// failed connects in a row; the refresh thread polls while it is down.
+public class PushChannel {
+	private static final String TAG = "PushChannel";
+
+	static final int MAX_CONNECT_FAILURES = 5;
+	// Time in ms
+	static final int CONNECT_TIMEOUT = 10 * 1000;
+	static final int HEARTBEAT_INTERVAL = 30 * 1000;
+	static final int MIN_RECONNECT_DELAY = 1000;
+	static final int MAX_RECONNECT_DELAY = 60 * 1000;
+	// messages of the channel and of refresh may interleave out of order
+	// by about this many
+	static final int SEEN_MESSAGE_IDS = 256;
+
+	static final String HELLO = "hello";
+	static final String ACK = "ack";
+	static final String PING = "ping";
+	static final String PONG = "pong";
+
+	static Object mLock = new Object();
+	static boolean mStop = true;
+	static Thread mChannelThread = null;
+	static String mHost = null;
+	static int mPort = 0;
+	static MessageListener mListener = null;
+	// also while connecting, so stop() can break the connect
+	static Socket mSocket = null;
+	static OutputStream mOutputStream = null;
+	static boolean mConnected = false;
+	// of this login session, the highest is where the server resumes
+	static long mLastMessageId = 0;
+	static LinkedHashSet<Long> mSeenMessageIds = new LinkedHashSet<Long>();
+
+	// gets the message frames on the channel thread
+	public interface MessageListener {
+		public void onMessage(JSONObject messageJson);
+	}
+
+	public static void start(String host, int port, MessageListener listener) {
+		synchronized (mLock) {
+			if (!mStop) {
+				return;
+			}
+			mStop = false;
+			mHost = host;
+			mPort = port;
+			mListener = listener;
+			mChannelThread = new ChannelThread();
+			mChannelThread.start();
+		}
+	}
+
+	public static void stop() {
+		Thread channelThread = null;
+		synchronized (mLock) {
+			if (mStop) {
+				return;
+			}
+			mStop = true;
+			channelThread = mChannelThread;
+			mChannelThread = null;
+			closeSocket();
+		}
+		channelThread.interrupt();
+		try {
+			channelThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static boolean isConnected() {
+		synchronized (mLock) {
+			return mConnected;
+		}
+	}
+
+	static long getLastMessageId() {
+		synchronized (mLock) {
+			return mLastMessageId;
+		}
+	}
+
+	// message ids are per login session, call on login and signout
+	public static void resetSession() {
+		synchronized (mLock) {
+			mLastMessageId = 0;
+			mSeenMessageIds.clear();
+		}
+	}
+
+	// false if the message already came through the channel or a refresh
+	static boolean markMessageSeen(JSONObject messageJson) {
+		long id = messageJson.optLong("id", -1);
+		if (id < 0) {
+			return true;
+		}
+		synchronized (mLock) {
+			if (!mSeenMessageIds.add(id)) {
+				return false;
+			}
+			if (mSeenMessageIds.size() > SEEN_MESSAGE_IDS) {
+				mSeenMessageIds.remove(mSeenMessageIds.iterator().next());
+			}
+			mLastMessageId = Math.max(mLastMessageId, id);
+			return true;
+		}
+	}
+
+	static class ChannelThread extends Thread {
+		public ChannelThread() {
+			super("PushChannel");
+		}
+
+		public void run() {
+			int reconnectDelay = MIN_RECONNECT_DELAY;
+			int failures = 0;
+			while (!isStopped()) {
+				if (connect()) {
+					reconnectDelay = MIN_RECONNECT_DELAY;
+					readFrames();
+				}
+				if (isConnected()) {
+					failures = 0;
+				} else {
+					++failures;
+				}
+				setConnected(false);
+				synchronized (mLock) {
+					closeSocket();
+				}
+				if (isStopped()) {
+					break;
+				}
+				if (failures >= MAX_CONNECT_FAILURES) {
+					Log.w(TAG, "give up push channel after " + failures
+							+ " failures, refresh takes over");
+					break;
+				}
+				Log.d(TAG, "reconnect in " + reconnectDelay + "ms");
+				try {
+					Thread.sleep(reconnectDelay);
+				} catch (InterruptedException e) {
+					Log.d(TAG, "reconnect wait interrupted");
+				}
+				reconnectDelay = Math.min(reconnectDelay * 2,
+						MAX_RECONNECT_DELAY);
+			}
+			Log.d(TAG, "stop push channel thread!");
+		}
+	}
+
+	private static boolean isStopped() {
+		synchronized (mLock) {
+			return mStop;
+		}
+	}
+
+	private static void setConnected(boolean connected) {
+		synchronized (mLock) {
+			if (mConnected == connected) {
+				return;
+			}
+			mConnected = connected;
+		}
+		Log.i(TAG, "push channel connected: " + connected);
+		// let the refresh thread take over or step back
+		RefreshScheduler.notifyStateChanged();
+	}
+
+	private static boolean connect() {
+		Socket socket = new Socket();
+		String host;
+		int port;
+		synchronized (mLock) {
+			if (mStop) {
+				return false;
+			}
+			mSocket = socket;
+			host = mHost;
+			port = mPort;
+		}
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(HEARTBEAT_INTERVAL);
+			socket.setKeepAlive(true);
+			synchronized (mLock) {
+				if (mStop || mSocket != socket) {
+					socket.close();
+					return false;
+				}
+				mOutputStream = socket.getOutputStream();
+			}
+
+			JSONObject helloJson = new JSONObject();
+			helloJson.put("type", HELLO);
+			helloJson.put("cookie", HttpConnectionManager.getTransport()
+					.getCookieHeader());
+			helloJson.put("last_id", getLastMessageId());
+			return sendFrame(helloJson);
+		} catch (IOException e) {
+			Log.w(TAG, "cannot connect push channel: " + e.getMessage());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	private static void readFrames() {
+		BufferedReader reader = null;
+		try {
+			synchronized (mLock) {
+				if (mSocket == null) {
+					return;
+				}
+				reader = new BufferedReader(new InputStreamReader(
+						mSocket.getInputStream(), "UTF-8"));
+			}
+			boolean pingSent = false;
+			while (!isStopped()) {
+				String line = null;
+				try {
+					line = reader.readLine();
+				} catch (SocketTimeoutException e) {
+					if (pingSent) {
+						Log.w(TAG, "heartbeat lost!");
+						return;
+					}
+					pingSent = sendControlFrame(PING, -1);
+					continue;
+				}
+				if (line == null) {
+					Log.d(TAG, "push channel closed by server");
+					return;
+				}
+				pingSent = false;
+				if (line.length() == 0) {
+					continue;
+				}
+				handleFrame(line);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "push channel read error: " + e.getMessage());
+		}
+	}
+
+	private static void handleFrame(String frame) {
+		JSONObject frameJson = null;
+		try {
+			frameJson = new JSONObject(frame);
+		} catch (JSONException e) {
+			Log.e(TAG, "bad frame: " + frame);
+			return;
+		}
+		String type = frameJson.optString("type");
+		if (HELLO.equals(type)) {
+			if (frameJson.optInt("status", -1) != 0) {
+				Log.w(TAG, "push channel rejected: " + frame);
+				synchronized (mLock) {
+					closeSocket();
+				}
+				return;
+			}
+			setConnected(true);
+		} else if (PING.equals(type)) {
+			sendControlFrame(PONG, -1);
+		} else if (PONG.equals(type)) {
+			// heartbeat only
+		} else {
+			MessageListener listener;
+			synchronized (mLock) {
+				listener = mListener;
+			}
+			listener.onMessage(frameJson);
+			long id = frameJson.optLong("id", -1);
+			if (id >= 0) {
+				sendControlFrame(ACK, id);
+			}
+		}
+	}
+
+	private static boolean sendControlFrame(String type, long id) {
+		JSONObject frameJson = new JSONObject();
+		try {
+			frameJson.put("type", type);
+			if (id >= 0) {
+				frameJson.put("id", id);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return sendFrame(frameJson);
+	}
+
+	private static boolean sendFrame(JSONObject frameJson) {
+		synchronized (mLock) {
+			if (mOutputStream == null) {
+				return false;
+			}
+			try {
+				mOutputStream.write((frameJson.toString() + "\n")
+						.getBytes("UTF-8"));
+				mOutputStream.flush();
+				return true;
+			} catch (IOException e) {
+				Log.w(TAG, "cannot send frame: " + e.getMessage());
+				closeSocket();
+				return false;
+			}
+		}
+	}
+
+	// must hold mLock
+	private static void closeSocket() {
+		if (mSocket != null) {
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		mSocket = null;
+		mOutputStream = null;
+	}
+}
@@ -0,0 +1,96 @@
+package com.chaos.taxi.util;
+
+import android.util.Log;
+
+public class RefreshScheduler {
+	private static final String TAG = "RefreshScheduler";
+
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_CALLING = 1;
+	public static final int STATE_HAS_TAXI = 2;
+
+	// Time in ms
+	static final int CALLING_INTERVAL = 1000;
+	static final int HAS_TAXI_INTERVAL = 5000;
+	static final int IDLE_INTERVAL = 30000;
+	static final int MIN_INTERVAL = 1000;
+
+	// weight of the latest refresh in the message arrival rate
+	static final float ARRIVAL_RATE_WEIGHT = 0.3f;
+
+	static Object mLock = new Object();
+	static float mArrivalRate = 0; // messages per refresh
+	static int mLastState = STATE_IDLE;
+	// a change that came while no refresh was waiting, the next wait must
+	// not sleep through it
+	static boolean mStateChanged = false;
+
+	public static int getState() {
+		int state = RequestProcessor.getRefreshState();
+		synchronized (mLock) {
+			if (state != mLastState) {
+				Log.d(TAG, "refresh state changed: " + mLastState + " -> "
+						+ state);
+				mLastState = state;
+				// the old arrival rate says nothing about the new state
+				mArrivalRate = 0;
+			}
+		}
+		return state;
+	}
+
+	public static boolean canUseLongPoll(int state) {
+		// an idle passenger expects no messages, do not hold a connection
+		return state != STATE_IDLE;
+	}
+
+	public static long getRefreshInterval(int state) {
+		long interval;
+		switch (state) {
+		case STATE_CALLING:
+			interval = CALLING_INTERVAL;
+			break;
+		case STATE_HAS_TAXI:
+			interval = HAS_TAXI_INTERVAL;
+			break;
+		default:
+			interval = IDLE_INTERVAL;
+			break;
+		}
+		synchronized (mLock) {
+			// poll faster while messages keep coming
+			interval = (long) (interval / (1 + 2 * mArrivalRate));
+		}
+		return interval < MIN_INTERVAL ? MIN_INTERVAL : interval;
+	}
+
+	public static void onRefreshed(int messageCount) {
+		synchronized (mLock) {
+			mArrivalRate = ARRIVAL_RATE_WEIGHT * messageCount
+					+ (1 - ARRIVAL_RATE_WEIGHT) * mArrivalRate;
+		}
+	}
+
+	public static void waitForNextRefresh(long interval) {
+		synchronized (mLock) {
+			long now = System.currentTimeMillis();
+			long deadline = now + interval;
+			try {
+				while (!mStateChanged && now < deadline) {
+					mLock.wait(deadline - now);
+					now = System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			mStateChanged = false;
+		}
+	}
+
+	public static void notifyStateChanged() {
+		synchronized (mLock) {
+			mStateChanged = true;
+			mLock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,7 @@
+package com.chaos.taxi.util;
+
+// Called on the main looper with the result of an async request, unless the
+// request was canceled first.
+public interface RequestCallback<T> {
+	public void onResult(T result);
+}
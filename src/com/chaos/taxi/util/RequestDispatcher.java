@@ -0,0 +1,150 @@
+package com.chaos.taxi.util;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+import com.chaos.taxi.util.RequestManager.Request;
+
+public class RequestDispatcher {
+	private static final String TAG = "RequestDispatcher";
+
+	public static final int LANE_INTERACTIVE = 0;
+	public static final int LANE_REALTIME = 1;
+	public static final int LANE_BACKGROUND = 2;
+	public static final int LANE_COUNT = 3;
+
+	static final String[] LANE_NAMES = { "interactive", "realtime",
+			"background" };
+	// call/cancel and location updates must reach the server in order, so
+	// those lanes get a single worker. Refresh has its own RefreshThread.
+	static final int[] LANE_WORKERS = { 1, 1, 2 };
+	static final int WAIT_REQUEST_TIMEOUT = 5000;
+
+	static Object mLock = new Object();
+	static boolean mStop = true;
+	static ArrayList<Thread> mWorkers = new ArrayList<Thread>();
+
+	// queue wait time per lane, in ms
+	static long[] mWaitCount = new long[LANE_COUNT];
+	static long[] mWaitTotal = new long[LANE_COUNT];
+	static long[] mWaitMax = new long[LANE_COUNT];
+
+	public static int getLane(String requestType) {
+		if (requestType.equals(RequestManager.CALL_TAXI_REQUEST)
+				|| requestType.equals(RequestManager.CANCEL_CALL_TAXI_REQUEST)) {
+			return LANE_INTERACTIVE;
+		} else if (requestType.equals(RequestManager.LOCATION_UPDATE_REQUEST)
+				|| requestType.equals(RequestManager.LOCATION_STREAM_REQUEST)
+				|| requestType.equals(RequestManager.REFRESH_REQUEST)
+				|| requestType.equals(RequestManager.FIND_TAXI_REQUEST)) {
+			return LANE_REALTIME;
+		}
+		return LANE_BACKGROUND;
+	}
+
+	public static void start() {
+		synchronized (mLock) {
+			if (!mStop) {
+				return;
+			}
+			mStop = false;
+			for (int lane = 0; lane < LANE_COUNT; ++lane) {
+				for (int i = 0; i < LANE_WORKERS[lane]; ++i) {
+					Thread worker = new LaneWorker(lane, i);
+					mWorkers.add(worker);
+					worker.start();
+				}
+			}
+		}
+	}
+
+	public static void stop() {
+		ArrayList<Thread> workers = null;
+		synchronized (mLock) {
+			if (mStop) {
+				return;
+			}
+			mStop = true;
+			workers = new ArrayList<Thread>(mWorkers);
+			mWorkers.clear();
+		}
+		RequestManager.wakeUp();
+		for (int i = 0; i < workers.size(); ++i) {
+			try {
+				workers.get(i).join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		dumpStats();
+	}
+
+	private static boolean isStopped() {
+		synchronized (mLock) {
+			return mStop;
+		}
+	}
+
+	static class LaneWorker extends Thread {
+		int mLane;
+
+		public LaneWorker(int lane, int index) {
+			super("LaneWorker-" + LANE_NAMES[lane] + "-" + index);
+			mLane = lane;
+		}
+
+		public void run() {
+			while (!isStopped()) {
+				ArrayList<Request> requests = RequestManager
+						.popRequests(mLane);
+				if (requests.size() == 0) {
+					RequestManager.waitForRequest(mLane, WAIT_REQUEST_TIMEOUT);
+					continue;
+				}
+
+				long now = System.currentTimeMillis();
+				for (int i = 0; i < requests.size(); ++i) {
+					recordQueueWait(mLane, now - requests.get(i).mEnqueueTime);
+				}
+				RequestProcessor.sendRequestsToServer(requests);
+			}
+			Log.d(TAG, getName() + " stopped!");
+		}
+	}
+
+	static void recordQueueWait(int lane, long waitTime) {
+		synchronized (mLock) {
+			++mWaitCount[lane];
+			mWaitTotal[lane] += waitTime;
+			if (waitTime > mWaitMax[lane]) {
+				mWaitMax[lane] = waitTime;
+			}
+		}
+	}
+
+	public static long getAverageQueueWait(int lane) {
+		synchronized (mLock) {
+			return mWaitCount[lane] == 0 ? 0 : mWaitTotal[lane]
+					/ mWaitCount[lane];
+		}
+	}
+
+	public static long getMaxQueueWait(int lane) {
+		synchronized (mLock) {
+			return mWaitMax[lane];
+		}
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			for (int lane = 0; lane < LANE_COUNT; ++lane) {
+				Log.d(TAG, LANE_NAMES[lane] + " requests: " + mWaitCount[lane]
+						+ " avg wait: "
+						+ (mWaitCount[lane] == 0 ? 0 : mWaitTotal[lane]
+								/ mWaitCount[lane]) + "ms max wait: "
+						+ mWaitMax[lane] + "ms");
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.chaos.taxi.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+// A blocking request running on a worker thread. Http requests made by the
+// task are attached to it, so cancel() aborts them while they are in flight.
+public class RequestFuture<T> implements Future<T>, Runnable {
+	private static final String TAG = "RequestFuture";
+
+	static Handler mMainHandler = new Handler(Looper.getMainLooper());
+	static ThreadLocal<RequestFuture<?>> mCurrentFuture = new ThreadLocal<RequestFuture<?>>();
+
+	Object mOwner;
+	Callable<T> mTask;
+	RequestCallback<T> mCallback;
+
+	Object mLock = new Object();
+	boolean mDone = false;
+	boolean mCanceled = false;
+	T mResult = null;
+	Exception mException = null;
+	ArrayList<HttpTransportRequest> mHttpRequests = new ArrayList<HttpTransportRequest>();
+
+	public RequestFuture(Object owner, Callable<T> task,
+			RequestCallback<T> callback) {
+		mOwner = owner;
+		mTask = task;
+		mCallback = callback;
+	}
+
+	public Object getOwner() {
+		return mOwner;
+	}
+
+	public void run() {
+		synchronized (mLock) {
+			if (mCanceled) {
+				return;
+			}
+		}
+		T result = null;
+		Exception exception = null;
+		mCurrentFuture.set(this);
+		try {
+			result = mTask.call();
+		} catch (Exception e) {
+			Log.e(TAG, "async request fail: " + e.getMessage());
+			exception = e;
+		} finally {
+			mCurrentFuture.set(null);
+		}
+
+		synchronized (mLock) {
+			mHttpRequests.clear();
+			if (mCanceled) {
+				return;
+			}
+			mResult = result;
+			mException = exception;
+			mDone = true;
+			mLock.notifyAll();
+		}
+		RequestProcessor.onRequestFinished(this);
+		if (mCallback != null) {
+			mMainHandler.post(new Runnable() {
+				public void run() {
+					// canceled while the result was on its way
+					if (!isCancelled()) {
+						mCallback.onResult(mResult);
+					}
+				}
+			});
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		ArrayList<HttpTransportRequest> httpRequests;
+		synchronized (mLock) {
+			if (mDone || mCanceled) {
+				return false;
+			}
+			mCanceled = true;
+			httpRequests = new ArrayList<HttpTransportRequest>(mHttpRequests);
+			mHttpRequests.clear();
+			mLock.notifyAll();
+		}
+		for (int i = 0; i < httpRequests.size(); ++i) {
+			httpRequests.get(i).abort();
+		}
+		RequestProcessor.onRequestFinished(this);
+		return true;
+	}
+
+	public boolean isCancelled() {
+		synchronized (mLock) {
+			return mCanceled;
+		}
+	}
+
+	public boolean isDone() {
+		synchronized (mLock) {
+			return mDone || mCanceled;
+		}
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		synchronized (mLock) {
+			while (!mDone && !mCanceled) {
+				mLock.wait();
+			}
+			return getResult();
+		}
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		synchronized (mLock) {
+			while (!mDone && !mCanceled) {
+				long waitTime = deadline - System.currentTimeMillis();
+				if (waitTime <= 0) {
+					throw new TimeoutException();
+				}
+				mLock.wait(waitTime);
+			}
+			return getResult();
+		}
+	}
+
+	// must hold mLock
+	private T getResult() throws ExecutionException {
+		if (mCanceled) {
+			throw new CancellationException();
+		}
+		if (mException != null) {
+			throw new ExecutionException(mException);
+		}
+		return mResult;
+	}
+
+	// called by the transport user before executing, aborts the request at
+	// once if the future running on this thread is already canceled
+	static void attach(HttpTransportRequest httpRequest) {
+		RequestFuture<?> future = mCurrentFuture.get();
+		if (future == null) {
+			return;
+		}
+		boolean canceled;
+		synchronized (future.mLock) {
+			canceled = future.mCanceled;
+			if (!canceled) {
+				future.mHttpRequests.add(httpRequest);
+			}
+		}
+		if (canceled) {
+			httpRequest.abort();
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package com.chaos.taxi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import com.chaos.taxi.util.RequestManager.Request;
+
+// Append-only journal of durable requests in a memory-mapped file. Each
+// record is [int length][byte op][long id][payload], the length is written
+// last so a half written record is never read back. Mapped pages belong to
+// the kernel, so records survive the process being killed without an fsync.
+public class RequestJournal {
+	private static final String TAG = "RequestJournal";
+
+	static final String JOURNAL_FILE = "request_journal";
+	static final int JOURNAL_SIZE = 256 * 1024;
+	static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+
+	static final byte OP_ENQUEUE = 1;
+	static final byte OP_ACK = 2;
+
+	// Time in ms, older entries are not replayed
+	static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+	static Object mLock = new Object();
+	static boolean mStop = true;
+	static Thread mWriterThread = null;
+	static File mDir = null;
+	// the lane queues outlive a stop, so only the first open of the process
+	// replays, later opens would queue the same requests again
+	static boolean mReplayed = false;
+	static long mNextId = System.currentTimeMillis() * 1000;
+	static ArrayList<Object[]> mPendingOps = new ArrayList<Object[]>();
+
+	// only touched by the writer thread
+	static RandomAccessFile mFile = null;
+	static MappedByteBuffer mBuffer = null;
+	static LinkedHashMap<Long, byte[]> mLiveRecords = new LinkedHashMap<Long, byte[]>();
+
+	// a call taxi or its cancel is not journaled, the call state it belongs
+	// to is gone with the process
+	public static boolean isDurable(String requestType) {
+		return requestType
+				.equals(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST)
+				|| requestType.equals(RequestManager.PUSH_GPSCODER_REQUEST);
+	}
+
+	public static void open(File dir) {
+		synchronized (mLock) {
+			if (!mStop) {
+				return;
+			}
+			mStop = false;
+			mDir = dir;
+			mWriterThread = new WriterThread();
+			mWriterThread.start();
+		}
+	}
+
+	public static void close() {
+		Thread writerThread = null;
+		synchronized (mLock) {
+			if (mStop) {
+				return;
+			}
+			mStop = true;
+			writerThread = mWriterThread;
+			mWriterThread = null;
+			mLock.notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// cheap enough for the UI thread, the record is written by WriterThread
+	public static void append(Request request) {
+		if (request.mJournalId >= 0 || !isDurable(request.mRequestType)) {
+			return;
+		}
+		synchronized (mLock) {
+			request.mJournalId = mNextId++;
+			mPendingOps.add(new Object[] { OP_ENQUEUE, request });
+			mLock.notifyAll();
+		}
+	}
+
+	public static void ack(Request request) {
+		if (request.mJournalId < 0) {
+			return;
+		}
+		synchronized (mLock) {
+			mPendingOps.add(new Object[] { OP_ACK, request });
+			mLock.notifyAll();
+		}
+	}
+
+	static class WriterThread extends Thread {
+		public WriterThread() {
+			super("RequestJournal");
+		}
+
+		public void run() {
+			ArrayList<Request> replayRequests = load();
+			synchronized (mLock) {
+				if (mReplayed) {
+					replayRequests.clear();
+				}
+				mReplayed = true;
+			}
+			for (int i = 0; i < replayRequests.size(); ++i) {
+				RequestManager.addRequest(replayRequests.get(i),
+						replayRequests.get(i).mData);
+			}
+
+			ArrayList<Object[]> ops = new ArrayList<Object[]>();
+			while (true) {
+				boolean stop = false;
+				synchronized (mLock) {
+					if (mPendingOps.size() == 0 && !mStop) {
+						try {
+							mLock.wait();
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+					ops.addAll(mPendingOps);
+					mPendingOps.clear();
+					stop = mStop;
+				}
+				for (int i = 0; i < ops.size(); ++i) {
+					Object[] op = ops.get(i);
+					write((Byte) op[0], (Request) op[1]);
+				}
+				ops.clear();
+				if (stop) {
+					break;
+				}
+			}
+			unmap();
+			Log.d(TAG, "stop journal writer thread!");
+		}
+	}
+
+	private static ArrayList<Request> load() {
+		ArrayList<Request> requests = new ArrayList<Request>();
+		if (!map(new File(mDir, JOURNAL_FILE))) {
+			return requests;
+		}
+
+		long maxId = -1;
+		while (mBuffer.remaining() >= RECORD_HEADER_SIZE) {
+			int start = mBuffer.position();
+			int length = mBuffer.getInt();
+			if (length < RECORD_HEADER_SIZE || start + length > JOURNAL_SIZE) {
+				mBuffer.position(start);
+				break;
+			}
+			byte op = mBuffer.get();
+			long id = mBuffer.getLong();
+			byte[] payload = new byte[length - RECORD_HEADER_SIZE];
+			mBuffer.get(payload);
+			maxId = Math.max(maxId, id);
+			if (op == OP_ENQUEUE) {
+				mLiveRecords.put(id, payload);
+			} else if (op == OP_ACK) {
+				mLiveRecords.remove(id);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		Iterator<Long> iter = mLiveRecords.keySet().iterator();
+		while (iter.hasNext()) {
+			Long id = iter.next();
+			Request request = decode(id, mLiveRecords.get(id));
+			if (request == null || !isDurable(request.mRequestType)
+					|| now - request.mRequestTime > MAX_AGE) {
+				iter.remove();
+				continue;
+			}
+			requests.add(request);
+		}
+		synchronized (mLock) {
+			mNextId = Math.max(mNextId, maxId + 1);
+		}
+		Log.i(TAG, "live " + requests.size() + " journaled requests");
+		// start from a file holding only what is replayed
+		compact();
+		return requests;
+	}
+
+	private static void write(byte op, Request request) {
+		if (mBuffer == null) {
+			return;
+		}
+		byte[] payload = null;
+		if (op == OP_ENQUEUE) {
+			payload = encode(request);
+			if (payload == null) {
+				return;
+			}
+			mLiveRecords.put(request.mJournalId, payload);
+		} else {
+			payload = mLiveRecords.remove(request.mJournalId);
+			if (payload == null) {
+				return;
+			}
+			payload = new byte[0];
+		}
+
+		if (mBuffer.remaining() < RECORD_HEADER_SIZE + payload.length) {
+			// the fresh file already holds this enqueue and leaves out the ack
+			compact();
+			return;
+		}
+		putRecord(op, request.mJournalId, payload);
+	}
+
+	private static void putRecord(byte op, long id, byte[] payload) {
+		int start = mBuffer.position();
+		mBuffer.position(start + 4);
+		mBuffer.put(op);
+		mBuffer.putLong(id);
+		mBuffer.put(payload);
+		int end = mBuffer.position();
+		mBuffer.putInt(start, end - start);
+		if (mBuffer.remaining() >= 4) {
+			// terminate the log in case the file holds older records here
+			mBuffer.putInt(end, 0);
+		}
+	}
+
+	// rewrite the live records into a fresh file, then swap it in
+	private static void compact() {
+		File file = new File(mDir, JOURNAL_FILE);
+		File tmpFile = new File(mDir, JOURNAL_FILE + ".tmp");
+		unmap();
+		tmpFile.delete();
+		if (!map(tmpFile)) {
+			map(file);
+			return;
+		}
+		Iterator<Long> iter = mLiveRecords.keySet().iterator();
+		while (iter.hasNext()) {
+			Long id = iter.next();
+			byte[] payload = mLiveRecords.get(id);
+			if (mBuffer.remaining() < RECORD_HEADER_SIZE + payload.length) {
+				Log.e(TAG, "journal is full, drop record " + id);
+				iter.remove();
+				continue;
+			}
+			putRecord(OP_ENQUEUE, id, payload);
+		}
+		mBuffer.force();
+		if (!tmpFile.renameTo(file)) {
+			Log.e(TAG, "cannot replace journal file");
+		}
+		Log.d(TAG, "journal compacted, live records: " + mLiveRecords.size());
+	}
+
+	private static boolean map(File file) {
+		try {
+			mFile = new RandomAccessFile(file, "rw");
+			if (mFile.length() != JOURNAL_SIZE) {
+				mFile.setLength(JOURNAL_SIZE);
+			}
+			mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, JOURNAL_SIZE);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "cannot map journal file " + file);
+			e.printStackTrace();
+			unmap();
+			return false;
+		}
+	}
+
+	private static void unmap() {
+		if (mBuffer != null) {
+			mBuffer.force();
+			mBuffer = null;
+		}
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mFile = null;
+		}
+	}
+
+	private static byte[] encode(Request request) {
+		JSONObject recordJson = new JSONObject();
+		try {
+			recordJson.put("type", request.mRequestType);
+			recordJson.put("time", request.mRequestTime);
+			if (request.mRequestJson != null) {
+				recordJson.put("data", request.mRequestJson);
+			}
+			return recordJson.toString().getBytes("UTF-8");
+		} catch (JSONException e) {
+			e.printStackTrace();
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	private static Request decode(long id, byte[] payload) {
+		try {
+			JSONObject recordJson = new JSONObject(new String(payload, "UTF-8"));
+			Request request = new Request(recordJson.getString("type"),
+					recordJson.optJSONObject("data"));
+			request.mRequestTime = recordJson.getLong("time");
+			request.mJournalId = id;
+			if (request.mRequestJson != null
+					&& request.mRequestJson.has("key")) {
+				request.mData = (Long) request.mRequestJson.getLong("key");
+			}
+			return request;
+		} catch (JSONException e) {
+			Log.e(TAG, "bad journal record " + id);
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+}
@@ -1,7 +1,7 @@
 package com.chaos.taxi.util;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.UUID;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -20,6 +20,7 @@ public class RequestManager {
 	static final String CALL_TAXI_COMPLETE = "call-taxi-complete";
 	static final String FIND_TAXI_REQUEST = "find-taxi";
 	static final String LOCATION_UPDATE_REQUEST = "location-update";
+	static final String LOCATION_STREAM_REQUEST = "location-stream";
 	static final String REFRESH_REQUEST = "refresh-request";
 	final static String SIGNIN_REQUEST = "signin-request";
 	final static String REGISTER_REQUEST = "register-request";
@@ -30,11 +31,25 @@ public class RequestManager {
 	static final String GET_USER_EVALUATION_REQUEST = "get-user-evaluation";
 	static final String PUSH_HISTORY_EVALUATION_REQUEST = "push-history-evaluation";
 	final static String PUSH_GPSCODER_REQUEST = "push-gps-coder-request";
+	final static String BATCH_REQUEST = "batch-request";
 
-	static ArrayList<Request> mRequests = new ArrayList<Request>();
+	static Object mRequestsLock = new Object();
+	static ArrayList<RequestQueue> mLaneQueues = new ArrayList<RequestQueue>();
+
+	static {
+		for (int lane = 0; lane < RequestDispatcher.LANE_COUNT; ++lane) {
+			mLaneQueues.add(new RequestQueue());
+		}
+	}
 
 	public static class Request {
 		long mRequestTime;
+		long mEnqueueTime;
+		long mJournalId = -1;
+		int mAttempts = 0;
+		int mFailure = RetryPolicy.FAILURE_NONE;
+		// of the last attempt, 0 if no reply was handled
+		int mStatusCode = 0;
 		String mRequestType;
 		JSONObject mRequestJson;
 		Object mData;
@@ -58,8 +73,8 @@ public class RequestManager {
 		}
 		JSONObject jsonObj = new JSONObject();
 		try {
-			jsonObj.put("latitude", point.getLatitudeE6() / 1000000.0);
-			jsonObj.put("longitude", point.getLongitudeE6() / 1000000.0);
+			jsonObj.put("latitude", Geodesy.fromE6(point.getLatitudeE6()));
+			jsonObj.put("longitude", Geodesy.fromE6(point.getLongitudeE6()));
 		} catch (JSONException e) {
 			e.printStackTrace();
 			return;
@@ -76,8 +91,8 @@ public class RequestManager {
 
 		JSONObject jsonObj = new JSONObject();
 		try {
-			jsonObj.put("latitude", userPoint.getLatitudeE6() / 1000000.0);
-			jsonObj.put("longitude", userPoint.getLongitudeE6() / 1000000.0);
+			jsonObj.put("latitude", Geodesy.fromE6(userPoint.getLatitudeE6()));
+			jsonObj.put("longitude", Geodesy.fromE6(userPoint.getLongitudeE6()));
 		} catch (JSONException e) {
 			e.printStackTrace();
 			return null;
@@ -87,22 +102,25 @@ public class RequestManager {
 	}
 
 	public static void addCallTaxiRequest(GeoPoint userPoint,
-			long callTaxiRequestKey, String taxiPhoneNumber) {
+			long callTaxiRequestKey, String callTaxiToken,
+			String taxiPhoneNumber) {
 		Log.d(TAG, "generateCallTaxiRequest, callTaxiRequestKey: "
 				+ callTaxiRequestKey + " taxiPhoneNumber: " + taxiPhoneNumber);
 		JSONObject jsonObj = new JSONObject();
 		try {
 			// jsonObj.put("type", CALL_TAXI_REQUEST);
 			jsonObj.put("key", callTaxiRequestKey);
+			// the server books a driver at most once per token
+			jsonObj.put("token", callTaxiToken);
 			if (taxiPhoneNumber != null) {
 				jsonObj.put("driver", taxiPhoneNumber);
 			}
 			JSONObject locationJson = new JSONObject();
 			if (userPoint != null) {
 				locationJson.put("latitude",
-						userPoint.getLatitudeE6() / 1000000.0);
+						Geodesy.fromE6(userPoint.getLatitudeE6()));
 				locationJson.put("longitude",
-						userPoint.getLongitudeE6() / 1000000.0);
+						Geodesy.fromE6(userPoint.getLongitudeE6()));
 			} else {
 				Log.w(TAG, "CallTaxi: userPoint is still null!");
 			}
@@ -112,16 +130,22 @@ public class RequestManager {
 			return;
 		}
 		Request request = new Request(CALL_TAXI_REQUEST, jsonObj);
-		request.mData = (Long) callTaxiRequestKey;
-		addRequest(request);
+		addRequest(request, (Long) callTaxiRequestKey);
 		return;
 	}
 
-	public static Request generateCancelCallTaxiRequest(long callTaxiRequestKey) {
+	public static String generateCallTaxiToken() {
+		return UUID.randomUUID().toString();
+	}
+
+	public static Request generateCancelCallTaxiRequest(
+			long callTaxiRequestKey, String callTaxiToken) {
 		JSONObject jsonObj = new JSONObject();
 		try {
 			// jsonObj.put("type", CANCEL_CALL_TAXI_REQUEST);
 			jsonObj.put("key", callTaxiRequestKey);
+			jsonObj.put("token", generateCallTaxiToken());
+			jsonObj.put("call_token", callTaxiToken);
 		} catch (JSONException e) {
 			e.printStackTrace();
 			return null;
@@ -138,18 +162,70 @@ public class RequestManager {
 		}
 
 		request.mData = data;
-		synchronized (mRequests) {
-			for (int i = 0; i < mRequests.size(); ++i) {
-				if (mRequests.get(i).mRequestType.equals(request.mRequestType)) {
-					mRequests.set(i, request);
+		request.mEnqueueTime = System.currentTimeMillis();
+		RequestJournal.append(request);
+		Request replaced = null;
+		synchronized (mRequestsLock) {
+			replaced = mLaneQueues.get(
+					RequestDispatcher.getLane(request.mRequestType)).add(
+					request);
+			mRequestsLock.notifyAll();
+		}
+		if (replaced != null) {
+			Log.d(TAG, "coalesced pending " + request.mRequestType);
+			RequestJournal.ack(replaced);
+		}
+	}
+
+	// queued under one lock, so a lane worker pops them all at once
+	public static void addRequests(ArrayList<Request> requests) {
+		ArrayList<Request> replaced = new ArrayList<Request>();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < requests.size(); ++i) {
+			requests.get(i).mEnqueueTime = now;
+			RequestJournal.append(requests.get(i));
+		}
+		synchronized (mRequestsLock) {
+			for (int i = 0; i < requests.size(); ++i) {
+				Request request = requests.get(i);
+				Request old = mLaneQueues.get(
+						RequestDispatcher.getLane(request.mRequestType)).add(
+						request);
+				if (old != null) {
+					replaced.add(old);
 				}
 			}
-			mRequests.add(request);
+			mRequestsLock.notifyAll();
+		}
+		for (int i = 0; i < replaced.size(); ++i) {
+			Log.d(TAG, "coalesced pending " + replaced.get(i).mRequestType);
+			RequestJournal.ack(replaced.get(i));
 		}
 	}
 
 	public static void addRequest(Request request) {
-		addRequest(request, null);
+		addRequest(request, request == null ? null : request.mData);
+	}
+
+	// put a failed request back, unless a newer one of a coalescible type
+	// is already waiting
+	static void retryRequest(Request request) {
+		boolean stale = false;
+		synchronized (mRequestsLock) {
+			RequestQueue queue = mLaneQueues.get(RequestDispatcher
+					.getLane(request.mRequestType));
+			if (RequestQueue.isCoalescible(request.mRequestType)
+					&& queue.hasType(request.mRequestType)) {
+				stale = true;
+			} else {
+				queue.add(request);
+				mRequestsLock.notifyAll();
+			}
+		}
+		if (stale) {
+			Log.d(TAG, "drop stale retry of " + request.mRequestType);
+			RequestJournal.ack(request);
+		}
 	}
 
 	public static boolean removeRequest(String requestType) {
@@ -157,32 +233,63 @@ public class RequestManager {
 		if (requestType == null) {
 			return false;
 		}
-		synchronized (mRequests) {
-			Iterator<Request> iter = mRequests.iterator();
-			while (iter.hasNext()) {
-				if (requestType.equals(iter.next().mRequestType)) {
-					mRequests.remove(iter);
-					return true;
-				}
-			}
+		ArrayList<Request> removed = new ArrayList<Request>();
+		synchronized (mRequestsLock) {
+			mLaneQueues.get(RequestDispatcher.getLane(requestType))
+					.removeByType(requestType, removed);
+		}
+		for (int i = 0; i < removed.size(); ++i) {
+			RequestJournal.ack(removed.get(i));
+		}
+		return removed.size() > 0;
+	}
+
+	public static boolean removeRequest(String requestType, long key) {
+		Log.i(TAG, "removeRequst: " + requestType + " key: " + key);
+		if (requestType == null) {
 			return false;
 		}
+		Request removed = null;
+		synchronized (mRequestsLock) {
+			removed = mLaneQueues.get(RequestDispatcher.getLane(requestType))
+					.removeByKey(requestType, key);
+		}
+		if (removed == null) {
+			return false;
+		}
+		RequestJournal.ack(removed);
+		return true;
 	}
 
-	public static Request popRequest() {
-		synchronized (mRequests) {
-			if (mRequests.size() > 0) {
-				Request request = mRequests.get(0);
-				mRequests.remove(0);
-				return request;
-			} else {
-				return null;
+	public static void waitForRequest(int lane, long timeout) {
+		synchronized (mRequestsLock) {
+			if (!mLaneQueues.get(lane).isEmpty()) {
+				return;
+			}
+			try {
+				mRequestsLock.wait(timeout);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 		}
 	}
 
-	public static void addPushGpscoderRequest(String addrStr, double latitude,
-			double longitude) {
+	public static void wakeUp() {
+		synchronized (mRequestsLock) {
+			mRequestsLock.notifyAll();
+		}
+	}
+
+	public static ArrayList<Request> popRequests(int lane) {
+		ArrayList<Request> requests = new ArrayList<Request>();
+		synchronized (mRequestsLock) {
+			mLaneQueues.get(lane).drainTo(requests);
+		}
+		return requests;
+	}
+
+	public static Request generatePushGpscoderRequest(String addrStr,
+			double latitude, double longitude) {
 		JSONObject jsonObj = new JSONObject();
 		try {
 			jsonObj.put("latitude", latitude);
@@ -190,10 +297,9 @@ public class RequestManager {
 			jsonObj.put("name", addrStr);
 		} catch (JSONException e) {
 			e.printStackTrace();
-			return;
+			return null;
 		}
-		Request request = new Request(PUSH_GPSCODER_REQUEST, jsonObj);
-		addRequest(request);
+		return new Request(PUSH_GPSCODER_REQUEST, jsonObj);
 	}
 
 	public static Request generateQueryHistoryRequest(long startTimeStamp,
@@ -1,30 +1,24 @@
 package com.chaos.taxi.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.chaos.taxi.util.HttpTransport.HttpTransportResponse;
 import com.chaos.taxi.util.RequestManager.Request;
 import com.chaos.taxi.util.TaxiHistorySqlHelper.HistoryItem;
 import com.chaos.taxi.activity.CallTaxiCompleteActivity;
@@ -41,7 +35,6 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.location.Location;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -54,9 +47,13 @@ public class RequestProcessor {
 	public static final String LOGIN_SUCCESS = "LOGIN_SUCCESS";
 	public static final String REGISTER_SUCCESS = "REGISTER_SUCESS";
 	static final String HTTPSERVER = "http://taxi.no.de";
+	static final String REFRESH_PATH = "/passenger/refresh";
+	static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
 
-	static final int CALLSERVER_INTERVAL = 5000;
-	static final float LOCATION_UPDATE_DISTANCE = (float) 5.0; // 5 meters
+	// the server holds a long-poll refresh open until messages arrive or the
+	// wait time passes, keep it well below HttpConnectionManager.READ_TIMEOUT
+	static final int LONG_POLL_WAIT_TIME = 30 * 1000;
+	static final int LONG_POLL_PROBE_INTERVAL = 10 * 60 * 1000;
 	public static final int REQUEST_TIMEOUT_THRESHOLD = 30000;
 
 	public static final Integer CALL_TAXI_STATUS_CALLING = 100;
@@ -67,9 +64,23 @@ public class RequestProcessor {
 	public static final Integer CALL_TAXI_STATUS_CANCELED = 600;
 
 	static boolean mStopSendRequestThread = true;
-	static Thread mSendRequestThread = null;
+	static Thread mRefreshThread = null;
+
+	static Object mRefreshLock = new Object();
+	static HttpTransportRequest mRefreshHttpRequest = null;
+	static boolean mLongPollSupported = true;
+	static long mLongPollProbeTime = 0;
+	static boolean mUsePushChannel = true;
+
+	static Object mBatchLock = new Object();
+	static boolean mBatchSupported = true;
 	static MyHandler mHandler = new MyHandler();
 
+	static Object mAsyncLock = new Object();
+	static ArrayList<RequestFuture<?>> mPendingFutures = new ArrayList<RequestFuture<?>>();
+	// queued request -> { owner, callback }, told how its first send went
+	static HashMap<Request, Object[]> mRequestCallbacks = new HashMap<Request, Object[]>();
+
 	static final Integer LOCATE_TAXI = 10;
 	static final Integer REMOVE_MY_TAXI = 20;
 	static final Integer CALL_TAXI_SUCCEED = 30;
@@ -90,36 +101,12 @@ public class RequestProcessor {
 	static TaxiOverlayItemParam mMyTaxiParam = null;
 	static boolean sHasTaxi = false;
 	static long mCallTaxiRequestKey = System.currentTimeMillis();
+	static String mCallTaxiToken = null;
 	static HashMap<Long, Integer> mCallTaxiRequestStatusMap = new HashMap<Long, Integer>();
 	static HashMap<Long, String> mCallTaxiPhoneNumberMap = new HashMap<Long, String>();
 
-	static final int MAX_TOTAL_CONNECTIONS = 100;
-	static final int MAX_ROUTE_CONNECTIONS = 100;
-	static final int WAIT_TIMEOUT = 10 * 1000; // 10 seconds
-	static final int READ_TIMEOUT = 60 * 1000; // 60 seconds
-	static final int CONNECT_TIMEOUT = 10 * 1000; // 10 seconds
-	static DefaultHttpClient mHttpClient = null;
-
-	static {
-		BasicHttpParams httpParams = new BasicHttpParams();
-		ConnManagerParams.setMaxTotalConnections(httpParams,
-				MAX_TOTAL_CONNECTIONS);
-		ConnManagerParams.setTimeout(httpParams, WAIT_TIMEOUT);
-		ConnPerRouteBean connPerRoute = new ConnPerRouteBean(
-				MAX_ROUTE_CONNECTIONS);
-		ConnManagerParams.setMaxConnectionsPerRoute(httpParams, connPerRoute);
-		HttpConnectionParams.setConnectionTimeout(httpParams, CONNECT_TIMEOUT);
-		HttpConnectionParams.setSoTimeout(httpParams, READ_TIMEOUT);
-
-		SchemeRegistry registry = new SchemeRegistry();
-		registry.register(new Scheme("http", PlainSocketFactory
-				.getSocketFactory(), 80));
-		registry.register(new Scheme("https", SSLSocketFactory
-				.getSocketFactory(), 443));
-
-		mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(
-				httpParams, registry), httpParams);
-	}
+	static DefaultHttpClient mHttpClient = HttpConnectionManager
+			.createHttpClient();
 
 	static class MyHandler extends Handler {
 		MyHandler() {
@@ -145,10 +132,16 @@ public class RequestProcessor {
 			TaxiMapView mapView) {
 		mContext = context;
 		mMapView = mapView;
+		HttpConnectionManager.configureTransport(context);
+		GeocodeCache.open(context);
+		OfflineGeocoder.install(context);
 	}
 
 	public static void initRequestProcessor(Activity context) {
 		mContext = context;
+		HttpConnectionManager.configureTransport(context);
+		GeocodeCache.open(context);
+		OfflineGeocoder.install(context);
 	}
 
 	public static void setUserGeoPoint(GeoPoint point) {
@@ -156,18 +149,29 @@ public class RequestProcessor {
 			Log.d(TAG, "setUserGeoPoint: point is null!");
 			return;
 		}
-		GeoPoint lastPoint = null;
 		synchronized (mUserGeoPointLock) {
-			lastPoint = mUserGeoPoint;
 			mUserGeoPoint = point;
 		}
-		if (lastPoint != null) {
-			Location last = TaxiUtil.geoPointToLocation(lastPoint);
-			Location current = TaxiUtil.geoPointToLocation(point);
-			if (last.distanceTo(current) >= LOCATION_UPDATE_DISTANCE) {
-				RequestManager.addLocationUpdateRequest(point);
-			}
+		int[] fix = LocationPredictor.getFixToSend(point.getLatitudeE6(),
+				point.getLongitudeE6(), getRefreshState());
+		if (fix == null) {
+			return;
+		}
+		if (fix[0] != point.getLatitudeE6()
+				|| fix[1] != point.getLongitudeE6()) {
+			point = new GeoPoint(fix[0], fix[1]);
+		}
+		sendUserLocation(point);
+	}
+
+	// during a ride the track is streamed in batches, otherwise the server
+	// wants each fix at once to find taxis and pass it to the driver
+	private static void sendUserLocation(GeoPoint point) {
+		if (hasTaxi() && LocationStream.isEnabled()) {
+			LocationStream.start();
+			LocationStream.addFix(point);
 		} else {
+			LocationStream.stop();
 			RequestManager.addLocationUpdateRequest(point);
 		}
 	}
@@ -217,52 +221,98 @@ public class RequestProcessor {
 		}
 	}
 
-	public static void sendFindTaxiRequest() {
-		GeoPoint userPoint = getUserGeoPoint();
+	public static RequestFuture<ArrayList<TaxiOverlayItemParam>> sendFindTaxiRequest() {
+		final GeoPoint userPoint = getUserGeoPoint();
 		if (userPoint == null) {
 			Log.d(TAG, "sendFindTaxiRequest: no user location!");
 			showToastText("Still waiting for locate...");
+			return null;
+		}
+		final int zoomLevel;
+		synchronized (mMapViewLock) {
+			zoomLevel = mMapView.getZoomLevel();
+		}
+		ArrayList<TaxiOverlayItemParam> cached = NearbyTaxiCache.getFresh(
+				userPoint, zoomLevel);
+		if (cached != null) {
+			onFindTaxiResult(cached);
+			return null;
+		}
+		return submit(mContext,
+				new Callable<ArrayList<TaxiOverlayItemParam>>() {
+					public ArrayList<TaxiOverlayItemParam> call() {
+						ArrayList<TaxiOverlayItemParam> taxis = queryNearbyTaxis(
+								userPoint, false);
+						if (taxis != null) {
+							NearbyTaxiCache.put(userPoint, zoomLevel, taxis);
+						}
+						return taxis;
+					}
+				}, new RequestCallback<ArrayList<TaxiOverlayItemParam>>() {
+					public void onResult(ArrayList<TaxiOverlayItemParam> taxis) {
+						if (taxis != null) {
+							onFindTaxiResult(taxis);
+						}
+					}
+				});
+	}
+
+	private static void onFindTaxiResult(ArrayList<TaxiOverlayItemParam> taxis) {
+		if (taxis.size() == 0) {
+			showToastText("No nearby taxi found!");
+		}
+		showAroundTaxis(taxis);
+	}
+
+	// replaces the around taxis on the map, call on the main looper
+	static void showAroundTaxis(ArrayList<TaxiOverlayItemParam> taxis) {
+		if (hasTaxi()) {
 			return;
 		}
 		synchronized (mMapViewLock) {
-			mMapView.removeAroundOverlay();
+			if (mMapView == null) {
+				return;
+			}
+			mMapView.updateAroundTaxiOverlay(taxis);
 		}
+	}
+
+	// a prefetch is silent, nobody asked for it
+	static ArrayList<TaxiOverlayItemParam> queryNearbyTaxis(
+			GeoPoint userPoint, boolean silence) {
 		Pair<Integer, JSONObject> httpRet = sendRequestToServer(
-				RequestManager.generateFindTaxiRequest(userPoint), false);
+				RequestManager.generateFindTaxiRequest(userPoint), silence);
 		if (httpRet == null) {
-			return;
+			return null;
 		}
 		if (httpRet.second == null) {
 			Log.wtf(TAG, "find taxi response str is null!");
-			showToastText("FindTaxiFail! Server Response Error!");
-			return;
+			if (!silence) {
+				showToastText("FindTaxiFail! Server Response Error!");
+			}
+			return null;
 		}
+		ArrayList<TaxiOverlayItemParam> params = new ArrayList<TaxiOverlayItemParam>();
 		try {
 			JSONArray taxis = httpRet.second.getJSONArray("taxis");
 			if (taxis != null) {
-				if (taxis.length() == 0) {
-					showToastText("No nearby taxi found!");
-					return;
-				}
 				Log.d(TAG, "has taxis! " + taxis.length());
 				for (int i = 0; i < taxis.length(); ++i) {
 					JSONObject taxiInfo = taxis.getJSONObject(i);
 					GeoPoint point = new GeoPoint(
-							(int) (taxiInfo.getDouble("latitude") * 1000000),
-							(int) (taxiInfo.getDouble("longitude") * 1000000));
+							Geodesy.toE6(taxiInfo.getDouble("latitude")),
+							Geodesy.toE6(taxiInfo.getDouble("longitude")));
 					String carNumber = taxiInfo.getString("car_number");
 					String phoneNumber = taxiInfo.getString("phone_number");
 					String nickName = taxiInfo.getString("nickname");
-					TaxiOverlayItemParam param = new TaxiOverlayItemParam(
-							point, carNumber, phoneNumber, nickName);
-					synchronized (mMapViewLock) {
-						mMapView.addAroundTaxiOverlay(param);
-					}
+					params.add(new TaxiOverlayItemParam(point, carNumber,
+							phoneNumber, nickName));
 				}
 			}
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
+		return params;
 	}
 
 	public static void cancelCallTaxiRequest() {
@@ -274,30 +324,34 @@ public class RequestProcessor {
 			}
 			sHasTaxi = false;
 			mMyTaxiParam = null;
-			if (!RequestManager.removeRequest(RequestManager.CALL_TAXI_REQUEST))
-				request = RequestManager
-						.generateCancelCallTaxiRequest(mCallTaxiRequestKey);
+			if (!RequestManager.removeRequest(RequestManager.CALL_TAXI_REQUEST,
+					mCallTaxiRequestKey) && mCallTaxiToken != null)
+				request = RequestManager.generateCancelCallTaxiRequest(
+						mCallTaxiRequestKey, mCallTaxiToken);
+			// replies for the canceled key no longer match
 			++mCallTaxiRequestKey;
+			mCallTaxiToken = null;
 		}
+		RefreshScheduler.notifyStateChanged();
 		if (request != null) {
-			final Request req = request;
-			new Thread(new Runnable() {
-				public void run() {
-					while (true) {
-						Pair<Integer, JSONObject> ret = sendRequestToServer(
-								req, false);
-						if (ret != null) {
-							return;
-						} else {
-							Log.d(TAG, "cancel request fail!");
-							return;
-						}
-					}
-				}
-			}).start();
+			// goes out on the interactive lane and is retried on failure
+			RequestManager.addRequest(request, request.mData);
 		}
 	}
 
+	// a call canceled or replaced while it waited for its retry stays dropped;
+	// checked under mCallTaxiLock, so a cancel either sees it queued or
+	// bumped the key first
+	static void retryCallTaxiRequest(Request request) {
+		synchronized (mCallTaxiLock) {
+			if (getCallTaxiRequestKey(request) == mCallTaxiRequestKey) {
+				RequestManager.retryRequest(request);
+				return;
+			}
+		}
+		Log.d(TAG, "drop retry of old call " + getCallTaxiRequestKey(request));
+	}
+
 	public static void callTaxi(String taxiPhoneNumber) {
 		RequestProcessor.mCallTaxiFailMessage = null;
 		long requestKey = -1;
@@ -306,15 +360,17 @@ public class RequestProcessor {
 				requestKey = -1;
 			} else {
 				++mCallTaxiRequestKey;
+				mCallTaxiToken = RequestManager.generateCallTaxiToken();
 				mCallTaxiRequestStatusMap.put(mCallTaxiRequestKey,
 						CALL_TAXI_STATUS_CALLING);
 				RequestManager.addCallTaxiRequest(getUserGeoPoint(),
-						mCallTaxiRequestKey, taxiPhoneNumber);
+						mCallTaxiRequestKey, mCallTaxiToken, taxiPhoneNumber);
 				mCallTaxiPhoneNumberMap.put(mCallTaxiRequestKey,
 						taxiPhoneNumber);
 				requestKey = mCallTaxiRequestKey;
 			}
 		}
+		RefreshScheduler.notifyStateChanged();
 
 		if (requestKey != -1) {
 			Intent intent = new Intent(mContext, WaitTaxiActivity.class);
@@ -373,7 +429,7 @@ public class RequestProcessor {
 	public static int getCallTaxiStatus(long requestKey) {
 		int status = CALL_TAXI_STATUS_CALLING;
 		synchronized (mCallTaxiLock) {
-			if (requestKey < mCallTaxiRequestKey) {
+			if (requestKey != mCallTaxiRequestKey) {
 				return RequestProcessor.CALL_TAXI_STATUS_CANCELED;
 			}
 			if (mCallTaxiRequestStatusMap.containsKey(requestKey)) {
@@ -384,13 +440,16 @@ public class RequestProcessor {
 	}
 
 	public static void signout() {
-		HttpPost httpPost = new HttpPost(
+		HttpTransportRequest httpPost = new HttpTransportRequest(
+				HttpTransportRequest.POST,
 				TaxiUtil.getServerAddressByRequestType(RequestManager.SIGNOUT_REQUEST));
 		executeHttpRequest(httpPost, "Signout", null, false);
+		PushChannel.resetSession();
 	}
 
 	public static String login(String phoneNumber, String password) {
-		HttpPost httpPost = new HttpPost(
+		HttpTransportRequest httpPost = new HttpTransportRequest(
+				HttpTransportRequest.POST,
 				TaxiUtil.getServerAddressByRequestType(RequestManager.SIGNIN_REQUEST));
 		JSONObject signinJson = new JSONObject();
 		try {
@@ -406,6 +465,7 @@ public class RequestProcessor {
 				"Login", null, false);
 		if (executeRet != null) {
 			mLoginResponse = executeRet.second;
+			PushChannel.resetSession();
 			return LOGIN_SUCCESS;
 		} else {
 			return "LOGIN_FAIL";
@@ -416,19 +476,53 @@ public class RequestProcessor {
 		Log.d(TAG, "startSendRequestThread!");
 		if (mStopSendRequestThread) {
 			mStopSendRequestThread = false;
-			mSendRequestThread = new SendRequestThread();
-			mSendRequestThread.start();
+			synchronized (mBatchLock) {
+				mBatchSupported = true;
+			}
+			RequestJournal.open(mContext.getFilesDir());
+			HttpConnectionManager.start();
+			RetryPolicy.start();
+			RequestDispatcher.start();
+			mRefreshThread = new RefreshThread();
+			mRefreshThread.start();
+			// the server names the port if it runs the push service
+			int pushPort = mLoginResponse == null ? 0 : mLoginResponse
+					.optInt("push_port", 0);
+			if (mUsePushChannel && pushPort > 0) {
+				PushChannel.start(URI.create(HTTPSERVER).getHost(), pushPort,
+						new PushChannel.MessageListener() {
+							public void onMessage(JSONObject messageJson) {
+								handleRefreshMessageJson(messageJson);
+							}
+						});
+			}
 		}
 	}
 
 	public static void stopSendRequestThread() {
 		Log.d(TAG, "stopSendRequestThread!");
 		if (!mStopSendRequestThread) {
-			mStopSendRequestThread = true;
+			synchronized (mRefreshLock) {
+				mStopSendRequestThread = true;
+			}
+			abortRefreshRequest();
+			LocationStream.stop();
+			LocationPredictor.reset();
+			PushChannel.stop();
+			RequestDispatcher.stop();
+			RetryPolicy.stop();
+			RequestJournal.close();
+			HttpConnectionManager.stop();
+			BinaryCodec.dumpStats();
+			GeocodeCache.dumpStats();
+			GeocodePipeline.dumpStats();
+			OfflineGeocoder.dumpStats();
+			TaxiExecutors.dumpStats();
 			try {
-				if (mSendRequestThread != null) {
-					mSendRequestThread.join();
-					mSendRequestThread = null;
+				if (mRefreshThread != null) {
+					mRefreshThread.interrupt();
+					mRefreshThread.join();
+					mRefreshThread = null;
 				}
 			} catch (InterruptedException e) {
 				e.printStackTrace();
@@ -438,7 +532,8 @@ public class RequestProcessor {
 
 	public static String register(String nickName, String phoneNumber,
 			String password) {
-		HttpPost httpPost = new HttpPost(
+		HttpTransportRequest httpPost = new HttpTransportRequest(
+				HttpTransportRequest.POST,
 				TaxiUtil.getServerAddressByRequestType(RequestManager.REGISTER_REQUEST));
 		JSONObject registerJson = new JSONObject();
 		try {
@@ -460,102 +555,355 @@ public class RequestProcessor {
 		}
 	}
 
+	// runs task on the io threads and posts its result to callback on the
+	// main looper, the future is canceled by cancelRequests(owner)
+	public static <T> RequestFuture<T> submit(Object owner, Callable<T> task,
+			RequestCallback<T> callback) {
+		return submit(owner, task, callback, false);
+	}
+
+	// the future is canceled if the pool is full
+	public static <T> RequestFuture<T> submit(Object owner, Callable<T> task,
+			RequestCallback<T> callback, boolean silence) {
+		RequestFuture<T> future = new RequestFuture<T>(owner, task, callback);
+		synchronized (mAsyncLock) {
+			mPendingFutures.add(future);
+		}
+		try {
+			TaxiExecutors.io().execute(future);
+		} catch (RejectedExecutionException e) {
+			future.cancel(false);
+			if (!silence) {
+				showToastText("Too many requests, please retry later.");
+			}
+		}
+		return future;
+	}
+
+	// cancels the pending requests of owner and aborts those in flight, the
+	// activities call it when they stop
+	public static int cancelRequests(Object owner) {
+		ArrayList<RequestFuture<?>> futures = new ArrayList<RequestFuture<?>>();
+		synchronized (mAsyncLock) {
+			for (int i = 0; i < mPendingFutures.size(); ++i) {
+				if (mPendingFutures.get(i).getOwner() == owner) {
+					futures.add(mPendingFutures.get(i));
+				}
+			}
+		}
+		for (int i = 0; i < futures.size(); ++i) {
+			Log.d(TAG, "cancel async request of " + owner);
+			futures.get(i).cancel(true);
+		}
+		// a queued request is durable, the owner only stops hearing of it
+		int callbacks = 0;
+		synchronized (mAsyncLock) {
+			Iterator<Object[]> iter = mRequestCallbacks.values().iterator();
+			while (iter.hasNext()) {
+				if (iter.next()[0] == owner) {
+					iter.remove();
+					++callbacks;
+				}
+			}
+		}
+		return futures.size() + callbacks;
+	}
+
+	// queues request and posts to callback on the main looper once it is
+	// sent: TRUE if the server took it, FALSE if it refused it and null if
+	// the server was not reached, the request is then retried and replayed
+	// from the journal
+	static void addRequest(Object owner, Request request,
+			final RequestCallback<Boolean> callback) {
+		if (request == null) {
+			postRequestCallback(callback, Boolean.FALSE);
+			return;
+		}
+		synchronized (mAsyncLock) {
+			mRequestCallbacks.put(request, new Object[] { owner, callback });
+		}
+		RequestManager.addRequest(request);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void onRequestSent(Request request, Boolean result) {
+		Object[] entry = null;
+		synchronized (mAsyncLock) {
+			entry = mRequestCallbacks.remove(request);
+		}
+		if (entry != null) {
+			postRequestCallback((RequestCallback<Boolean>) entry[1], result);
+		}
+	}
+
+	private static void postRequestCallback(
+			final RequestCallback<Boolean> callback, final Boolean result) {
+		RequestFuture.mMainHandler.post(new Runnable() {
+			public void run() {
+				callback.onResult(result);
+			}
+		});
+	}
+
+	static void onRequestFinished(RequestFuture<?> future) {
+		synchronized (mAsyncLock) {
+			mPendingFutures.remove(future);
+		}
+	}
+
+	public static RequestFuture<String> loginAsync(Object owner,
+			final String phoneNumber, final String password,
+			RequestCallback<String> callback) {
+		return submit(owner, new Callable<String>() {
+			public String call() {
+				return login(phoneNumber, password);
+			}
+		}, callback);
+	}
+
+	public static RequestFuture<String> registerAsync(Object owner,
+			final String nickName, final String phoneNumber,
+			final String password, RequestCallback<String> callback) {
+		return submit(owner, new Callable<String>() {
+			public String call() {
+				return register(nickName, phoneNumber, password);
+			}
+		}, callback);
+	}
+
+	// journaled, so a comment written offline or before a crash still goes
+	public static void submitCommentAsync(Object owner, long id,
+			String comment, double rating, RequestCallback<Boolean> callback) {
+		addRequest(owner, RequestManager.generateSubmitCommentRequest(id,
+				comment, rating), callback);
+	}
+
 	private static Pair<Integer, JSONObject> executeHttpRequest(
-			HttpUriRequest httpUriRequest, String requestType, Request request,
-			boolean silence) {
+			HttpTransportRequest httpRequest, String requestType,
+			Request request, boolean silence) {
 		Integer statusCode = 0;
-		String responseStr = null;
 		String exceptionMsg = null;
+		String endpoint = httpRequest.getPath();
+		int failure = RetryPolicy.FAILURE_TRANSPORT;
+		if (request != null) {
+			++request.mAttempts;
+			request.mFailure = RetryPolicy.FAILURE_NONE;
+			request.mStatusCode = 0;
+		}
 
+		if (!CircuitBreaker.allowRequest(endpoint)) {
+			Log.w(TAG, requestType + " fail fast, " + endpoint + " is down");
+			if (request != null) {
+				request.mFailure = RetryPolicy.FAILURE_CONNECT;
+			}
+			if (!silence) {
+				showToastText("Cannot connect to server: " + endpoint
+						+ " is down");
+			}
+			return null;
+		}
+		RetryPolicy.onRequestSent();
+
+		// the breaker hears of every request it let through
+		boolean reported = false;
 		try {
-			HttpResponse httpResponse = null;
-			httpUriRequest.setHeader("Content-Type",
-					"application/x-www-form-urlencoded");
-			httpResponse = mHttpClient.execute(httpUriRequest);
-			statusCode = httpResponse.getStatusLine().getStatusCode();
-			if (statusCode == 200) {
-				BufferedReader bufferedReader = new BufferedReader(
-						new InputStreamReader(httpResponse.getEntity()
-								.getContent()));
-				StringBuffer stringBuffer = new StringBuffer();
-				for (String line = bufferedReader.readLine(); line != null; line = bufferedReader
-						.readLine()) {
-					stringBuffer.append(line);
+			HttpTransportResponse httpResponse = null;
+			if (httpRequest.getHeader("Content-Type") == null) {
+				httpRequest.setHeader("Content-Type",
+						"application/x-www-form-urlencoded");
+			}
+			HttpCompression.prepareRequest(httpRequest);
+			RequestFuture.attach(httpRequest);
+			httpResponse = HttpConnectionManager.getTransport().execute(
+					httpRequest);
+			statusCode = httpResponse.getStatusCode();
+			BinaryCodec.onResponse(httpResponse.getHeader("Accept"),
+					httpResponse.getHeader("Content-Type"));
+			if (statusCode == HTTP_UNSUPPORTED_MEDIA_TYPE
+					&& BinaryCodec.isBinary(httpRequest
+							.getHeader("Content-Type"))) {
+				// never handled, the retry goes out as json
+				BinaryCodec.onRejected();
+				httpResponse.close();
+				if (request != null) {
+					request.mFailure = RetryPolicy.FAILURE_CONNECT;
 				}
-
-				responseStr = stringBuffer.toString();
-				Log.d(TAG, requestType + " response is " + responseStr);
-				if (responseStr == null) {
-					Log.wtf(TAG,
-							"Server result ERROR. should have response str! ");
-					if (!silence) {
-						showToastText("Server result ERROR. should have response str! ");
-					}
-					if (requestType == RequestManager.CALL_TAXI_REQUEST) {
-						synchronized (mCallTaxiLock) {
-							mCallTaxiFailMessage = "Server result ERROR. should have response str! ";
-							mCallTaxiRequestStatusMap.put(mCallTaxiRequestKey,
-									CALL_TAXI_STATUS_SERVER_ERROR);
-						}
-					}
-					return null;
-				} else {
-					JSONObject retJson = new JSONObject(responseStr);
-					int status = retJson.optInt("status", -1);
-					if (status == 1) {
-						if (requestType == RequestManager.CALL_TAXI_REQUEST) {
-							synchronized (mCallTaxiLock) {
-								mCallTaxiFailMessage = "Login Session Timeout!";
-								mCallTaxiRequestStatusMap.put(
-										mCallTaxiRequestKey,
-										CALL_TAXI_STATUS_SERVER_ERROR);
-							}
-						}
-						// need relogin
-						if (requestType != RequestManager.REFRESH_REQUEST) {
-							showNeedReloginNotice();
-						}
-						return null;
-					} else if (status != 0) {
-						handleServerStatusCode(requestType, status);
-						return null;
-					}
-					return new Pair<Integer, JSONObject>(statusCode,
-							new JSONObject(responseStr));
+				return null;
+			}
+			if (statusCode >= 500) {
+				CircuitBreaker.onFailure(endpoint);
+			} else {
+				CircuitBreaker.onSuccess(endpoint);
+			}
+			reported = true;
+			if (request != null) {
+				request.mStatusCode = statusCode;
+			}
+			if (statusCode != 200) {
+				Log.w(TAG, requestType + " http status is " + statusCode);
+				httpResponse.close();
+				exceptionMsg = "http status " + statusCode;
+				if (statusCode < 500) {
+					failure = RetryPolicy.FAILURE_REJECTED;
 				}
+			} else {
+				JSONObject retJson = parseResponseJson(httpRequest,
+						httpResponse);
+				Log.d(TAG, requestType + " response status is "
+						+ (retJson == null ? null : retJson.opt("status")));
+				Pair<Integer, JSONObject> ret = handleResponseJson(statusCode,
+						retJson, requestType, request, silence);
+				if (ret == null && request != null) {
+					request.mFailure = RetryPolicy.FAILURE_REJECTED;
+				}
+				return ret;
 			}
 		} catch (ClientProtocolException e) {
 			exceptionMsg = "ClientProtocolException: " + e.getMessage();
+			failure = RetryPolicy.FAILURE_REJECTED;
 			e.printStackTrace();
 		} catch (IOException e) {
 			exceptionMsg = "IOException: " + e.getMessage();
+			if (e instanceof ConnectException
+					|| e instanceof UnknownHostException) {
+				failure = RetryPolicy.FAILURE_CONNECT;
+			}
+			if (!httpRequest.isAborted()) {
+				CircuitBreaker.onFailure(endpoint);
+				reported = true;
+			}
 			e.printStackTrace();
 		} catch (JSONException e) {
 			exceptionMsg = "JSONException: " + e.getMessage();
+			failure = RetryPolicy.FAILURE_REJECTED;
 			e.printStackTrace();
+		} finally {
+			if (!reported) {
+				CircuitBreaker.onAborted(endpoint);
+			}
+		}
+		if (request != null) {
+			request.mFailure = failure;
 		}
 
-		if (!silence) {
+		// nobody is waiting for an aborted request
+		if (!silence && !httpRequest.isAborted()) {
 			showToastText("Cannot connect to server: " + exceptionMsg);
 		}
 		return null;
 	}
 
-	private static void handleServerStatusCode(String requestType, int status) {
+	private static Pair<Integer, JSONObject> handleResponseJson(
+			Integer statusCode, JSONObject retJson, String requestType,
+			Request request, boolean silence) {
+		if (retJson == null) {
+			Log.wtf(TAG, "Server result ERROR. should have response str! ");
+			if (!silence) {
+				showToastText("Server result ERROR. should have response str! ");
+			}
+			if (requestType.equals(RequestManager.CALL_TAXI_REQUEST)) {
+				setCallTaxiStatus(getCallTaxiRequestKey(request),
+						CALL_TAXI_STATUS_SERVER_ERROR,
+						"Server result ERROR. should have response str! ");
+			}
+			return null;
+		}
+
+		int status = retJson.optInt("status", -1);
+		if (status == 1) {
+			if (requestType.equals(RequestManager.CALL_TAXI_REQUEST)) {
+				setCallTaxiStatus(getCallTaxiRequestKey(request),
+						CALL_TAXI_STATUS_SERVER_ERROR, "Login Session Timeout!");
+			}
+			// need relogin
+			if (requestType != RequestManager.REFRESH_REQUEST) {
+				showNeedReloginNotice();
+			}
+			return null;
+		} else if (status != 0) {
+			handleServerStatusCode(requestType, request, status);
+			return null;
+		}
+		return new Pair<Integer, JSONObject>(statusCode, retJson);
+	}
+
+	private static JSONObject parseResponseJson(
+			HttpTransportRequest httpRequest,
+			HttpTransportResponse httpResponse) throws IOException,
+			JSONException {
+		String endpoint = httpRequest.getPath();
+		InputStream in = HttpCompression.getContent(httpRequest, httpResponse);
+		if (in == null) {
+			return null;
+		}
+		try {
+			if (BinaryCodec.isBinary(httpResponse.getHeader("Content-Type"))) {
+				return BinaryCodec.decodeResponse(in);
+			}
+			JSONObject retJson = JsonStreamParser
+					.parseObject(new InputStreamReader(in, "UTF-8"));
+			if (retJson != null && endpoint.equals(REFRESH_PATH)) {
+				BinaryCodec.recordJsonResponse(retJson);
+			}
+			return retJson;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void handleServerStatusCode(String requestType,
+			Request request, int status) {
 		if (requestType.equals(RequestManager.CALL_TAXI_REQUEST)) {
+			long requestKey = getCallTaxiRequestKey(request);
 			switch (status) {
 			case 1:
 			case 2:
 			case 3:
 			default:
 				// TODO
-				Log.d(TAG, "put DRIVER_UNAVAILABLE for " + mCallTaxiRequestKey);
-				synchronized (mCallTaxiLock) {
-					mCallTaxiFailMessage = "Driver Unavailable!";
-					mCallTaxiRequestStatusMap.put(mCallTaxiRequestKey,
-							CALL_TAXI_STATUS_DRIVER_UNAVAILABLE);
-				}
+				Log.d(TAG, "put DRIVER_UNAVAILABLE for " + requestKey);
+				setCallTaxiStatus(requestKey,
+						CALL_TAXI_STATUS_DRIVER_UNAVAILABLE,
+						"Driver Unavailable!");
+			}
+		} else if (requestType
+				.equals(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST)) {
+			switch (status) {
+			case 101:
+				showToastText("SubmitCommentFail! This CallTaxi is still not completed!");
+				break;
+			case 102:
+				showToastText("SubmitCommentFail! You do not have permission to comment this history!");
+				break;
+			case 103:
+				showToastText("SubmitCommentFail! This history is already commented!");
+				break;
+			default:
+				showToastText("SubmitCommentFail!");
+			}
+		}
+	}
+
+	private static long getCallTaxiRequestKey(Request request) {
+		if (request == null || request.mRequestJson == null) {
+			return -1;
+		}
+		return request.mRequestJson.optLong("key", -1);
+	}
+
+	// only the call the user is waiting for may change its status
+	private static void setCallTaxiStatus(long requestKey, Integer status,
+			String failMessage) {
+		synchronized (mCallTaxiLock) {
+			if (requestKey != mCallTaxiRequestKey) {
+				Log.d(TAG, "ignore status " + status + " for old call "
+						+ requestKey);
+				return;
+			}
+			if (failMessage != null) {
+				mCallTaxiFailMessage = failMessage;
 			}
+			mCallTaxiRequestStatusMap.put(requestKey, status);
 		}
 	}
 
@@ -569,82 +917,276 @@ public class RequestProcessor {
 			Log.e(TAG, "sendRequestToServer: request is null!");
 			return null;
 		}
-		HttpUriRequest httpUriRequest = TaxiUtil
-				.generateHttpUriRequest(request);
-		if (httpUriRequest == null) {
-			Log.wtf(TAG, "no HttpUriRequest for request: "
+		HttpTransportRequest httpRequest = TaxiUtil.generateHttpRequest(request);
+		if (httpRequest == null) {
+			Log.wtf(TAG, "no HttpTransportRequest for request: "
 					+ request.mRequestJson.toString());
 			return null;
 		}
 
-		return executeHttpRequest(httpUriRequest, request.mRequestType,
-				request, silence);
+		return executeHttpRequest(httpRequest, request.mRequestType, request,
+				silence);
 	}
 
 	private static void showToastText(String text) {
 		mHandler.sendMessage(mHandler.obtainMessage(SHOW_TOAST_TEXT, text));
 	}
 
-	static class SendRequestThread extends Thread {
-		public SendRequestThread() {
-			super();
+	static void sendRequestsToServer(ArrayList<Request> requests) {
+		if (requests.size() > 1 && isBatchSupported()) {
+			sendBatchRequestToServer(requests);
+		} else {
+			for (int i = 0; i < requests.size(); ++i) {
+				Request request = requests.get(i);
+				handleRequestResult(request, sendRequestToServer(request,
+						false));
+			}
 		}
+	}
 
-		public void run() {
-			int count = 0;
-			while (true) {
-				if (mStopSendRequestThread) {
-					Log.d(TAG, "stop send request thread!");
-					return;
-				} else {
-					++count;
-					Log.d(TAG, "send request count: " + count);
+	private static void handleRequestResult(Request request,
+			Pair<Integer, JSONObject> httpRet) {
+		if (request.mRequestType
+				.equals(RequestManager.LOCATION_STREAM_REQUEST)) {
+			// any other refusal, e.g. a relogin, only fails this batch
+			if (httpRet == null
+					&& isUnsupportedStatus(request.mStatusCode)) {
+				LocationStream.onRejected(request);
+			} else {
+				LocationStream.onBatchResult(request, httpRet != null);
+			}
+			return;
+		}
+		boolean retry = httpRet == null && RetryPolicy.scheduleRetry(request);
+		if (httpRet != null) {
+			onRequestSent(request, Boolean.TRUE);
+		} else {
+			onRequestSent(request, RetryPolicy
+					.isTransportFailure(request.mFailure) ? null
+					: Boolean.FALSE);
+		}
+		if (retry) {
+			return;
+		}
+		if (!RetryPolicy.isTransportFailure(request.mFailure)) {
+			RequestJournal.ack(request);
+		}
+		// rejected calls already got their status from the response
+		if (httpRet == null
+				&& RetryPolicy.isTransportFailure(request.mFailure)
+				&& request.mRequestType
+						.equals(RequestManager.CALL_TAXI_REQUEST)) {
+			setCallTaxiStatus(getCallTaxiRequestKey(request),
+					CALL_TAXI_STATUS_SERVER_ERROR, null);
+		}
+	}
+
+	// the server does not know the endpoint, as opposed to refusing the
+	// request or being down
+	static boolean isUnsupportedStatus(int statusCode) {
+		return statusCode == 404 || statusCode == 405
+				|| statusCode == HTTP_UNSUPPORTED_MEDIA_TYPE
+				|| statusCode == 501;
+	}
+
+	private static boolean isBatchSupported() {
+		synchronized (mBatchLock) {
+			return mBatchSupported;
+		}
+	}
+
+	private static void sendBatchRequestToServer(ArrayList<Request> requests) {
+		Log.d(TAG, "send " + requests.size() + " requests in one batch");
+		JSONObject batchJson = new JSONObject();
+		try {
+			JSONArray requestJsonArray = new JSONArray();
+			for (int i = 0; i < requests.size(); ++i) {
+				Request request = requests.get(i);
+				JSONObject requestJson = new JSONObject();
+				requestJson.put("type", request.mRequestType);
+				if (request.mRequestJson != null) {
+					requestJson.put("data", request.mRequestJson);
 				}
+				requestJsonArray.put(requestJson);
+			}
+			batchJson.put("requests", requestJsonArray);
+			// piggyback a refresh unless messages are pushed to us
+			batchJson.put("refresh", !PushChannel.isConnected());
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return;
+		}
 
-				Request request = RequestManager.popRequest();
-				if (request == null) {
-					sendRefreshRequestToServer();
-					try {
-						Thread.sleep(CALLSERVER_INTERVAL);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+		Request batchRequest = new Request(RequestManager.BATCH_REQUEST,
+				batchJson);
+		Pair<Integer, JSONObject> httpRet = sendRequestToServer(batchRequest,
+				true);
+		JSONArray responses = null;
+		if (httpRet != null && httpRet.second != null) {
+			responses = httpRet.second.optJSONArray("responses");
+		}
+		if (httpRet == null
+				&& RetryPolicy.isTransportFailure(batchRequest.mFailure)
+				&& !isUnsupportedStatus(batchRequest.mStatusCode)) {
+			// sending them one by one would fail the same way, they failed
+			// with the batch and are retried by their own policy
+			Log.w(TAG, "batch request fail, " + batchRequest.mFailure);
+			for (int i = 0; i < requests.size(); ++i) {
+				Request request = requests.get(i);
+				++request.mAttempts;
+				request.mFailure = batchRequest.mFailure;
+				handleRequestResult(request, null);
+			}
+			showToastText("Cannot connect to server!");
+			return;
+		}
+		if (responses == null || responses.length() != requests.size()) {
+			if (isUnsupportedStatus(batchRequest.mStatusCode)) {
+				synchronized (mBatchLock) {
+					if (mBatchSupported) {
+						Log.i(TAG, "batch request is not supported");
+						mBatchSupported = false;
 					}
-					continue;
 				}
+			}
+			Log.w(TAG, "batch request rejected, send the requests one by one");
+			int failed = 0;
+			for (int i = 0; i < requests.size(); ++i) {
+				Request request = requests.get(i);
+				Pair<Integer, JSONObject> ret = sendRequestToServer(request,
+						true);
+				if (ret == null) {
+					++failed;
+				}
+				handleRequestResult(request, ret);
+			}
+			if (failed > 0) {
+				showToastText(failed + " of " + requests.size()
+						+ " requests failed!");
+			}
+			return;
+		}
 
-				if (sendRequestToServer(request, false) == null) {
-					if (request.mRequestType
-							.equals(RequestManager.CALL_TAXI_REQUEST)) {
-						long requestKey = request.mRequestJson.optInt("key");
-						synchronized (mMapViewLock) {
-							mCallTaxiRequestStatusMap.put(requestKey,
-									CALL_TAXI_STATUS_SERVER_ERROR);
-						}
-					}
+		for (int i = 0; i < requests.size(); ++i) {
+			Request request = requests.get(i);
+			Pair<Integer, JSONObject> ret = handleResponseJson(httpRet.first,
+					responses.optJSONObject(i), request.mRequestType, request,
+					false);
+			++request.mAttempts;
+			request.mFailure = ret == null ? RetryPolicy.FAILURE_REJECTED
+					: RetryPolicy.FAILURE_NONE;
+			handleRequestResult(request, ret);
+		}
+		RefreshScheduler.onRefreshed(handleRefreshResponseJson(httpRet.second));
+	}
+
+	static class RefreshThread extends Thread {
+		public RefreshThread() {
+			super();
+		}
+
+		public void run() {
+			while (!mStopSendRequestThread) {
+				if (PushChannel.isConnected()) {
+					// messages are pushed to us, wait until the channel drops
+					RefreshScheduler
+							.waitForNextRefresh(RefreshScheduler.IDLE_INTERVAL);
+					continue;
+				}
+				int state = RefreshScheduler.getState();
+				boolean longPoll = RefreshScheduler.canUseLongPoll(state)
+						&& shouldUseLongPoll();
+				boolean succeed = sendRefreshRequestToServer(longPoll);
+				if (longPoll && succeed) {
+					// the server already waited for us, poll again at once
+					continue;
 				}
+				RefreshScheduler.waitForNextRefresh(RefreshScheduler
+						.getRefreshInterval(state));
 			}
+			Log.d(TAG, "stop refresh thread!");
 		}
 	};
 
-	private static void sendRefreshRequestToServer() {
-		Request request = new Request(RequestManager.REFRESH_REQUEST, null);
+	private static boolean shouldUseLongPoll() {
+		synchronized (mRefreshLock) {
+			if (mLongPollSupported) {
+				return true;
+			}
+			// probe again from time to time, the server may be upgraded
+			if (System.currentTimeMillis() - mLongPollProbeTime >= LONG_POLL_PROBE_INTERVAL) {
+				mLongPollProbeTime = System.currentTimeMillis();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private static void abortRefreshRequest() {
+		synchronized (mRefreshLock) {
+			if (mRefreshHttpRequest != null) {
+				mRefreshHttpRequest.abort();
+				mRefreshHttpRequest = null;
+			}
+		}
+	}
 
-		Pair<Integer, JSONObject> httpRet = sendRequestToServer(request, false);
+	private static boolean sendRefreshRequestToServer(boolean longPoll) {
+		JSONObject refreshJson = null;
+		if (longPoll) {
+			refreshJson = new JSONObject();
+			try {
+				refreshJson.put("wait", LONG_POLL_WAIT_TIME / 1000);
+			} catch (JSONException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		Request request = new Request(RequestManager.REFRESH_REQUEST,
+				refreshJson);
+		HttpTransportRequest httpRequest = TaxiUtil.generateHttpRequest(request);
+		if (httpRequest == null) {
+			Log.wtf(TAG, "no HttpTransportRequest for refresh request!");
+			return false;
+		}
+		synchronized (mRefreshLock) {
+			if (mStopSendRequestThread) {
+				return false;
+			}
+			mRefreshHttpRequest = httpRequest;
+		}
+		Pair<Integer, JSONObject> httpRet = executeHttpRequest(httpRequest,
+				request.mRequestType, request, false);
+		synchronized (mRefreshLock) {
+			mRefreshHttpRequest = null;
+		}
 		if (httpRet == null) {
-			return;
+			return false;
+		}
+
+		if (longPoll) {
+			boolean supported = httpRet.second != null
+					&& httpRet.second.optBoolean("long_poll", false);
+			synchronized (mRefreshLock) {
+				if (supported != mLongPollSupported) {
+					Log.i(TAG, "long poll refresh supported: " + supported);
+				}
+				mLongPollSupported = supported;
+			}
 		}
 		// handle the result
-		handleRefreshResponseJson(httpRet.second);
+		RefreshScheduler.onRefreshed(handleRefreshResponseJson(httpRet.second));
+		return true;
 	}
 
-	private static void handleRefreshResponseJson(JSONObject jsonRet) {
+	private static int handleRefreshResponseJson(JSONObject jsonRet) {
 		if (jsonRet == null) {
-			return;
+			return 0;
 		}
 		JSONArray messageJsonArray = jsonRet.optJSONArray("messages");
 		if (messageJsonArray == null) {
 			Log.d(TAG, "no message in refresh response!");
-			return;
+			return 0;
 		}
 
 		for (int i = 0; i < messageJsonArray.length(); ++i) {
@@ -653,20 +1195,42 @@ public class RequestProcessor {
 				Log.e(TAG, "cannot optJSONObject at " + i);
 				continue;
 			}
-			String type = messageJson.optString("type");
-			if (type != null) {
-				if (type.equals(RequestManager.CALL_TAXI_RESPONSE)) {
-					handleCallTaxiReplyJson(messageJson);
-				} else if (type.equals(RequestManager.LOCATION_UPDATE_REQUEST)) {
-					handleTaxiLocationUpdate(messageJson);
-				} else if (type.equals(RequestManager.CALL_TAXI_COMPLETE)) {
-					handleCallTaxiComplete(messageJson);
-				} else {
-					Log.e(TAG, "type is not recognized: " + type);
-				}
+			handleRefreshMessageJson(messageJson);
+		}
+		return messageJsonArray.length();
+	}
+
+	static void handleRefreshMessageJson(JSONObject messageJson) {
+		if (!PushChannel.markMessageSeen(messageJson)) {
+			Log.d(TAG, "ignore duplicated message: " + messageJson.optLong("id"));
+			return;
+		}
+		String type = messageJson.optString("type");
+		if (type != null) {
+			if (type.equals(RequestManager.CALL_TAXI_RESPONSE)) {
+				handleCallTaxiReplyJson(messageJson);
+			} else if (type.equals(RequestManager.LOCATION_UPDATE_REQUEST)) {
+				handleTaxiLocationUpdate(messageJson);
+			} else if (type.equals(RequestManager.CALL_TAXI_COMPLETE)) {
+				handleCallTaxiComplete(messageJson);
 			} else {
-				Log.e(TAG, "type is null in message: " + messageJson.toString());
+				Log.e(TAG, "type is not recognized: " + type);
 			}
+		} else {
+			Log.e(TAG, "type is null in message: " + messageJson.toString());
+		}
+	}
+
+	static int getRefreshState() {
+		synchronized (mCallTaxiLock) {
+			if (sHasTaxi) {
+				return RefreshScheduler.STATE_HAS_TAXI;
+			}
+			Integer status = mCallTaxiRequestStatusMap.get(mCallTaxiRequestKey);
+			if (status != null && status.equals(CALL_TAXI_STATUS_CALLING)) {
+				return RefreshScheduler.STATE_CALLING;
+			}
+			return RefreshScheduler.STATE_IDLE;
 		}
 	}
 
@@ -689,6 +1253,7 @@ public class RequestProcessor {
 				mContext.startActivity(intent);
 			}
 		}
+		RefreshScheduler.notifyStateChanged();
 	}
 
 	private static void handleTaxiLocationUpdate(JSONObject taxiLocationJson) {
@@ -704,8 +1269,8 @@ public class RequestProcessor {
 					return;
 				}
 				try {
-					int latitude = (int) (locationJson.getDouble("latitude") * 1000000);
-					int longitude = (int) (locationJson.getDouble("longitude") * 1000000);
+					int latitude = Geodesy.toE6(locationJson.getDouble("latitude"));
+					int longitude = Geodesy.toE6(locationJson.getDouble("longitude"));
 					mMyTaxiParam.mPoint = new GeoPoint(latitude, longitude);
 
 					Message msg = mHandler.obtainMessage();
@@ -721,21 +1286,24 @@ public class RequestProcessor {
 	private static void handleCallTaxiReplyJson(JSONObject callTaxiReplyJson) {
 		Log.d(TAG, "handle call taxi reply!");
 
-		boolean accept = callTaxiReplyJson.optBoolean("accept");
-		if (!accept) {
-			Log.d(TAG, "call taxi request is rejected!");
-			synchronized (mMapViewLock) {
-				mCallTaxiRequestStatusMap.put(mCallTaxiRequestKey,
-						CALL_TAXI_STATUS_REJECTED);
-			}
-			return;
-		}
-
 		long callTaxiRequestKey = callTaxiReplyJson.optLong("key", -1);
+		String callTaxiToken = callTaxiReplyJson.optString("token", null);
+		boolean accept = callTaxiReplyJson.optBoolean("accept");
 		synchronized (mCallTaxiLock) {
-			if (callTaxiRequestKey < mCallTaxiRequestKey) {
+			if (callTaxiRequestKey != mCallTaxiRequestKey
+					|| (callTaxiToken != null && !callTaxiToken
+							.equals(mCallTaxiToken))) {
 				Log.w(TAG, "ignore call taxi response: " + callTaxiRequestKey
 						+ " currentNumber is " + mCallTaxiRequestKey);
+			} else if (CALL_TAXI_STATUS_SUCCEED.equals(mCallTaxiRequestStatusMap
+					.get(callTaxiRequestKey))) {
+				// a resent call may be answered twice
+				Log.d(TAG, "ignore duplicate reply for " + callTaxiRequestKey);
+			} else if (!accept) {
+				Log.d(TAG, "call taxi request is rejected!");
+				mCallTaxiRequestStatusMap.put(callTaxiRequestKey,
+						CALL_TAXI_STATUS_REJECTED);
+				return;
 			} else {
 				String taxiPhoneNumber = mCallTaxiPhoneNumberMap
 						.get(callTaxiRequestKey);
@@ -756,11 +1324,12 @@ public class RequestProcessor {
 					}
 					sHasTaxi = true;
 					Log.d(TAG, "get call taxi succeed!");
-					mCallTaxiRequestStatusMap.put(mCallTaxiRequestKey,
+					mCallTaxiRequestStatusMap.put(callTaxiRequestKey,
 							CALL_TAXI_STATUS_SUCCEED);
 				}
 			}
 		}
+		RefreshScheduler.notifyStateChanged();
 	}
 
 	public static void setMyTaxiParam(String carNumber, String nickName,
@@ -783,34 +1352,25 @@ public class RequestProcessor {
 				+ latitude + "," + longitude + "&sensor=false&language=zh-CN";
 		Log.d(TAG, "sendQueryGpscoderRequest: " + latitude + ", " + longitude
 				+ "  serverAddress: " + serverAddress);
-		HttpGet get = new HttpGet(serverAddress);
-		HttpResponse httpResponse;
+		HttpTransportRequest get = new HttpTransportRequest(
+				HttpTransportRequest.GET, serverAddress);
+		HttpTransportResponse httpResponse;
 		try {
-			httpResponse = mHttpClient.execute(get);
-			if (httpResponse.getStatusLine().getStatusCode() == 200) {
-				if (httpResponse.getEntity() != null) {
-					BufferedReader bufferedReader = new BufferedReader(
-							new InputStreamReader(httpResponse.getEntity()
-									.getContent()));
-					StringBuffer stringBuffer = new StringBuffer();
-					for (String line = bufferedReader.readLine(); line != null; line = bufferedReader
-							.readLine()) {
-						stringBuffer.append(line);
-					}
-					String responseStr = stringBuffer.toString();
-					Log.d(TAG, "sendQueryGpscoderRequest: response is "
-							+ responseStr);
-
-					if (responseStr != null) {
-						JSONObject gpscoderJson = new JSONObject(responseStr);
-						String addrStr = handleGpscoderResponseJson(
-								gpscoderJson, latitude, longitude);
-						return addrStr;
-					}
+			HttpCompression.prepareRequest(get);
+			RequestFuture.attach(get);
+			httpResponse = HttpConnectionManager.getTransport().execute(get);
+			if (httpResponse.getStatusCode() == 200) {
+				JSONObject gpscoderJson = parseResponseJson(get, httpResponse);
+				if (gpscoderJson != null) {
+					String addrStr = handleGpscoderResponseJson(gpscoderJson,
+							latitude, longitude);
+					Log.d(TAG, "sendQueryGpscoderRequest: address is "
+							+ addrStr);
+					return addrStr;
 				}
+			} else {
+				httpResponse.close();
 			}
-		} catch (ClientProtocolException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (JSONException e) {
@@ -833,8 +1393,8 @@ public class RequestProcessor {
 						String type = resultJson.optString("types");
 						if (type != null && type.equals("street_address")) {
 							// push this location to server
-							RequestManager.addPushGpscoderRequest(addrStr,
-									latitude, longitude);
+							GeocodePipeline.pushAddress(addrStr, latitude,
+									longitude);
 							return addrStr;
 						}
 					}
@@ -963,37 +1523,4 @@ public class RequestProcessor {
 		HistoryItem.sortSequentialItemsDesc(items);
 		return items;
 	}
-
-	public static boolean sendSubmitCommentRequest(long id, String comment,
-			double rating) {
-		Pair<Integer, JSONObject> httpRet = sendRequestToServer(
-				RequestManager
-						.generateSubmitCommentRequest(id, comment, rating),
-				false);
-		if (httpRet == null) {
-			return false;
-		}
-		if (httpRet.second == null) {
-			Log.wtf(TAG, "SubmitComment response str is null!");
-			showToastText("SubmitCommentFail! Server Response Error!");
-			return false;
-		}
-		int status = httpRet.second.optInt("status");
-		switch (status) {
-		case 0:
-			return true;
-		case 101:
-			showToastText("SubmitCommentFail! This CallTaxi is still not completed!");
-			return false;
-		case 102:
-			showToastText("SubmitCommentFail! You do not have permission to comment this history!");
-			return false;
-		case 103:
-			showToastText("SubmitCommentFail! This history is already commented!");
-			return false;
-		default:
-			showToastText("SubmitCommentFail!");
-			return false;
-		}
-	}
 }
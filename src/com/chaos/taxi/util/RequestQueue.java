@@ -0,0 +1,159 @@
+package com.chaos.taxi.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.chaos.taxi.util.RequestManager.Request;
+
+// FIFO queue of requests, not thread safe. Coalescible types keep only the
+// latest request, in the queue slot of the first one. Every request is
+// indexed by type and, when it has one, by key so removal needs no scan.
+public class RequestQueue {
+	static class Node {
+		Request mRequest;
+		Node mPrev;
+		Node mNext;
+
+		Node(Request request) {
+			mRequest = request;
+		}
+	}
+
+	private Node mHead = new Node(null);
+	private int mSize = 0;
+	private HashMap<String, ArrayList<Node>> mTypeIndex = new HashMap<String, ArrayList<Node>>();
+	private HashMap<String, Node> mKeyIndex = new HashMap<String, Node>();
+
+	public RequestQueue() {
+		mHead.mPrev = mHead;
+		mHead.mNext = mHead;
+	}
+
+	public static boolean isCoalescible(String requestType) {
+		return requestType.equals(RequestManager.LOCATION_UPDATE_REQUEST)
+				|| requestType.equals(RequestManager.FIND_TAXI_REQUEST)
+				|| requestType.equals(RequestManager.REFRESH_REQUEST)
+				|| requestType.equals(RequestManager.CALL_TAXI_REQUEST);
+	}
+
+	private static String getKey(String requestType, long key) {
+		return requestType + ":" + key;
+	}
+
+	private static String getKey(Request request) {
+		if (request.mRequestJson == null || !request.mRequestJson.has("key")) {
+			return null;
+		}
+		return getKey(request.mRequestType,
+				request.mRequestJson.optLong("key"));
+	}
+
+	// returns the pending request this one replaced, or null
+	public Request add(Request request) {
+		if (isCoalescible(request.mRequestType)) {
+			ArrayList<Node> nodes = mTypeIndex.get(request.mRequestType);
+			if (nodes != null && nodes.size() > 0) {
+				Node node = nodes.get(0);
+				Request replaced = node.mRequest;
+				unindexKey(node);
+				node.mRequest = request;
+				indexKey(node);
+				return replaced;
+			}
+		}
+
+		Node node = new Node(request);
+		node.mPrev = mHead.mPrev;
+		node.mNext = mHead;
+		mHead.mPrev.mNext = node;
+		mHead.mPrev = node;
+		++mSize;
+
+		ArrayList<Node> nodes = mTypeIndex.get(request.mRequestType);
+		if (nodes == null) {
+			nodes = new ArrayList<Node>(1);
+			mTypeIndex.put(request.mRequestType, nodes);
+		}
+		nodes.add(node);
+		indexKey(node);
+		return null;
+	}
+
+	public Request poll() {
+		if (mSize == 0) {
+			return null;
+		}
+		Node node = mHead.mNext;
+		unlink(node);
+		return node.mRequest;
+	}
+
+	public void drainTo(ArrayList<Request> requests) {
+		while (mSize > 0) {
+			requests.add(poll());
+		}
+	}
+
+	public void removeByType(String requestType, ArrayList<Request> removed) {
+		ArrayList<Node> nodes = mTypeIndex.get(requestType);
+		if (nodes == null) {
+			return;
+		}
+		while (nodes.size() > 0) {
+			Node node = nodes.get(nodes.size() - 1);
+			unlink(node);
+			removed.add(node.mRequest);
+		}
+	}
+
+	public Request removeByKey(String requestType, long key) {
+		Node node = mKeyIndex.get(getKey(requestType, key));
+		if (node == null) {
+			return null;
+		}
+		unlink(node);
+		return node.mRequest;
+	}
+
+	public boolean hasType(String requestType) {
+		ArrayList<Node> nodes = mTypeIndex.get(requestType);
+		return nodes != null && nodes.size() > 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	private void unlink(Node node) {
+		node.mPrev.mNext = node.mNext;
+		node.mNext.mPrev = node.mPrev;
+		node.mPrev = null;
+		node.mNext = null;
+		--mSize;
+
+		ArrayList<Node> nodes = mTypeIndex.get(node.mRequest.mRequestType);
+		if (nodes != null) {
+			// same type nodes are few, usually just this one
+			nodes.remove(node);
+		}
+		unindexKey(node);
+	}
+
+	private void indexKey(Node node) {
+		String key = getKey(node.mRequest);
+		if (key != null) {
+			mKeyIndex.put(key, node);
+		}
+	}
+
+	private void unindexKey(Node node) {
+		String key = getKey(node.mRequest);
+		if (key != null && mKeyIndex.get(key) == node) {
+			mKeyIndex.remove(key);
+		}
+	}
+}
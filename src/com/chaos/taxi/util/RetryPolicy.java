@@ -0,0 +1,140 @@
+package com.chaos.taxi.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.chaos.taxi.util.RequestManager.Request;
+
+// Decides whether a failed request goes out again and when. Delays use
+// exponential backoff with full jitter, and all retries share a budget that
+// grows with the number of requests sent, so an outage cannot multiply the
+// load on the server.
+public class RetryPolicy {
+	private static final String TAG = "RetryPolicy";
+
+	static final int FAILURE_NONE = 0;
+	// the request never left, e.g. connect failed or the circuit is open
+	static final int FAILURE_CONNECT = 1;
+	// the connection broke after the request may have reached the server
+	static final int FAILURE_TRANSPORT = 2;
+	// the server answered and refused it, retrying does not help
+	static final int FAILURE_REJECTED = 3;
+
+	// each request adds BUDGET_RATIO of a retry, up to BUDGET_MAX retries
+	static final double BUDGET_RATIO = 0.2;
+	static final double BUDGET_MAX = 10;
+
+	static Object mLock = new Object();
+	static double mBudget = BUDGET_MAX;
+	static boolean mStarted = false;
+	// bumped by stop(), retries scheduled before it are dropped when due
+	static int mGeneration = 0;
+	static Random mRandom = new Random();
+
+	// { max attempts, base delay ms, max delay ms }
+	static int[] getPolicy(String requestType) {
+		if (requestType.equals(RequestManager.CALL_TAXI_REQUEST)
+				|| requestType.equals(RequestManager.CANCEL_CALL_TAXI_REQUEST)) {
+			return new int[] { 4, 500, 8000 };
+		} else if (requestType.equals(RequestManager.LOCATION_UPDATE_REQUEST)
+				|| requestType.equals(RequestManager.FIND_TAXI_REQUEST)) {
+			return new int[] { 2, 1000, 4000 };
+		} else if (requestType.equals(RequestManager.PUSH_GPSCODER_REQUEST)
+				|| requestType
+						.equals(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST)) {
+			return new int[] { 6, 2000, 60000 };
+		}
+		return new int[] { 1, 0, 0 };
+	}
+
+	// sending it twice has the same effect as sending it once, the server
+	// drops a call or cancel whose token it has already seen
+	static boolean isIdempotent(Request request) {
+		if (request.mRequestJson != null && request.mRequestJson.has("token")) {
+			return true;
+		}
+		return !request.mRequestType.equals(RequestManager.CALL_TAXI_REQUEST)
+				&& !request.mRequestType
+						.equals(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST);
+	}
+
+	static boolean isTransportFailure(int failure) {
+		return failure == FAILURE_CONNECT || failure == FAILURE_TRANSPORT;
+	}
+
+	public static void start() {
+		synchronized (mLock) {
+			mStarted = true;
+		}
+	}
+
+	public static void stop() {
+		synchronized (mLock) {
+			if (mStarted) {
+				// durable requests are still in the journal
+				mStarted = false;
+				++mGeneration;
+			}
+		}
+	}
+
+	public static void onRequestSent() {
+		synchronized (mLock) {
+			mBudget = Math.min(mBudget + BUDGET_RATIO, BUDGET_MAX);
+		}
+	}
+
+	// returns true if the request is scheduled to go out again
+	public static boolean scheduleRetry(final Request request) {
+		if (!isTransportFailure(request.mFailure)) {
+			return false;
+		}
+		if (request.mFailure == FAILURE_TRANSPORT
+				&& !isIdempotent(request)) {
+			Log.d(TAG, request.mRequestType
+					+ " may have reached the server, do not retry");
+			return false;
+		}
+		int[] policy = getPolicy(request.mRequestType);
+		if (request.mAttempts >= policy[0]) {
+			return false;
+		}
+
+		long delay;
+		synchronized (mLock) {
+			if (!mStarted) {
+				return false;
+			}
+			if (mBudget < 1) {
+				Log.w(TAG, "retry budget used up, drop " + request.mRequestType);
+				return false;
+			}
+			mBudget -= 1;
+			long maxDelay = Math.min((long) policy[1] << request.mAttempts,
+					policy[2]);
+			delay = (long) (mRandom.nextDouble() * maxDelay);
+			final int generation = mGeneration;
+			TaxiExecutors.scheduler().schedule(new Runnable() {
+				public void run() {
+					synchronized (mLock) {
+						if (generation != mGeneration) {
+							return;
+						}
+					}
+					if (request.mRequestType
+							.equals(RequestManager.CALL_TAXI_REQUEST)) {
+						// cancelCallTaxiRequest cannot see a call waiting here
+						RequestProcessor.retryCallTaxiRequest(request);
+					} else {
+						RequestManager.retryRequest(request);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		Log.d(TAG, "retry " + request.mRequestType + " attempt "
+				+ request.mAttempts + " in " + delay + "ms");
+		return true;
+	}
+}
@@ -0,0 +1,112 @@
+package com.chaos.taxi.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+// App wide threads for short tasks: a bounded pool for blocking io and a
+// single thread for delayed and periodic tasks. Long lived loops (lane
+// workers, refresh, push channel, journal) keep their threads.
+public class TaxiExecutors {
+	private static final String TAG = "TaxiExecutors";
+
+	// foreground requests and one off network tasks
+	static final int IO_THREADS = 3;
+	static final int IO_QUEUE_SIZE = 32;
+	static final long KEEP_ALIVE = 30 * 1000;
+
+	static Object mLock = new Object();
+	static int mThreadCount = 0;
+	static long mRejectedCount = 0;
+
+	static ThreadPoolExecutor mIoExecutor = newPool("TaxiIO", IO_THREADS,
+			IO_QUEUE_SIZE);
+	static ScheduledThreadPoolExecutor mScheduler = new ScheduledThreadPoolExecutor(
+			1, new NamedThreadFactory("TaxiScheduler"));
+
+	public static ThreadPoolExecutor io() {
+		return mIoExecutor;
+	}
+
+	// keep scheduled tasks short, they share one thread; hand blocking work
+	// over to io()
+	public static ScheduledThreadPoolExecutor scheduler() {
+		return mScheduler;
+	}
+
+	private static ThreadPoolExecutor newPool(String name, int threads,
+			int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, KEEP_ALIVE,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+						queueSize), new NamedThreadFactory(name),
+				new RejectedHandler(name));
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+		String mName;
+		int mIndex = 0;
+
+		NamedThreadFactory(String name) {
+			mName = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread;
+			synchronized (mLock) {
+				++mThreadCount;
+				thread = new Thread(runnable, mName + "-" + (++mIndex));
+			}
+			thread.setDaemon(true);
+			Log.d(TAG, "new thread " + thread.getName());
+			return thread;
+		}
+	}
+
+	// a full queue means the app is flooding the server, fail the task
+	// instead of growing without bound
+	static class RejectedHandler implements RejectedExecutionHandler {
+		ThreadPoolExecutor.AbortPolicy mAbortPolicy = new ThreadPoolExecutor.AbortPolicy();
+		String mName;
+
+		RejectedHandler(String name) {
+			mName = name;
+		}
+
+		public void rejectedExecution(Runnable runnable,
+				ThreadPoolExecutor executor) {
+			synchronized (mLock) {
+				++mRejectedCount;
+			}
+			Log.w(TAG, mName + " queue is full, reject task");
+			mAbortPolicy.rejectedExecution(runnable, executor);
+		}
+	}
+
+	public static int getIoQueueDepth() {
+		return mIoExecutor.getQueue().size();
+	}
+
+	public static int getIoActiveCount() {
+		return mIoExecutor.getActiveCount();
+	}
+
+	public static int getScheduledCount() {
+		return mScheduler.getQueue().size();
+	}
+
+	public static void dumpStats() {
+		synchronized (mLock) {
+			Log.d(TAG, "threads created: " + mThreadCount + " rejected: "
+					+ mRejectedCount);
+		}
+		Log.d(TAG, "io active: " + getIoActiveCount() + " queued: "
+				+ getIoQueueDepth() + " done: "
+				+ mIoExecutor.getCompletedTaskCount());
+		Log.d(TAG, "scheduled: " + getScheduledCount());
+	}
+}
@@ -87,15 +87,6 @@ public class TaxiHistorySqlHelper extends SQLiteOpenHelper {
 			mHistoryState = historyState;
 
 			mNextId = nextId;
-
-			if (mOrigin == null) {
-				mOrigin = queryGpscoderInNanjing(mOriginLatitude,
-						mOriginLongitude);
-			}
-			if (mDestination == null) {
-				mDestination = queryGpscoderInNanjing(mDestinationLatitude,
-						mDestinationLongitude);
-			}
 		}
 
 		public HistoryItem(Cursor cursor) {
@@ -125,15 +116,40 @@ public class TaxiHistorySqlHelper extends SQLiteOpenHelper {
 							.getInt(cursor.getColumnIndex(HISTORY_STATE)));
 		}
 
-		private String queryGpscoderInNanjing(Double latitude, Double longitude) {
-			if (isGpsLocationInJiangsu(latitude, longitude)) {
-				return RequestProcessor.sendQueryGpscoderRequest(latitude,
-						longitude);
+		// the names are filled in by GeocodePipeline
+		public boolean needsOriginName() {
+			return mOrigin == null
+					&& isGpsLocationInJiangsu(mOriginLatitude, mOriginLongitude);
+		}
+
+		public boolean needsDestinationName() {
+			return mDestination == null
+					&& isGpsLocationInJiangsu(mDestinationLatitude,
+							mDestinationLongitude);
+		}
+
+		public String getOriginText() {
+			return getLocationText(mOrigin, mOriginLatitude, mOriginLongitude);
+		}
+
+		public String getDestinationText() {
+			return getLocationText(mDestination, mDestinationLatitude,
+					mDestinationLongitude);
+		}
+
+		// the name, or the coordinates until it is known
+		private static String getLocationText(String name, Double latitude,
+				Double longitude) {
+			if (name != null) {
+				return name;
 			}
-			return null;
+			if (latitude == null || longitude == null) {
+				return null;
+			}
+			return "Latitude: " + latitude + ", Longitude: " + longitude;
 		}
 
-		private boolean isGpsLocationInJiangsu(Double latitude, Double longitude) {
+		private static boolean isGpsLocationInJiangsu(Double latitude, Double longitude) {
 			if (latitude == null || longitude == null) {
 				return false;
 			}
@@ -317,6 +333,14 @@ public class TaxiHistorySqlHelper extends SQLiteOpenHelper {
 		db.execSQL(str);
 	}
 
+	public void updateAddress(long historyId, String column, String address) {
+		Log.d(TAG, "updateAddress: " + historyId + " " + column);
+		ContentValues cv = new ContentValues();
+		cv.put(column, address);
+		SQLiteDatabase db = getWritableDatabase();
+		db.update(TABLE_NAME, cv, HistoryItem.ID + "=" + historyId, null);
+	}
+
 	public void deleteHistory(long historyId) {
 		Log.d(TAG, "deleteHistory: " + historyId);
 		SQLiteDatabase db = getWritableDatabase();
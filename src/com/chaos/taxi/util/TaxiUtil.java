@@ -11,12 +11,6 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 
-import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.StringEntity;
-
 import com.chaos.taxi.util.RequestManager.Request;
 import com.google.android.maps.GeoPoint;
 
@@ -69,8 +63,8 @@ public class TaxiUtil {
 		if (location == null) {
 			return null;
 		}
-		return new GeoPoint((int) (location.getLatitude() * 1e6),
-				(int) (location.getLongitude() * 1e6));
+		return new GeoPoint(Geodesy.toE6(location.getLatitude()),
+				Geodesy.toE6(location.getLongitude()));
 	}
 
 	public static Location geoPointToLocation(GeoPoint point) {
@@ -78,8 +72,8 @@ public class TaxiUtil {
 			return null;
 		}
 		Location loc = new Location("FromGeoPoint");
-		loc.setLatitude((float) (point.getLatitudeE6()) / (float) 1e6);
-		loc.setLongitude((float) (point.getLongitudeE6()) / (float) 1e6);
+		loc.setLatitude(Geodesy.fromE6(point.getLatitudeE6()));
+		loc.setLongitude(Geodesy.fromE6(point.getLongitudeE6()));
 		return loc;
 	}
 
@@ -144,8 +138,10 @@ public class TaxiUtil {
 			return RequestProcessor.HTTPSERVER + "/service/create";
 		} else if (requestType.equals(RequestManager.LOCATION_UPDATE_REQUEST)) {
 			return RequestProcessor.HTTPSERVER + "/passenger/location/update";
+		} else if (requestType.equals(RequestManager.LOCATION_STREAM_REQUEST)) {
+			return RequestProcessor.HTTPSERVER + "/passenger/location/stream";
 		} else if (requestType.equals(RequestManager.REFRESH_REQUEST)) {
-			return RequestProcessor.HTTPSERVER + "/passenger/refresh";
+			return RequestProcessor.HTTPSERVER + RequestProcessor.REFRESH_PATH;
 		} else if (requestType.equals(RequestManager.CANCEL_CALL_TAXI_REQUEST)) {
 			return RequestProcessor.HTTPSERVER + "/service/cancel";
 		} else if (requestType.equals(RequestManager.CALL_TAXI_COMPLETE)) {
@@ -172,6 +168,8 @@ public class TaxiUtil {
 			return RequestProcessor.HTTPSERVER + "/service/evaluate";
 		} else if (requestType.equals(RequestManager.PUSH_GPSCODER_REQUEST)) {
 			return RequestProcessor.HTTPSERVER + "/location/create";
+		} else if (requestType.equals(RequestManager.BATCH_REQUEST)) {
+			return RequestProcessor.HTTPSERVER + "/passenger/batch";
 		}
 		return null;
 	}
@@ -190,7 +188,7 @@ public class TaxiUtil {
 		return false;
 	}
 
-	public static HttpUriRequest generateHttpUriRequest(Request request) {
+	public static HttpTransportRequest generateHttpRequest(Request request) {
 		if (request == null) {
 			return null;
 		}
@@ -201,15 +199,22 @@ public class TaxiUtil {
 			return null;
 		}
 
-		HttpUriRequest httpUriRequest = null;
+		HttpTransportRequest httpRequest = null;
 		if (!isGetRequest(request.mRequestType)) {
 			Log.d(TAG, "generate HttpPost for " + request.mRequestType);
-			httpUriRequest = new HttpPost(serverAddress);
-			if (request.mRequestJson != null) {
+			httpRequest = new HttpTransportRequest(HttpTransportRequest.POST,
+					serverAddress);
+			byte[] binaryBody = BinaryCodec.canSendBinary() ? BinaryCodec
+					.encodeRequest(request.mRequestType, request.mRequestJson)
+					: null;
+			if (binaryBody != null) {
+				httpRequest.setBody(binaryBody);
+				httpRequest.setHeader("Content-Type", BinaryCodec.CONTENT_TYPE);
+			} else if (request.mRequestJson != null) {
 				Log.d(TAG,
 						"request json str is "
 								+ request.mRequestJson.toString());
-				if (!TaxiUtil.setHttpEntity((HttpPost) httpUriRequest,
+				if (!TaxiUtil.setHttpEntity(httpRequest,
 						request.mRequestJson.toString())) {
 					return null;
 				}
@@ -224,17 +229,23 @@ public class TaxiUtil {
 						+ URLEncoder.encode(request.mRequestJson.toString());
 				Log.d(TAG, "serverAddress now is " + serverAddress);
 			}
-			httpUriRequest = new HttpGet(serverAddress);
+			httpRequest = new HttpTransportRequest(HttpTransportRequest.GET,
+					serverAddress);
+			if (request.mRequestType.equals(RequestManager.REFRESH_REQUEST)
+					&& BinaryCodec.isEnabled()) {
+				httpRequest.setHeader("Accept", BinaryCodec.getAcceptHeader());
+			}
 		}
-		return httpUriRequest;
+		return httpRequest;
 	}
 
-	public static boolean setHttpEntity(HttpEntityEnclosingRequestBase request,
+	public static boolean setHttpEntity(HttpTransportRequest request,
 			String entityStr) {
 		entityStr = "json_data=" + entityStr;
 		Log.d(TAG, "setHttpEntity: " + entityStr);
 		try {
-			request.setEntity(new StringEntity(entityStr));
+			// the same bytes StringEntity used to send
+			request.setBody(entityStr.getBytes("ISO-8859-1"));
 			return true;
 		} catch (UnsupportedEncodingException e) {
 			Log.e(TAG, "cannot encode the string to StringEntity. " + request);
@@ -0,0 +1,194 @@
+package com.chaos.taxi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import android.os.Build;
+import android.util.Log;
+
+// HttpURLConnection based transport. It keeps its own cookie jar, so a
+// switch between transports needs a new login.
+public class UrlConnectionHttpTransport implements HttpTransport {
+	private static final String TAG = "UrlConnectionHttpTransport";
+	static final String NAME = "urlconnection";
+
+	Object mCookieLock = new Object();
+	LinkedHashMap<String, String> mCookies = new LinkedHashMap<String, String>();
+
+	public UrlConnectionHttpTransport() {
+		if (Build.VERSION.SDK_INT < 9) {
+			// before gingerbread a reused connection may read a stale response
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
+
+	public HttpTransportResponse execute(HttpTransportRequest request)
+			throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(
+				request.getUrl()).openConnection();
+		connection.setRequestMethod(request.getMethod());
+		connection.setConnectTimeout(HttpConnectionManager.CONNECT_TIMEOUT);
+		connection.setReadTimeout(HttpConnectionManager.READ_TIMEOUT);
+		connection.setUseCaches(false);
+		Iterator<Entry<String, String>> iter = request.getHeaders().entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Entry<String, String> header = iter.next();
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+		String cookieHeader = getCookieHeader();
+		if (cookieHeader.length() > 0) {
+			connection.setRequestProperty("Cookie", cookieHeader);
+		}
+		byte[] body = request.getBody();
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+		}
+
+		if (!request.setAbortHandler(new Runnable() {
+			public void run() {
+				connection.disconnect();
+			}
+		})) {
+			throw new IOException("request aborted");
+		}
+		long startTime = System.currentTimeMillis();
+		try {
+			try {
+				connection.connect();
+			} catch (SocketTimeoutException e) {
+				throw new ConnectException("connect timeout: "
+						+ e.getMessage());
+			}
+			if (body != null) {
+				OutputStream out = connection.getOutputStream();
+				out.write(body);
+				out.close();
+			}
+			// the response drops the abort handler when it is closed
+			UrlConnectionResponse response = new UrlConnectionResponse(
+					request, connection, connection.getResponseCode());
+			HttpConnectionManager.recordExecute(getName(),
+					System.currentTimeMillis() - startTime);
+			saveCookies(connection);
+			return response;
+		} catch (IOException e) {
+			request.setAbortHandler(null);
+			connection.disconnect();
+			throw e;
+		} catch (RuntimeException e) {
+			request.setAbortHandler(null);
+			throw e;
+		}
+	}
+
+	private void saveCookies(HttpURLConnection connection) {
+		// header names are case insensitive, the map keys are as sent
+		Iterator<Entry<String, List<String>>> iter = connection
+				.getHeaderFields().entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry<String, List<String>> header = iter.next();
+			if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+				saveCookies(header.getValue());
+			}
+		}
+	}
+
+	private void saveCookies(List<String> setCookies) {
+		synchronized (mCookieLock) {
+			for (int i = 0; i < setCookies.size(); ++i) {
+				// only name=value matters, the server is the only host
+				String cookie = setCookies.get(i);
+				int end = cookie.indexOf(';');
+				if (end >= 0) {
+					cookie = cookie.substring(0, end);
+				}
+				int eq = cookie.indexOf('=');
+				if (eq <= 0) {
+					Log.w(TAG, "bad cookie: " + setCookies.get(i));
+					continue;
+				}
+				mCookies.put(cookie.substring(0, eq).trim(), cookie
+						.substring(eq + 1).trim());
+			}
+		}
+	}
+
+	public String getCookieHeader() {
+		StringBuilder builder = new StringBuilder();
+		synchronized (mCookieLock) {
+			Iterator<Entry<String, String>> iter = mCookies.entrySet()
+					.iterator();
+			while (iter.hasNext()) {
+				Entry<String, String> cookie = iter.next();
+				if (builder.length() > 0) {
+					builder.append("; ");
+				}
+				builder.append(cookie.getKey()).append('=')
+						.append(cookie.getValue());
+			}
+		}
+		return builder.toString();
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	static class UrlConnectionResponse implements HttpTransportResponse {
+		HttpTransportRequest mRequest;
+		HttpURLConnection mConnection;
+		int mStatusCode;
+		InputStream mContent = null;
+
+		UrlConnectionResponse(HttpTransportRequest request,
+				HttpURLConnection connection, int statusCode) {
+			mRequest = request;
+			mConnection = connection;
+			mStatusCode = statusCode;
+		}
+
+		public int getStatusCode() {
+			return mStatusCode;
+		}
+
+		public String getHeader(String name) {
+			return mConnection.getHeaderField(name);
+		}
+
+		public InputStream getContent() throws IOException {
+			if (mContent == null) {
+				mContent = mRequest
+						.getAbortableContent(mStatusCode >= 400 ? mConnection
+								.getErrorStream() : mConnection.getInputStream());
+			}
+			return mContent;
+		}
+
+		public void close() {
+			try {
+				InputStream in = getContent();
+				if (in != null) {
+					// drain it so the connection can be reused
+					byte[] buffer = new byte[1024];
+					while (in.read(buffer) != -1) {
+					}
+					in.close();
+				}
+			} catch (IOException e) {
+				mConnection.disconnect();
+			}
+			mRequest.setAbortHandler(null);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package android.util;
+
+// android.jar's Log throws in a local JVM, this one goes first on the test
+// classpath so the journal and push channel can run outside a device
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	static boolean mVerbose = Boolean.getBoolean("taxi.test.log");
+
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) {
+		return println(VERBOSE, tag, msg, null);
+	}
+
+	public static int d(String tag, String msg) {
+		return println(DEBUG, tag, msg, null);
+	}
+
+	public static int i(String tag, String msg) {
+		return println(INFO, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg) {
+		return println(WARN, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg, tr);
+	}
+
+	public static int wtf(String tag, String msg) {
+		return println(ASSERT, tag, msg, null);
+	}
+
+	// quiet unless -Dtaxi.test.log=true, errors always print
+	private static int println(int priority, String tag, String msg,
+			Throwable tr) {
+		if (!mVerbose && priority < ERROR) {
+			return 0;
+		}
+		System.out.println(tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace(System.out);
+		}
+		return 0;
+	}
+}
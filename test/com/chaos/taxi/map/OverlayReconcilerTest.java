@@ -0,0 +1,174 @@
+package com.chaos.taxi.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+// TaxiOverlayItem needs a device, the items here are plain { phone, lat,
+// lng } params that count how often they are created.
+public class OverlayReconcilerTest {
+	static final int BENCHMARK_TAXIS = 600;
+	static final int BENCHMARK_ROUNDS = 200;
+
+	static class Taxi {
+		String mPhoneNumber;
+		int mLatitudeE6;
+		int mLongitudeE6;
+
+		Taxi(String phoneNumber, int latitudeE6, int longitudeE6) {
+			mPhoneNumber = phoneNumber;
+			mLatitudeE6 = latitudeE6;
+			mLongitudeE6 = longitudeE6;
+		}
+	}
+
+	static class Item {
+		Taxi mTaxi;
+
+		Item(Taxi taxi) {
+			mTaxi = taxi;
+		}
+	}
+
+	static class TaxiAdapter implements OverlayReconciler.Adapter<Item, Taxi> {
+		int mCreated = 0;
+
+		public String getKey(Taxi taxi) {
+			return taxi.mPhoneNumber;
+		}
+
+		public Taxi getParam(Item item) {
+			return item.mTaxi;
+		}
+
+		public boolean isSame(Taxi taxi, Taxi other) {
+			return taxi.mLatitudeE6 == other.mLatitudeE6
+					&& taxi.mLongitudeE6 == other.mLongitudeE6;
+		}
+
+		public Item create(Taxi taxi) {
+			++mCreated;
+			return new Item(taxi);
+		}
+	}
+
+	static ArrayList<Taxi> taxis(Taxi... taxis) {
+		ArrayList<Taxi> list = new ArrayList<Taxi>();
+		for (int i = 0; i < taxis.length; ++i) {
+			list.add(taxis[i]);
+		}
+		return list;
+	}
+
+	@Test
+	public void testReconcile() {
+		TaxiAdapter adapter = new TaxiAdapter();
+		ArrayList<Item> addItems = new ArrayList<Item>();
+		ArrayList<Item> removeItems = new ArrayList<Item>();
+		ArrayList<Item> items = OverlayReconciler.reconcile(
+				new ArrayList<Item>(), taxis(new Taxi("1", 0, 0), new Taxi(
+						"2", 0, 0), new Taxi("3", 0, 0)), adapter, addItems,
+				removeItems);
+		assertEquals(3, items.size());
+		assertEquals(3, addItems.size());
+		assertEquals(0, removeItems.size());
+		Item first = items.get(0);
+		Item second = items.get(1);
+		Item third = items.get(2);
+
+		// 1 stays, 2 moves, 3 is gone, 4 is new
+		addItems.clear();
+		items = OverlayReconciler.reconcile(items, taxis(new Taxi("4", 0, 0),
+				new Taxi("2", 1, 0), new Taxi("1", 0, 0)), adapter, addItems,
+				removeItems);
+		assertEquals(3, items.size());
+		assertEquals("4", items.get(0).mTaxi.mPhoneNumber);
+		assertEquals(1, items.get(1).mTaxi.mLatitudeE6);
+		assertSame(first, items.get(2));
+		assertEquals(2, addItems.size());
+		assertEquals(2, removeItems.size());
+		assertTrue(removeItems.contains(second));
+		assertTrue(removeItems.contains(third));
+		assertEquals(5, adapter.mCreated);
+	}
+
+	@Test
+	public void testEmptyAnswer() {
+		TaxiAdapter adapter = new TaxiAdapter();
+		ArrayList<Item> current = new ArrayList<Item>();
+		current.add(new Item(new Taxi("1", 0, 0)));
+		ArrayList<Item> addItems = new ArrayList<Item>();
+		ArrayList<Item> removeItems = new ArrayList<Item>();
+		ArrayList<Item> items = OverlayReconciler.reconcile(current,
+				new ArrayList<Taxi>(), adapter, addItems, removeItems);
+		assertEquals(0, items.size());
+		assertEquals(0, addItems.size());
+		assertSame(current.get(0), removeItems.get(0));
+	}
+
+	// an answer where most taxis wait at their stands: each refresh a few
+	// move, leave or show up
+	static ArrayList<Taxi> nextAnswer(ArrayList<Taxi> answer, Random random,
+			int[] nextPhone) {
+		ArrayList<Taxi> next = new ArrayList<Taxi>(answer.size());
+		for (int i = 0; i < answer.size(); ++i) {
+			Taxi taxi = answer.get(i);
+			int dice = random.nextInt(100);
+			if (dice < 5) {
+				continue;
+			}
+			if (dice < 20) {
+				taxi = new Taxi(taxi.mPhoneNumber, taxi.mLatitudeE6
+						+ random.nextInt(200) - 100, taxi.mLongitudeE6
+						+ random.nextInt(200) - 100);
+			}
+			next.add(taxi);
+		}
+		while (next.size() < BENCHMARK_TAXIS) {
+			next.add(new Taxi("138" + nextPhone[0]++, 32060300 + random
+					.nextInt(20000), 118796900 + random.nextInt(20000)));
+		}
+		return next;
+	}
+
+	@Test
+	public void benchmark() {
+		Random random = new Random(1);
+		int[] nextPhone = { 10000000 };
+		TaxiAdapter adapter = new TaxiAdapter();
+		ArrayList<Taxi> answer = nextAnswer(new ArrayList<Taxi>(), random,
+				nextPhone);
+		ArrayList<Item> items = OverlayReconciler.reconcile(
+				new ArrayList<Item>(), answer, adapter, new ArrayList<Item>(),
+				new ArrayList<Item>());
+		adapter.mCreated = 0;
+		long time = 0;
+		long changes = 0;
+		for (int round = 0; round < 2 * BENCHMARK_ROUNDS; ++round) {
+			answer = nextAnswer(answer, random, nextPhone);
+			ArrayList<Item> addItems = new ArrayList<Item>();
+			ArrayList<Item> removeItems = new ArrayList<Item>();
+			long start = System.nanoTime();
+			items = OverlayReconciler.reconcile(items, answer, adapter,
+					addItems, removeItems);
+			if (round >= BENCHMARK_ROUNDS) {
+				time += System.nanoTime() - start;
+				changes += addItems.size() + removeItems.size();
+			}
+			assertEquals(answer.size(), items.size());
+		}
+		// a full replace creates every item each time
+		assertTrue(adapter.mCreated < BENCHMARK_TAXIS * BENCHMARK_ROUNDS);
+		System.out.println("OverlayReconciler: " + BENCHMARK_TAXIS
+				+ " taxis, " + time / BENCHMARK_ROUNDS / 1000
+				+ "us per answer, " + adapter.mCreated / (2 * BENCHMARK_ROUNDS)
+				+ " items created and " + changes / BENCHMARK_ROUNDS
+				+ " overlay changes per answer instead of "
+				+ BENCHMARK_TAXIS + " and " + 2 * BENCHMARK_TAXIS);
+	}
+}
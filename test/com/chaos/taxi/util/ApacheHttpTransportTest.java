@@ -0,0 +1,14 @@
+package com.chaos.taxi.util;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+
+public class ApacheHttpTransportTest extends HttpTransportTestCase {
+	// HttpConnectionManager.createHttpClient() logs its connects, so a plain
+	// client with the same no-delay setting
+	HttpTransport createTransport() {
+		DefaultHttpClient httpClient = new DefaultHttpClient();
+		HttpConnectionParams.setTcpNoDelay(httpClient.getParams(), true);
+		return new ApacheHttpTransport(httpClient);
+	}
+}
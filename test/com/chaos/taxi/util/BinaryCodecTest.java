@@ -0,0 +1,234 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class BinaryCodecTest {
+	static final int BENCHMARK_ROUNDS = 2000;
+
+	@Test
+	public void testVarint() throws IOException {
+		long[] values = { 0, 1, -1, 63, -64, 64, 127, 128, 300, -300,
+				Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+				Long.MIN_VALUE };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < values.length; ++i) {
+			BinaryCodec.writeZigZag(out, values[i]);
+		}
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (int i = 0; i < values.length; ++i) {
+			assertEquals(values[i], BinaryCodec.readZigZag(in));
+		}
+		assertEquals(-1, in.read());
+
+		// small magnitudes take one byte either sign
+		out.reset();
+		BinaryCodec.writeZigZag(out, -64);
+		BinaryCodec.writeVarint(out, 127);
+		assertEquals(2, out.size());
+	}
+
+	@Test
+	public void testEncodeLocationUpdate() throws Exception {
+		JSONObject json = new JSONObject();
+		json.put("latitude", 32.0603);
+		json.put("longitude", 118.7969);
+		byte[] bytes = BinaryCodec.encodeRequest(
+				RequestManager.LOCATION_UPDATE_REQUEST, json);
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		assertEquals(BinaryCodec.VERSION, in.read());
+		assertEquals(BinaryCodec.TAG_LOCATION_UPDATE, in.read());
+		assertEquals(32.0603, BinaryCodec.readE6(in), 0);
+		assertEquals(118.7969, BinaryCodec.readE6(in), 0);
+		assertEquals(-1, in.read());
+		assertTrue(bytes.length <= 12);
+	}
+
+	@Test
+	public void testEncodeLocationStream() throws Exception {
+		long[] points = { 32060300, 118796900, 1300000000000L, 12, -7, 1000 };
+		JSONObject json = new JSONObject();
+		json.put("seq", 3);
+		json.put("keyframe", true);
+		JSONArray pointsJson = new JSONArray();
+		for (int i = 0; i < points.length; ++i) {
+			pointsJson.put(points[i]);
+		}
+		json.put("points", pointsJson);
+		byte[] bytes = BinaryCodec.encodeRequest(
+				RequestManager.LOCATION_STREAM_REQUEST, json);
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		assertEquals(BinaryCodec.VERSION, in.read());
+		assertEquals(BinaryCodec.TAG_LOCATION_STREAM, in.read());
+		assertEquals(3, BinaryCodec.readVarint(in));
+		assertEquals(BinaryCodec.FLAG_KEYFRAME, in.read());
+		assertEquals(points.length, BinaryCodec.readVarint(in));
+		for (int i = 0; i < points.length; ++i) {
+			assertEquals(points[i], BinaryCodec.readZigZag(in));
+		}
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testNoSchema() throws Exception {
+		assertNull(BinaryCodec.encodeRequest(RequestManager.CALL_TAXI_REQUEST,
+				new JSONObject()));
+		assertNull(BinaryCodec.encodeRequest(
+				RequestManager.LOCATION_STREAM_REQUEST, new JSONObject()));
+		assertNull(BinaryCodec.encodeRequest(
+				RequestManager.LOCATION_UPDATE_REQUEST, null));
+	}
+
+	static JSONObject createRefreshResponse() throws Exception {
+		JSONArray messages = new JSONArray();
+		JSONObject location = new JSONObject();
+		location.put("latitude", 32.0603);
+		location.put("longitude", 118.7969);
+		JSONObject message = new JSONObject();
+		message.put("type", RequestManager.LOCATION_UPDATE_REQUEST);
+		message.put("id", 41);
+		message.put("location", location);
+		messages.put(message);
+		message = new JSONObject();
+		message.put("type", RequestManager.CALL_TAXI_RESPONSE);
+		message.put("id", 42);
+		message.put("accept", true);
+		message.put("key", 1234567890123L);
+		message.put("token", "a1b2c3");
+		message.put("driver", "13800000000");
+		messages.put(message);
+		message = new JSONObject();
+		message.put("type", RequestManager.CALL_TAXI_RESPONSE);
+		message.put("accept", false);
+		message.put("key", 7);
+		messages.put(message);
+		message = new JSONObject();
+		message.put("type", RequestManager.CALL_TAXI_COMPLETE);
+		message.put("id", 0);
+		messages.put(message);
+		// no schema, goes as embedded json
+		message = new JSONObject();
+		message.put("type", "notice");
+		message.put("id", 43);
+		message.put("text", "\u5357\u4eac");
+		messages.put(message);
+		JSONObject response = new JSONObject();
+		response.put("status", 0);
+		response.put("long_poll", true);
+		response.put("messages", messages);
+		return response;
+	}
+
+	@Test
+	public void testResponseRoundTrip() throws Exception {
+		JSONObject response = createRefreshResponse();
+		byte[] bytes = BinaryCodec.encodeResponse(response);
+		JSONObject decoded = BinaryCodec
+				.decodeResponse(new ByteArrayInputStream(bytes));
+		JsonStreamParserTest.assertJsonEquals(response, decoded);
+		assertTrue(bytes.length < response.toString().length() / 2);
+	}
+
+	@Test
+	public void testEmptyResponse() throws Exception {
+		JSONObject response = new JSONObject();
+		response.put("status", 1);
+		JSONObject decoded = BinaryCodec
+				.decodeResponse(new ByteArrayInputStream(BinaryCodec
+						.encodeResponse(response)));
+		assertEquals(1, decoded.getInt("status"));
+		assertFalse(decoded.has("long_poll"));
+		assertEquals(0, decoded.getJSONArray("messages").length());
+	}
+
+	@Test
+	public void testBadInput() throws Exception {
+		byte[] bytes = BinaryCodec.encodeResponse(createRefreshResponse());
+		for (int length = 0; length < bytes.length; ++length) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			try {
+				BinaryCodec.decodeResponse(new ByteArrayInputStream(truncated));
+				fail("decoded " + length + " of " + bytes.length + " bytes");
+			} catch (EOFException e) {
+				// expected
+			}
+		}
+		byte[] badVersion = bytes.clone();
+		badVersion[0] = (byte) (BinaryCodec.VERSION + 1);
+		assertDecodeFails(badVersion);
+		// version, status 0, no flags, one message of an unknown tag
+		assertDecodeFails(new byte[] { BinaryCodec.VERSION, 0, 0, 1, 99, 0 });
+	}
+
+	static void assertDecodeFails(byte[] bytes) throws Exception {
+		try {
+			BinaryCodec.decodeResponse(new ByteArrayInputStream(bytes));
+			fail("decoded bad input");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testContentType() {
+		assertTrue(BinaryCodec.isBinary(BinaryCodec.CONTENT_TYPE));
+		assertTrue(BinaryCodec.isBinary(BinaryCodec.CONTENT_TYPE
+				+ "; charset=binary"));
+		assertFalse(BinaryCodec.isBinary("application/json"));
+		assertFalse(BinaryCodec.isBinary(null));
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		JSONObject response = createRefreshResponse();
+		byte[] binary = BinaryCodec.encodeResponse(response);
+		byte[] json = response.toString().getBytes("UTF-8");
+		JSONObject update = new JSONObject();
+		update.put("latitude", 32.0603);
+		update.put("longitude", 118.7969);
+		byte[] updateBinary = BinaryCodec.encodeRequest(
+				RequestManager.LOCATION_UPDATE_REQUEST, update);
+		int updateJson = ("json_data=" + update.toString()).length();
+
+		long binaryTime = 0;
+		long jsonTime = 0;
+		for (int round = 0; round < 2 * BENCHMARK_ROUNDS; ++round) {
+			long start = System.nanoTime();
+			JSONObject fromBinary = BinaryCodec
+					.decodeResponse(new ByteArrayInputStream(binary));
+			long middle = System.nanoTime();
+			JSONObject fromJson = JsonStreamParser
+					.parseObject(new InputStreamReader(
+							new ByteArrayInputStream(json), "UTF-8"));
+			long end = System.nanoTime();
+			if (round >= BENCHMARK_ROUNDS) {
+				binaryTime += middle - start;
+				jsonTime += end - middle;
+			}
+			assertEquals(fromJson.getJSONArray("messages").length(),
+					fromBinary.getJSONArray("messages").length());
+		}
+		System.out.println("BinaryCodec: refresh " + binary.length
+				+ " bytes vs json " + json.length + ", decode "
+				+ binaryTime / BENCHMARK_ROUNDS / 1000 + "us vs "
+				+ jsonTime / BENCHMARK_ROUNDS / 1000
+				+ "us; location update " + updateBinary.length
+				+ " bytes vs json " + updateJson);
+		assertArrayEquals(binary, BinaryCodec.encodeResponse(response));
+	}
+}
@@ -0,0 +1,340 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Plain JUnit 4, no Android classes. Expected distances are the haversine on
+// a sphere of Geodesy.EARTH_RADIUS worked out by hand; on the WGS84
+// ellipsoid Nanjing to Shanghai is 270058m, 0.15% longer.
+public class GeodesyTest {
+	static final int NANJING_LATITUDE = Geodesy.toE6(32.0603);
+	static final int NANJING_LONGITUDE = Geodesy.toE6(118.7969);
+	static final int SHANGHAI_LATITUDE = Geodesy.toE6(31.2304);
+	static final int SHANGHAI_LONGITUDE = Geodesy.toE6(121.4737);
+	static final int BENCHMARK_PAIRS = 1024;
+	static final int BENCHMARK_OPS = 2000000;
+
+	@Test
+	public void testE6() {
+		assertEquals(118796900, NANJING_LONGITUDE);
+		assertEquals(-179999999, Geodesy.toE6(-179.999999));
+		assertEquals(31.2304, Geodesy.fromE6(SHANGHAI_LATITUDE), 1e-9);
+	}
+
+	@Test
+	public void testDistance() {
+		assertEquals(269661, Geodesy.distance(NANJING_LATITUDE,
+				NANJING_LONGITUDE, SHANGHAI_LATITUDE, SHANGHAI_LONGITUDE), 1);
+		assertEquals(269671, Geodesy.fastDistance(NANJING_LATITUDE,
+				NANJING_LONGITUDE, SHANGHAI_LATITUDE, SHANGHAI_LONGITUDE), 1);
+		assertEquals(0, Geodesy.distance(NANJING_LATITUDE, NANJING_LONGITUDE,
+				NANJING_LATITUDE, NANJING_LONGITUDE), 0);
+		// a quarter of the equator
+		assertEquals(Math.PI / 2 * Geodesy.EARTH_RADIUS, Geodesy.distance(0,
+				0, 0, 90000000), 1e-6);
+	}
+
+	@Test
+	public void testFastDistanceAtCityRange() {
+		// 10 km east and north of Nanjing, within a meter of distance()
+		int latitude = NANJING_LATITUDE + 90000;
+		int longitude = NANJING_LONGITUDE + 106000;
+		assertEquals(Geodesy.distance(NANJING_LATITUDE, NANJING_LONGITUDE,
+				latitude, longitude), Geodesy.fastDistance(NANJING_LATITUDE,
+				NANJING_LONGITUDE, latitude, longitude), 1);
+	}
+
+	@Test
+	public void testDistanceAcrossAntimeridian() {
+		// 0.2 degrees of the equator the short way, not 359.8
+		double expected = 0.2 * Math.PI / 180 * Geodesy.EARTH_RADIUS;
+		assertEquals(expected, Geodesy.distance(0, 179900000, 0, -179900000),
+				1e-6);
+		assertEquals(expected, Geodesy.fastDistance(0, -179900000, 0,
+				179900000), 1e-6);
+	}
+
+	@Test
+	public void testBearing() {
+		assertEquals(0, Geodesy.bearing(0, 0, 1000000, 0), 1e-9);
+		assertEquals(90, Geodesy.bearing(0, 0, 0, 1000000), 1e-9);
+		assertEquals(180, Geodesy.bearing(0, 0, -1000000, 0), 1e-9);
+		// east over the antimeridian
+		assertEquals(90, Geodesy.bearing(0, 179900000, 0, -179900000), 1e-9);
+		assertEquals(270, Geodesy.bearing(0, -179900000, 0, 179900000), 1e-9);
+		double bearing = Geodesy.bearing(NANJING_LATITUDE, NANJING_LONGITUDE,
+				SHANGHAI_LATITUDE, SHANGHAI_LONGITUDE);
+		assertTrue(bearing > 90 && bearing < 135);
+	}
+
+	@Test
+	public void testBoundingBox() {
+		int[] box = new int[Geodesy.BOX_SIZE];
+		Geodesy.boundingBox(NANJING_LATITUDE, NANJING_LONGITUDE, 1000, box);
+		// each edge is about the radius from the center
+		assertEquals(1000, Geodesy.distance(NANJING_LATITUDE,
+				NANJING_LONGITUDE, box[Geodesy.BOX_MAX_LATITUDE],
+				NANJING_LONGITUDE), 1);
+		assertEquals(1000, Geodesy.distance(NANJING_LATITUDE,
+				NANJING_LONGITUDE, box[Geodesy.BOX_MIN_LATITUDE],
+				NANJING_LONGITUDE), 1);
+		// longitude edges are taken at the latitude farthest from the
+		// equator, so they are a little wider
+		double east = Geodesy.distance(NANJING_LATITUDE, NANJING_LONGITUDE,
+				NANJING_LATITUDE, box[Geodesy.BOX_MAX_LONGITUDE]);
+		assertTrue(east >= 999 && east < 1010);
+		assertTrue(Geodesy.contains(box, NANJING_LATITUDE, NANJING_LONGITUDE));
+		assertTrue(Geodesy.contains(box, NANJING_LATITUDE + 8000,
+				NANJING_LONGITUDE - 8000));
+		assertFalse(Geodesy.contains(box, NANJING_LATITUDE + 10000,
+				NANJING_LONGITUDE));
+		assertFalse(Geodesy.contains(box, NANJING_LATITUDE,
+				NANJING_LONGITUDE + 11000));
+	}
+
+	@Test
+	public void testBoundingBoxAcrossAntimeridian() {
+		int[] box = new int[Geodesy.BOX_SIZE];
+		Geodesy.boundingBox(0, 179999000, 1000, box);
+		assertTrue(box[Geodesy.BOX_MAX_LONGITUDE] > 180000000);
+		assertTrue(Geodesy.contains(box, 0, 179999000));
+		assertTrue(Geodesy.contains(box, 0, -179998000));
+		assertFalse(Geodesy.contains(box, 0, -179980000));
+
+		Geodesy.boundingBox(0, -179999000, 1000, box);
+		assertTrue(box[Geodesy.BOX_MIN_LONGITUDE] < -180000000);
+		assertTrue(Geodesy.contains(box, 0, 179998000));
+		assertFalse(Geodesy.contains(box, 0, 179980000));
+	}
+
+	@Test
+	public void testBoundingBoxAtPole() {
+		int[] box = new int[Geodesy.BOX_SIZE];
+		Geodesy.boundingBox(89999000, 0, 1000, box);
+		assertEquals(90000000, box[Geodesy.BOX_MAX_LATITUDE]);
+		// any longitude near the pole
+		assertTrue(Geodesy.contains(box, 89999500, 179000000));
+	}
+
+	@Test
+	public void testStandInLocationIsWgs84() {
+		StandInLocation nanjing = new StandInLocation(NANJING_LATITUDE,
+				NANJING_LONGITUDE);
+		StandInLocation shanghai = new StandInLocation(SHANGHAI_LATITUDE,
+				SHANGHAI_LONGITUDE);
+		assertEquals(270058, nanjing.distanceTo(shanghai), 1);
+		assertEquals(Geodesy.bearing(NANJING_LATITUDE, NANJING_LONGITUDE,
+				SHANGHAI_LATITUDE, SHANGHAI_LONGITUDE), nanjing
+				.bearingTo(shanghai), 0.5);
+	}
+
+	// pairs of points within 20km of Nanjing, the range the app works at
+	@Test
+	public void benchmark() {
+		Random random = new Random(1);
+		final int[] pairs = new int[4 * BENCHMARK_PAIRS];
+		for (int i = 0; i < pairs.length; i += 2) {
+			pairs[i] = NANJING_LATITUDE + random.nextInt(180000) - 90000;
+			pairs[i + 1] = NANJING_LONGITUDE + random.nextInt(212000) - 106000;
+		}
+		final int[] box = new int[Geodesy.BOX_SIZE];
+		GeoOp[] ops = { new GeoOp("haversine") {
+			double run(int i) {
+				return Geodesy.distance(pairs[i], pairs[i + 1], pairs[i + 2],
+						pairs[i + 3]);
+			}
+		}, new GeoOp("equirectangular") {
+			double run(int i) {
+				return Geodesy.fastDistance(pairs[i], pairs[i + 1],
+						pairs[i + 2], pairs[i + 3]);
+			}
+		}, new GeoOp("bearing") {
+			double run(int i) {
+				return Geodesy.bearing(pairs[i], pairs[i + 1], pairs[i + 2],
+						pairs[i + 3]);
+			}
+		}, new GeoOp("boundingBox+contains") {
+			double run(int i) {
+				Geodesy.boundingBox(pairs[i], pairs[i + 1], 5000, box);
+				return Geodesy.contains(box, pairs[i + 2], pairs[i + 3]) ? 1
+						: 0;
+			}
+		}, new GeoOp("Location.distanceTo") {
+			double run(int i) {
+				return new StandInLocation(pairs[i], pairs[i + 1])
+						.distanceTo(new StandInLocation(pairs[i + 2],
+								pairs[i + 3]));
+			}
+		}, new GeoOp("Location.bearingTo") {
+			double run(int i) {
+				return new StandInLocation(pairs[i], pairs[i + 1])
+						.bearingTo(new StandInLocation(pairs[i + 2],
+								pairs[i + 3]));
+			}
+		} };
+
+		StringBuilder builder = new StringBuilder("Geodesy:");
+		for (int i = 0; i < ops.length; ++i) {
+			// the first run warms up the JIT
+			ops[i].measure();
+			ops[i].measure();
+			builder.append(i == 0 ? " " : ", ").append(ops[i].mName).append(
+					' ').append(ops[i].mTime / BENCHMARK_OPS).append("ns");
+			if (ops[i].mAllocated >= 0) {
+				builder.append(' ').append(
+						Math.round(ops[i].mAllocated / (double) BENCHMARK_OPS))
+						.append("B/op");
+			}
+			// none of Geodesy allocates
+			if (i < 4 && ops[i].mAllocated >= 0) {
+				assertTrue(ops[i].mName, ops[i].mAllocated < BENCHMARK_OPS);
+			}
+		}
+		System.out.println(builder.toString());
+
+		// on the sphere, within 0.5% of the ellipsoid
+		for (int i = 0; i < pairs.length; i += 4) {
+			double distance = ops[4].run(i);
+			assertEquals(distance, ops[0].run(i), distance * 0.005 + 0.1);
+			assertEquals(distance, ops[1].run(i), distance * 0.005 + 0.1);
+		}
+	}
+
+	// bytes this thread allocated so far, -1 if the vm does not count them
+	static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	abstract static class GeoOp {
+		String mName;
+		long mTime;
+		long mAllocated;
+		double mSink;
+
+		GeoOp(String name) {
+			mName = name;
+		}
+
+		// i indexes a pair of points, 4 ints
+		abstract double run(int i);
+
+		void measure() {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			double sink = 0;
+			for (int op = 0; op < BENCHMARK_OPS; ++op) {
+				sink += run((op % BENCHMARK_PAIRS) * 4);
+			}
+			mTime = System.nanoTime() - start;
+			mAllocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+			mSink = sink;
+		}
+	}
+
+	// android.location.Location cannot run here. This does what its
+	// distanceTo and bearingTo did for the GeoPoints: a Location for each
+	// end and Vincenty's iteration on the WGS84 ellipsoid, as in
+	// Location.computeDistanceAndBearing
+	static class StandInLocation {
+		double mLatitude;
+		double mLongitude;
+		float[] mResults = new float[2];
+
+		StandInLocation(int latitudeE6, int longitudeE6) {
+			mLatitude = Geodesy.fromE6(latitudeE6);
+			mLongitude = Geodesy.fromE6(longitudeE6);
+		}
+
+		float distanceTo(StandInLocation dest) {
+			computeDistanceAndBearing(mLatitude, mLongitude, dest.mLatitude,
+					dest.mLongitude, mResults);
+			return mResults[0];
+		}
+
+		float bearingTo(StandInLocation dest) {
+			computeDistanceAndBearing(mLatitude, mLongitude, dest.mLatitude,
+					dest.mLongitude, mResults);
+			return mResults[1] < 0 ? mResults[1] + 360 : mResults[1];
+		}
+
+		static void computeDistanceAndBearing(double lat1, double lon1,
+				double lat2, double lon2, float[] results) {
+			double a = 6378137.0;
+			double b = 6356752.3142;
+			double f = (a - b) / a;
+			double aSqMinusBSqOverBSq = (a * a - b * b) / (b * b);
+			double L = Math.toRadians(lon2 - lon1);
+			double U1 = Math.atan((1.0 - f) * Math.tan(Math.toRadians(lat1)));
+			double U2 = Math.atan((1.0 - f) * Math.tan(Math.toRadians(lat2)));
+			double cosU1 = Math.cos(U1);
+			double cosU2 = Math.cos(U2);
+			double sinU1 = Math.sin(U1);
+			double sinU2 = Math.sin(U2);
+			double cosU1cosU2 = cosU1 * cosU2;
+			double sinU1sinU2 = sinU1 * sinU2;
+
+			double A = 0.0;
+			double sigma = 0.0;
+			double deltaSigma = 0.0;
+			double cosLambda = 0.0;
+			double sinLambda = 0.0;
+			double lambda = L;
+			for (int iter = 0; iter < 20; iter++) {
+				double lambdaOrig = lambda;
+				cosLambda = Math.cos(lambda);
+				sinLambda = Math.sin(lambda);
+				double t1 = cosU2 * sinLambda;
+				double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+				double sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+				double cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda;
+				sigma = Math.atan2(sinSigma, cosSigma);
+				double sinAlpha = sinSigma == 0 ? 0.0 : cosU1cosU2
+						* sinLambda / sinSigma;
+				double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+				double cos2SM = cosSqAlpha == 0 ? 0.0 : cosSigma - 2.0
+						* sinU1sinU2 / cosSqAlpha;
+				double uSquared = cosSqAlpha * aSqMinusBSqOverBSq;
+				A = 1 + (uSquared / 16384.0)
+						* (4096.0 + uSquared
+								* (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+				double B = (uSquared / 1024.0)
+						* (256.0 + uSquared
+								* (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+				double C = (f / 16.0) * cosSqAlpha
+						* (4.0 + f * (4.0 - 3.0 * cosSqAlpha));
+				double cos2SMSq = cos2SM * cos2SM;
+				deltaSigma = B
+						* sinSigma
+						* (cos2SM + (B / 4.0)
+								* (cosSigma * (-1.0 + 2.0 * cos2SMSq) - (B / 6.0)
+										* cos2SM
+										* (-3.0 + 4.0 * sinSigma * sinSigma)
+										* (-3.0 + 4.0 * cos2SMSq)));
+				lambda = L
+						+ (1.0 - C)
+						* f
+						* sinAlpha
+						* (sigma + C * sinSigma
+								* (cos2SM + C * cosSigma * (-1.0 + 2.0 * cos2SMSq)));
+				if (Math.abs((lambda - lambdaOrig) / lambda) < 1.0e-12) {
+					break;
+				}
+			}
+			results[0] = (float) (b * A * (sigma - deltaSigma));
+			results[1] = (float) Math.toDegrees(Math.atan2(cosU2 * sinLambda,
+					cosU1 * sinU2 - sinU1 * cosU2 * cosLambda));
+		}
+	}
+}
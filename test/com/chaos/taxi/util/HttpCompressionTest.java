@@ -0,0 +1,115 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chaos.taxi.util.HttpTransport.HttpTransportResponse;
+
+public class HttpCompressionTest {
+	static final String SERVER = "http://taxi.no.de/refresh";
+	static final String GEOCODER = "http://maps.googleapis.com/maps/api/geocode/json";
+
+	static class Response implements HttpTransportResponse {
+		HashMap<String, String> mHeaders = new HashMap<String, String>();
+		byte[] mBody;
+
+		Response(byte[] body) {
+			mBody = body;
+		}
+
+		public int getStatusCode() {
+			return 200;
+		}
+
+		public String getHeader(String name) {
+			return mHeaders.get(name);
+		}
+
+		public InputStream getContent() {
+			return mBody == null ? null : new ByteArrayInputStream(mBody);
+		}
+
+		public void close() {
+		}
+	}
+
+	@Before
+	public void setUp() {
+		synchronized (HttpCompression.mLock) {
+			HttpCompression.mGzipHosts.clear();
+			HttpCompression.mStats.clear();
+		}
+	}
+
+	@Test
+	public void testGzipIsKeptPerHost() throws IOException {
+		Response response = new Response(null);
+		response.mHeaders.put(HttpCompression.ACCEPT_ENCODING, "gzip");
+		assertNull(HttpCompression.getContent(get(SERVER), response));
+
+		// the geocoder takes no gzip, that says nothing of the server
+		response = new Response(null);
+		response.mHeaders.put(HttpCompression.ACCEPT_ENCODING, "identity");
+		HttpCompression.getContent(get(GEOCODER), response);
+
+		HttpTransportRequest request = post(SERVER);
+		HttpCompression.prepareRequest(request);
+		assertEquals(HttpCompression.GZIP, request
+				.getHeader(HttpCompression.CONTENT_ENCODING));
+		request = post(GEOCODER);
+		HttpCompression.prepareRequest(request);
+		assertNull(request.getHeader(HttpCompression.CONTENT_ENCODING));
+
+		// until the server says otherwise
+		response = new Response(null);
+		response.mHeaders.put(HttpCompression.ACCEPT_ENCODING, "identity");
+		HttpCompression.getContent(get(SERVER), response);
+		request = post(SERVER);
+		HttpCompression.prepareRequest(request);
+		assertNull(request.getHeader(HttpCompression.CONTENT_ENCODING));
+	}
+
+	@Test
+	public void testGzipResponseIsDecodedAndCounted() throws IOException {
+		byte[] raw = body();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(raw);
+		gzip.close();
+		Response response = new Response(out.toByteArray());
+		response.mHeaders.put(HttpCompression.CONTENT_ENCODING, "gzip");
+
+		InputStream in = HttpCompression.getContent(get(SERVER), response);
+		assertArrayEquals(raw, HttpTransportTestCase.readAll(in));
+		in.close();
+		assertEquals(raw.length - out.size(), HttpCompression
+				.getBytesSaved("/refresh"));
+	}
+
+	private static HttpTransportRequest get(String url) {
+		return new HttpTransportRequest(HttpTransportRequest.GET, url);
+	}
+
+	private static HttpTransportRequest post(String url) throws IOException {
+		HttpTransportRequest request = new HttpTransportRequest(
+				HttpTransportRequest.POST, url);
+		request.setBody(body());
+		return request;
+	}
+
+	// above COMPRESS_THRESHOLD and compressible
+	private static byte[] body() throws IOException {
+		return JsonStreamParserTest.createResponse(20).getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,414 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chaos.taxi.util.HttpTransport.HttpTransportResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// The same checks for every transport, against a local server standing in
+// for the taxi server. Subclasses only create the transport.
+public abstract class HttpTransportTestCase {
+	static final int BENCHMARK_REQUESTS = 500;
+	// the head of a body the server sends before it stalls
+	static final int STALL_HEAD = 1024;
+	// Time in ms the server stalls before it ends the body
+	static final int STALL_TIME = 3000;
+	// calls the stand-in driver accepts per refresh mode
+	static final int LATENCY_ACCEPTS = 4;
+
+	static {
+		// else the server Nagles its two writes per response and a client
+		// that acks late waits 40ms for each
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	HttpServer mServer;
+	String mUrl;
+	HttpTransport mTransport;
+	CountDownLatch mStallLatch = new CountDownLatch(1);
+	// messages the refresh hands out next, and when the last was accepted
+	Object mMessageLock = new Object();
+	ArrayList<JSONObject> mPendingMessages = new ArrayList<JSONObject>();
+	long mAcceptTime = 0;
+
+	abstract HttpTransport createTransport();
+
+	// whether an abort unblocks a read in progress at once
+	boolean canAbortBlockedRead() {
+		return true;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// echoes the method, the cookie and the body, sets a session cookie
+		mServer.createContext("/echo", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = readAll(exchange.getRequestBody());
+				String cookie = exchange.getRequestHeaders()
+						.getFirst("Cookie");
+				exchange.getResponseHeaders().add("Set-Cookie",
+						"session=abc; Path=/");
+				exchange.getResponseHeaders().add("X-Method",
+						exchange.getRequestMethod());
+				exchange.getResponseHeaders().add("X-Cookie",
+						cookie == null ? "" : cookie);
+				String type = exchange.getRequestHeaders().getFirst(
+						"Content-Type");
+				exchange.getResponseHeaders().add("X-Type",
+						type == null ? "" : type);
+				exchange.sendResponseHeaders(200, body.length == 0 ? -1
+						: body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		mServer.createContext("/missing", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = "{\"status\":404}".getBytes("UTF-8");
+				exchange.sendResponseHeaders(404, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		// sends the headers and the head of the body, then hangs
+		mServer.createContext("/stall", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				out.write(new byte[STALL_HEAD]);
+				out.flush();
+				try {
+					mStallLatch.await(STALL_TIME, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// the server is stopping
+				}
+				exchange.close();
+			}
+		});
+		// answers at once, or with "wait" holds the request until there is a
+		// message or the wait is over, like the long poll of the server
+		mServer.createContext("/refresh", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				JSONObject responseJson = new JSONObject();
+				try {
+					String body = new String(readAll(exchange
+							.getRequestBody()), "UTF-8");
+					long wait = body.length() == 0 ? 0 : new JSONObject(body)
+							.optLong("wait", 0) * 1000;
+					long deadline = System.currentTimeMillis() + wait;
+					JSONArray messages = new JSONArray();
+					synchronized (mMessageLock) {
+						long now = System.currentTimeMillis();
+						while (mPendingMessages.isEmpty() && now < deadline) {
+							mMessageLock.wait(deadline - now);
+							now = System.currentTimeMillis();
+						}
+						for (int i = 0; i < mPendingMessages.size(); ++i) {
+							messages.put(mPendingMessages.get(i));
+						}
+						mPendingMessages.clear();
+					}
+					responseJson.put("status", 0);
+					responseJson.put("long_poll", wait > 0);
+					responseJson.put("messages", messages);
+				} catch (JSONException e) {
+					throw new IOException(e.getMessage());
+				} catch (InterruptedException e) {
+					// the server is stopping
+				}
+				byte[] body = responseJson.toString().getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		mServer.setExecutor(Executors.newCachedThreadPool());
+		mServer.start();
+		mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+		mTransport = createTransport();
+	}
+
+	@After
+	public void tearDown() {
+		mStallLatch.countDown();
+		mServer.stop(0);
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	HttpTransportRequest post(String path, String body) throws IOException {
+		HttpTransportRequest request = new HttpTransportRequest(
+				HttpTransportRequest.POST, mUrl + path);
+		request.setHeader("Content-Type", "application/json");
+		request.setBody(body.getBytes("UTF-8"));
+		return request;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		HttpTransportRequest request = post("/echo", "{\"key\":1}");
+		HttpTransportResponse response = mTransport.execute(request);
+		assertEquals(200, response.getStatusCode());
+		assertEquals("POST", response.getHeader("X-Method"));
+		assertEquals("application/json", response.getHeader("X-Type"));
+		assertEquals("{\"key\":1}", new String(readAll(response.getContent()),
+				"UTF-8"));
+		response.close();
+		assertNull(request.mAbortHandler);
+
+		// the session cookie goes with the next request
+		assertEquals("session=abc", mTransport.getCookieHeader());
+		response = mTransport.execute(post("/echo", "{}"));
+		assertEquals("session=abc", response.getHeader("X-Cookie"));
+		response.close();
+	}
+
+	@Test
+	public void testGet() throws IOException {
+		HttpTransportRequest request = new HttpTransportRequest(
+				HttpTransportRequest.GET, mUrl + "/echo");
+		assertEquals("/echo", request.getPath());
+		HttpTransportResponse response = mTransport.execute(request);
+		assertEquals(200, response.getStatusCode());
+		assertEquals("GET", response.getHeader("X-Method"));
+		response.close();
+	}
+
+	@Test
+	public void testErrorStatus() throws IOException {
+		HttpTransportResponse response = mTransport.execute(post("/missing",
+				"{}"));
+		assertEquals(404, response.getStatusCode());
+		assertEquals("{\"status\":404}", new String(readAll(response
+				.getContent()), "UTF-8"));
+		response.close();
+	}
+
+	@Test
+	public void testConnectFailure() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		HttpTransportRequest request = new HttpTransportRequest(
+				HttpTransportRequest.GET, "http://127.0.0.1:" + port + "/");
+		try {
+			mTransport.execute(request).close();
+			fail("connected to a closed port");
+		} catch (ConnectException e) {
+			// expected, the request never left
+		}
+		assertNull(request.mAbortHandler);
+	}
+
+	@Test
+	public void testAbortBeforeExecute() {
+		HttpTransportRequest request = new HttpTransportRequest(
+				HttpTransportRequest.GET, mUrl + "/echo");
+		request.abort();
+		try {
+			mTransport.execute(request).close();
+			fail("executed an aborted request");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(request.isAborted());
+	}
+
+	// execute returns with the headers, an abort must still stop the read
+	// of a body that hangs
+	@Test
+	public void testAbortWhileReadingBody() throws Exception {
+		final HttpTransportRequest request = new HttpTransportRequest(
+				HttpTransportRequest.GET, mUrl + "/stall");
+		HttpTransportResponse response = mTransport.execute(request);
+		assertEquals(200, response.getStatusCode());
+		InputStream in = response.getContent();
+		byte[] buffer = new byte[STALL_HEAD];
+		int read = 0;
+		while (read < STALL_HEAD) {
+			int count = in.read(buffer, read, STALL_HEAD - read);
+			assertTrue(count > 0);
+			read += count;
+		}
+		Thread aborter = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				request.abort();
+			}
+		};
+		aborter.start();
+		long start = System.currentTimeMillis();
+		try {
+			while (in.read(buffer) != -1) {
+			}
+			fail("read an aborted body to the end");
+		} catch (IOException e) {
+			// expected, not a short body
+		}
+		long waited = System.currentTimeMillis() - start;
+		if (canAbortBlockedRead()) {
+			assertTrue("waited " + waited + "ms", waited < STALL_TIME / 2);
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			// the connection is gone
+		}
+		assertNull(request.mAbortHandler);
+		aborter.join();
+	}
+
+	// the driver accepts at a different point of the polling cycle each
+	// time, the latency runs until the refresh loop has the reply
+	@Test
+	public void testAcceptLatency() throws Exception {
+		long[] longPoll = measureAcceptLatency(true);
+		long[] interval = measureAcceptLatency(false);
+		Arrays.sort(longPoll);
+		Arrays.sort(interval);
+		System.out.println("Accept to UI " + mTransport.getName()
+				+ ": long poll median " + longPoll[LATENCY_ACCEPTS / 2]
+				+ "ms max " + longPoll[LATENCY_ACCEPTS - 1]
+				+ "ms, interval polling median " + interval[LATENCY_ACCEPTS / 2]
+				+ "ms max " + interval[LATENCY_ACCEPTS - 1] + "ms");
+		long pollInterval = RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_CALLING);
+		assertTrue(longPoll[LATENCY_ACCEPTS - 1] < 100);
+		assertTrue(interval[LATENCY_ACCEPTS - 1] < pollInterval + 100);
+		assertTrue(longPoll[LATENCY_ACCEPTS / 2] < interval[LATENCY_ACCEPTS / 2]);
+	}
+
+	// the loop of RequestProcessor.RefreshThread while a call waits
+	long[] measureAcceptLatency(boolean longPoll) throws Exception {
+		int state = RefreshScheduler.STATE_CALLING;
+		assertTrue(RefreshScheduler.canUseLongPoll(state));
+		long[] latencies = new long[LATENCY_ACCEPTS];
+		for (int i = 0; i < LATENCY_ACCEPTS; ++i) {
+			long interval = RefreshScheduler.getRefreshInterval(state);
+			Thread driver = acceptLater(100 + interval * i / LATENCY_ACCEPTS,
+					i);
+			while (true) {
+				JSONObject refreshJson = new JSONObject();
+				if (longPoll) {
+					refreshJson.put("wait",
+							RequestProcessor.LONG_POLL_WAIT_TIME / 1000);
+				}
+				HttpTransportResponse response = mTransport.execute(post(
+						"/refresh", refreshJson.toString()));
+				JSONObject responseJson = JsonStreamParser
+						.parseObject(new InputStreamReader(response
+								.getContent(), "UTF-8"));
+				response.close();
+				assertEquals(longPoll, responseJson.getBoolean("long_poll"));
+				JSONArray messages = responseJson.getJSONArray("messages");
+				if (messages.length() > 0) {
+					assertEquals(i, messages.getJSONObject(0).getLong("id"));
+					synchronized (mMessageLock) {
+						latencies[i] = (System.nanoTime() - mAcceptTime) / 1000000;
+					}
+					break;
+				}
+				if (!longPoll) {
+					RefreshScheduler.waitForNextRefresh(interval);
+				}
+			}
+			driver.join();
+		}
+		return latencies;
+	}
+
+	Thread acceptLater(final long delay, final long id) {
+		Thread driver = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(delay);
+					JSONObject messageJson = new JSONObject();
+					messageJson.put("id", id);
+					messageJson.put("type", RequestManager.CALL_TAXI_RESPONSE);
+					synchronized (mMessageLock) {
+						mPendingMessages.add(messageJson);
+						mAcceptTime = System.nanoTime();
+						mMessageLock.notifyAll();
+					}
+				} catch (InterruptedException e) {
+					// the test is over
+				} catch (JSONException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		driver.start();
+		return driver;
+	}
+
+	@Test
+	public void benchmark() throws IOException {
+		String body = JsonStreamParserTest.createResponse(20).toString();
+		long[] times = new long[BENCHMARK_REQUESTS];
+		// of this thread only, the stand-in server runs on its own
+		long allocated = 0;
+		for (int i = 0; i < 2 * BENCHMARK_REQUESTS; ++i) {
+			if (i == BENCHMARK_REQUESTS) {
+				allocated = GeodesyTest.allocatedBytes();
+			}
+			long start = System.nanoTime();
+			HttpTransportResponse response = mTransport.execute(post("/echo",
+					body));
+			readAll(response.getContent());
+			response.close();
+			// the first half warms up the JIT and the connection
+			if (i >= BENCHMARK_REQUESTS) {
+				times[i - BENCHMARK_REQUESTS] = System.nanoTime() - start;
+			}
+		}
+		if (allocated >= 0) {
+			allocated = GeodesyTest.allocatedBytes() - allocated;
+		}
+		Arrays.sort(times);
+		System.out.println("HttpTransport " + mTransport.getName() + ": "
+				+ BENCHMARK_REQUESTS + " requests of " + body.length()
+				+ " bytes, median " + times[times.length / 2] / 1000
+				+ "us, p90 " + times[times.length * 9 / 10] / 1000 + "us, "
+				+ (allocated < 0 ? "?" : allocated / BENCHMARK_REQUESTS)
+				+ " bytes allocated per request");
+	}
+}
@@ -0,0 +1,174 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JsonStreamParserTest {
+	static final int BENCHMARK_TAXIS = 500;
+	static final int BENCHMARK_ROUNDS = 200;
+
+	static JSONObject parse(String str) throws IOException, JSONException {
+		return JsonStreamParser.parseObject(new StringReader(str));
+	}
+
+	// numbers compare by value, the tokener may pick a wider type
+	static void assertJsonEquals(Object expected, Object actual)
+			throws JSONException {
+		if (expected instanceof JSONObject) {
+			JSONObject expectedObject = (JSONObject) expected;
+			JSONObject actualObject = (JSONObject) actual;
+			assertEquals(expectedObject.length(), actualObject.length());
+			Iterator<?> keys = expectedObject.keys();
+			while (keys.hasNext()) {
+				String key = (String) keys.next();
+				assertJsonEquals(expectedObject.get(key), actualObject.get(key));
+			}
+		} else if (expected instanceof JSONArray) {
+			JSONArray expectedArray = (JSONArray) expected;
+			JSONArray actualArray = (JSONArray) actual;
+			assertEquals(expectedArray.length(), actualArray.length());
+			for (int i = 0; i < expectedArray.length(); ++i) {
+				assertJsonEquals(expectedArray.get(i), actualArray.get(i));
+			}
+		} else if (expected instanceof Number) {
+			assertTrue(actual instanceof Number);
+			assertEquals(((Number) expected).doubleValue(), ((Number) actual)
+					.doubleValue(), 0);
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testMatchesJSONObject() throws Exception {
+		String str = " {\"status\": 0, \"long_poll\" : true, \"id\":-12,"
+				+ "\"big\":12345678901,\"lat\":32.0603,\"exp\":-1.5e3,"
+				+ "\"none\":null,\"off\":false,\"empty\":{},\"list\":[],"
+				+ "\"nested\":{\"a\":[1,\"two\",[3],{\"b\":null}]},"
+				+ "\"text\":\"\\\"q\\\" \\\\ \\/ \\b\\f\\n\\r\\t \\u5357\\u4eac\"}\n";
+		JSONObject expected = new JSONObject(str);
+		JSONObject json = parse(str);
+		assertJsonEquals(expected, json);
+		assertEquals(0, json.getInt("status"));
+		assertEquals(true, json.getBoolean("long_poll"));
+		assertEquals(-12, json.getInt("id"));
+		assertEquals(12345678901L, json.getLong("big"));
+		assertEquals(32.0603, json.getDouble("lat"), 0);
+		assertEquals(-1500, json.getDouble("exp"), 0);
+		assertTrue(json.isNull("none"));
+		assertEquals("\"q\" \\ / \b\f\n\r\t \u5357\u4eac", json
+				.getString("text"));
+		assertEquals("two", json.getJSONObject("nested").getJSONArray("a")
+				.getString(1));
+	}
+
+	@Test
+	public void testEmptyBody() throws Exception {
+		assertNull(parse(""));
+		assertNull(parse(" \r\n"));
+	}
+
+	@Test
+	public void testSpansBuffers() throws Exception {
+		String str = createResponse(BENCHMARK_TAXIS);
+		assertTrue(str.length() > 10 * JsonStreamParser.BUFFER_SIZE);
+		// a reader that hands out a few chars at a time splits every token
+		Reader reader = new StringReader(str) {
+			@Override
+			public int read(char[] buffer, int offset, int length)
+					throws IOException {
+				return super.read(buffer, offset, Math.min(length, 7));
+			}
+		};
+		JSONObject json = JsonStreamParser.parseObject(reader);
+		assertJsonEquals(new JSONObject(str), json);
+		assertEquals(BENCHMARK_TAXIS, json.getJSONArray("taxis").length());
+	}
+
+	@Test
+	public void testSyntaxErrors() throws Exception {
+		String[] bad = { "[]", "{", "{\"a\"}", "{\"a\":1,}", "{a:1}",
+				"{\"a\":tru}", "{\"a\":\"b}", "{\"a\":[1 2]}", "{\"a\":\"\\x\"}",
+				"{\"a\":\"\\u12g4\"}", "{\"a\":1.2.3}" };
+		for (int i = 0; i < bad.length; ++i) {
+			try {
+				parse(bad[i]);
+				fail("parsed " + bad[i]);
+			} catch (JSONException e) {
+				// expected
+			}
+		}
+	}
+
+	// a nearby taxis answer, the largest response the app gets
+	static String createResponse(int taxiCount) throws JSONException {
+		JSONArray taxis = new JSONArray();
+		for (int i = 0; i < taxiCount; ++i) {
+			JSONObject taxi = new JSONObject();
+			taxi.put("latitude", 32.0603 + i * 0.0001);
+			taxi.put("longitude", 118.7969 - i * 0.0001);
+			taxi.put("car_number", "\u82cfA" + (10000 + i));
+			taxi.put("phone_number", "138" + (10000000 + i));
+			taxi.put("nickname", "driver " + i);
+			taxis.put(taxi);
+		}
+		JSONObject response = new JSONObject();
+		response.put("status", 0);
+		response.put("taxis", taxis);
+		return response.toString();
+	}
+
+	// the old way, the whole body in a String, then the tokener
+	static JSONObject parseAsString(InputStream in) throws Exception {
+		Reader reader = new InputStreamReader(in, "UTF-8");
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[JsonStreamParser.BUFFER_SIZE];
+		int count;
+		while ((count = reader.read(buffer)) != -1) {
+			builder.append(buffer, 0, count);
+		}
+		return new JSONObject(builder.toString());
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		byte[] body = createResponse(BENCHMARK_TAXIS).getBytes("UTF-8");
+		long streamTime = 0;
+		long stringTime = 0;
+		for (int round = 0; round < 2 * BENCHMARK_ROUNDS; ++round) {
+			// the first half warms up the JIT
+			boolean measure = round >= BENCHMARK_ROUNDS;
+			long start = System.nanoTime();
+			JSONObject json = JsonStreamParser.parseObject(new InputStreamReader(
+					new ByteArrayInputStream(body), "UTF-8"));
+			long middle = System.nanoTime();
+			JSONObject expected = parseAsString(new ByteArrayInputStream(body));
+			long end = System.nanoTime();
+			assertEquals(expected.getJSONArray("taxis").length(), json
+					.getJSONArray("taxis").length());
+			if (measure) {
+				streamTime += middle - start;
+				stringTime += end - middle;
+			}
+		}
+		System.out.println("JsonStreamParser: " + body.length + " bytes, "
+				+ BENCHMARK_TAXIS + " taxis, stream "
+				+ streamTime / BENCHMARK_ROUNDS / 1000 + "us, string + tokener "
+				+ stringTime / BENCHMARK_ROUNDS / 1000 + "us");
+	}
+}
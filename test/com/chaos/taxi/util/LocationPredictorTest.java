@@ -0,0 +1,216 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// Replays a passenger trace through the predictor. The server side is
+// modelled here on its own, from the fixes that were sent, so the test
+// catches the client model drifting from what the server does.
+public class LocationPredictorTest {
+	static final int START_LATITUDE_E6 = 32060300;
+	static final int START_LONGITUDE_E6 = 118796900;
+	static final long START_TIME = 1300000000000L;
+	// meters, gps noise of a phone in the open
+	static final double JITTER = 4;
+
+	@Before
+	public void setUp() {
+		// reset() logs, clear the state directly
+		synchronized (LocationPredictor.mLock) {
+			LocationPredictor.mLastSent = null;
+			LocationPredictor.mPrevSent = null;
+			LocationPredictor.mFixCount = 0;
+			LocationPredictor.mSuppressedCount = 0;
+			LocationPredictor.mMaxError = 0;
+		}
+	}
+
+	// { lat E6, lng E6, time, state } with the true position in the trace
+	static class Fix {
+		int mLatitudeE6;
+		int mLongitudeE6;
+		int mTrueLatitudeE6;
+		int mTrueLongitudeE6;
+		long mTime;
+		int mState;
+	}
+
+	// one fix a second: waiting for the taxi, walking to the curb, a ride
+	// with a turn and a red light, then standing at the destination
+	static ArrayList<Fix> createTrace(long seed) {
+		Random random = new Random(seed);
+		ArrayList<Fix> trace = new ArrayList<Fix>();
+		double north = 0;
+		double east = 0;
+		// seconds, { duration, speed m/s, heading degrees, state }
+		double[][] segments = {
+				{ 180, 0, 0, RefreshScheduler.STATE_CALLING },
+				{ 30, 1.4, 90, RefreshScheduler.STATE_CALLING },
+				{ 10, 6, 0, RefreshScheduler.STATE_HAS_TAXI },
+				{ 120, 12, 0, RefreshScheduler.STATE_HAS_TAXI },
+				{ 8, 6, 45, RefreshScheduler.STATE_HAS_TAXI },
+				{ 90, 12, 90, RefreshScheduler.STATE_HAS_TAXI },
+				{ 40, 0, 90, RefreshScheduler.STATE_HAS_TAXI },
+				{ 150, 9, 90, RefreshScheduler.STATE_HAS_TAXI },
+				{ 120, 0, 0, RefreshScheduler.STATE_IDLE } };
+		long time = START_TIME;
+		for (int i = 0; i < segments.length; ++i) {
+			double heading = Math.toRadians(segments[i][2]);
+			for (int second = 0; second < segments[i][0]; ++second) {
+				north += segments[i][1] * Math.cos(heading);
+				east += segments[i][1] * Math.sin(heading);
+				Fix fix = new Fix();
+				fix.mTrueLatitudeE6 = toLatitudeE6(north);
+				fix.mTrueLongitudeE6 = toLongitudeE6(east);
+				fix.mLatitudeE6 = toLatitudeE6(north + random.nextGaussian()
+						* JITTER);
+				fix.mLongitudeE6 = toLongitudeE6(east + random.nextGaussian()
+						* JITTER);
+				fix.mTime = time;
+				fix.mState = (int) segments[i][3];
+				trace.add(fix);
+				time += 1000;
+			}
+		}
+		return trace;
+	}
+
+	static int toLatitudeE6(double north) {
+		return START_LATITUDE_E6
+				+ (int) Math.round(Math.toDegrees(north
+						/ Geodesy.EARTH_RADIUS) * 1000000);
+	}
+
+	static int toLongitudeE6(double east) {
+		return START_LONGITUDE_E6
+				+ (int) Math.round(Math.toDegrees(east / Geodesy.EARTH_RADIUS
+						/ Math.cos(Math.toRadians(START_LATITUDE_E6 / 1e6))) * 1000000);
+	}
+
+	// what the server shows: the last fix it got moved along the velocity
+	// between the last two, for at most MAX_PREDICT_TIME
+	static int[] predictOnServer(ArrayList<long[]> received, long time) {
+		long[] last = received.get(received.size() - 1);
+		if (received.size() < 2) {
+			return new int[] { (int) last[0], (int) last[1] };
+		}
+		long[] prev = received.get(received.size() - 2);
+		long elapsed = Math.min(time - last[2],
+				LocationPredictor.MAX_PREDICT_TIME);
+		int[] predicted = new int[2];
+		for (int i = 0; i < 2; ++i) {
+			predicted[i] = (int) (last[i] + (last[i] - prev[i]) * elapsed
+					/ (last[2] - prev[2]));
+		}
+		return predicted;
+	}
+
+	@Test
+	public void testFirstFixIsSent() {
+		assertNotNull(LocationPredictor.getFixToSend(START_LATITUDE_E6,
+				START_LONGITUDE_E6, RefreshScheduler.STATE_IDLE, START_TIME));
+		assertNull(LocationPredictor.getFixToSend(START_LATITUDE_E6,
+				START_LONGITUDE_E6, RefreshScheduler.STATE_IDLE,
+				START_TIME + 1000));
+	}
+
+	@Test
+	public void testSilenceIsBroken() {
+		LocationPredictor.getFixToSend(START_LATITUDE_E6, START_LONGITUDE_E6,
+				RefreshScheduler.STATE_IDLE, START_TIME);
+		assertNull(LocationPredictor.getFixToSend(START_LATITUDE_E6,
+				START_LONGITUDE_E6, RefreshScheduler.STATE_IDLE, START_TIME
+						+ LocationPredictor.MAX_SILENCE - 1));
+		assertNotNull(LocationPredictor.getFixToSend(START_LATITUDE_E6,
+				START_LONGITUDE_E6, RefreshScheduler.STATE_IDLE, START_TIME
+						+ LocationPredictor.MAX_SILENCE));
+	}
+
+	@Test
+	public void testToleranceFollowsState() {
+		LocationPredictor.getFixToSend(START_LATITUDE_E6, START_LONGITUDE_E6,
+				RefreshScheduler.STATE_IDLE, START_TIME);
+		// 30m north
+		int latitudeE6 = toLatitudeE6(30);
+		assertNull(LocationPredictor.getFixToSend(latitudeE6,
+				START_LONGITUDE_E6, RefreshScheduler.STATE_IDLE,
+				START_TIME + 1000));
+		assertNotNull(LocationPredictor.getFixToSend(latitudeE6,
+				START_LONGITUDE_E6, RefreshScheduler.STATE_CALLING,
+				START_TIME + 2000));
+	}
+
+	@Test
+	public void testStandingStillIsHeld() {
+		LocationPredictor.getFixToSend(START_LATITUDE_E6, START_LONGITUDE_E6,
+				RefreshScheduler.STATE_CALLING, START_TIME);
+		// moving north at 20m/s
+		LocationPredictor.getFixToSend(toLatitudeE6(20), START_LONGITUDE_E6,
+				RefreshScheduler.STATE_CALLING, START_TIME + 1000);
+		// stopped 5m further on, the server is told the last position again
+		int[] sent = LocationPredictor.getFixToSend(toLatitudeE6(25),
+				START_LONGITUDE_E6, RefreshScheduler.STATE_CALLING,
+				START_TIME + 2000);
+		assertArrayEquals(new int[] { toLatitudeE6(20), START_LONGITUDE_E6 },
+				sent);
+		// and no motion is predicted from there
+		assertNull(LocationPredictor.getFixToSend(toLatitudeE6(24),
+				START_LONGITUDE_E6, RefreshScheduler.STATE_CALLING,
+				START_TIME + 30000));
+	}
+
+	@Test
+	public void testReplay() {
+		for (long seed = 1; seed <= 20; ++seed) {
+			setUp();
+			replay(createTrace(seed), seed == 1);
+		}
+	}
+
+	private void replay(ArrayList<Fix> trace, boolean report) {
+		ArrayList<long[]> received = new ArrayList<long[]>();
+		double maxError = 0;
+		double maxTrueError = 0;
+		for (int i = 0; i < trace.size(); ++i) {
+			Fix fix = trace.get(i);
+			int[] sent = LocationPredictor.getFixToSend(fix.mLatitudeE6,
+					fix.mLongitudeE6, fix.mState, fix.mTime);
+			if (sent != null) {
+				received.add(new long[] { sent[0], sent[1], fix.mTime });
+				continue;
+			}
+			int[] predicted = predictOnServer(received, fix.mTime);
+			double error = Geodesy.distance(fix.mLatitudeE6,
+					fix.mLongitudeE6, predicted[0], predicted[1]);
+			assertTrue("fix " + i + " is " + (int) error
+					+ "m from the server", error <= LocationPredictor
+					.getTolerance(fix.mState) + 0.5);
+			maxError = Math.max(maxError, error);
+			maxTrueError = Math.max(maxTrueError, Geodesy.distance(
+					fix.mTrueLatitudeE6, fix.mTrueLongitudeE6, predicted[0],
+					predicted[1]));
+		}
+		long suppressed = LocationPredictor.getSuppressedCount();
+		assertEquals(trace.size(), suppressed + received.size());
+		// the predictor agrees with the server on the suppressed fixes
+		assertEquals(maxError, LocationPredictor.getMaxError(), 0.5);
+		// the waits and the straight legs are most of the trace
+		assertTrue("suppressed " + suppressed, suppressed > trace.size() / 2);
+		if (report) {
+			System.out.println("LocationPredictor: " + trace.size()
+					+ " fixes, sent " + received.size() + ", suppressed "
+					+ suppressed + " (" + suppressed * 100 / trace.size()
+					+ "%), max error " + (int) maxError + "m, "
+					+ (int) maxTrueError + "m from the true position");
+		}
+	}
+}
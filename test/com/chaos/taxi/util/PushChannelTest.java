@@ -0,0 +1,308 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushChannelTest {
+	// a reconnect waits MIN_RECONNECT_DELAY first
+	static final long WAIT_TIME = 5000;
+
+	StandInServer mServer = null;
+	HttpTransport mOldTransport = null;
+	LinkedBlockingQueue<JSONObject> mMessages = new LinkedBlockingQueue<JSONObject>();
+
+	// dedupes like RequestProcessor.handleRefreshMessageJson, which the
+	// refresh response and the channel both hand their messages to
+	PushChannel.MessageListener mListener = new PushChannel.MessageListener() {
+		public void onMessage(JSONObject messageJson) {
+			if (PushChannel.markMessageSeen(messageJson)) {
+				mMessages.add(messageJson);
+			}
+		}
+	};
+
+	// the push service of the server: newline separated json frames, a
+	// hello answered with status 0, acks and pings read back
+	static class StandInServer extends Thread {
+		ServerSocket mServerSocket;
+		LinkedBlockingQueue<JSONObject> mHellos = new LinkedBlockingQueue<JSONObject>();
+		LinkedBlockingQueue<JSONObject> mControlFrames = new LinkedBlockingQueue<JSONObject>();
+		Socket mClient = null;
+		OutputStream mOutputStream = null;
+
+		StandInServer() throws IOException {
+			super("PushStandIn");
+			mServerSocket = new ServerSocket(0, 1, InetAddress
+					.getByName("127.0.0.1"));
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return mServerSocket.getLocalPort();
+		}
+
+		public void run() {
+			while (!mServerSocket.isClosed()) {
+				Socket client = null;
+				try {
+					client = mServerSocket.accept();
+					client.setTcpNoDelay(true);
+					serve(client);
+				} catch (IOException e) {
+					// closed by the client, drop() or close()
+				} catch (JSONException e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (this) {
+						mClient = null;
+						mOutputStream = null;
+					}
+					if (client != null) {
+						try {
+							client.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}
+		}
+
+		private void serve(Socket client) throws IOException, JSONException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					client.getInputStream(), "UTF-8"));
+			String line = reader.readLine();
+			if (line == null) {
+				return;
+			}
+			JSONObject helloJson = new JSONObject(line);
+			synchronized (this) {
+				mClient = client;
+				mOutputStream = client.getOutputStream();
+			}
+			send(new JSONObject().put("type", PushChannel.HELLO).put(
+					"status", 0));
+			mHellos.add(helloJson);
+			while ((line = reader.readLine()) != null) {
+				JSONObject frameJson = new JSONObject(line);
+				if (PushChannel.PING.equals(frameJson.optString("type"))) {
+					send(new JSONObject().put("type", PushChannel.PONG));
+				}
+				mControlFrames.add(frameJson);
+			}
+		}
+
+		synchronized void send(JSONObject frameJson) throws IOException {
+			if (mOutputStream == null) {
+				throw new IOException("no client");
+			}
+			mOutputStream.write((frameJson.toString() + "\n")
+					.getBytes("UTF-8"));
+			mOutputStream.flush();
+		}
+
+		synchronized void drop() throws IOException {
+			if (mClient != null) {
+				mClient.close();
+			}
+		}
+
+		void close() throws IOException {
+			mServerSocket.close();
+			drop();
+		}
+
+		JSONObject awaitHello() throws InterruptedException {
+			JSONObject helloJson = mHellos.poll(WAIT_TIME,
+					TimeUnit.MILLISECONDS);
+			assertNotNull("no hello", helloJson);
+			return helloJson;
+		}
+
+		JSONObject awaitControlFrame() throws InterruptedException {
+			JSONObject frameJson = mControlFrames.poll(WAIT_TIME,
+					TimeUnit.MILLISECONDS);
+			assertNotNull("no control frame", frameJson);
+			return frameJson;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		// keep RequestProcessor and its http client out of the hello
+		synchronized (HttpConnectionManager.mLock) {
+			mOldTransport = HttpConnectionManager.mTransport;
+			HttpConnectionManager.mTransport = new UrlConnectionHttpTransport();
+		}
+		PushChannel.resetSession();
+		mServer = new StandInServer();
+		mServer.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		PushChannel.stop();
+		mServer.close();
+		PushChannel.resetSession();
+		synchronized (HttpConnectionManager.mLock) {
+			HttpConnectionManager.mTransport = mOldTransport;
+		}
+	}
+
+	@Test
+	public void testMessagesReachListenerAndAreAcked() throws Exception {
+		connect(0);
+		mServer.send(message(1, RequestManager.CALL_TAXI_RESPONSE));
+		mServer.send(message(2, RequestManager.LOCATION_UPDATE_REQUEST));
+
+		JSONObject messageJson = awaitMessage();
+		assertEquals(1, messageJson.getLong("id"));
+		assertEquals(RequestManager.CALL_TAXI_RESPONSE,
+				messageJson.getString("type"));
+		assertEquals(2, awaitMessage().getLong("id"));
+		assertAck(1);
+		assertAck(2);
+		assertEquals(2, PushChannel.getLastMessageId());
+	}
+
+	@Test
+	public void testReconnectResumesAfterLastId() throws Exception {
+		connect(0);
+		for (long id = 1; id <= 3; ++id) {
+			mServer.send(message(id, RequestManager.LOCATION_UPDATE_REQUEST));
+			assertEquals(id, awaitMessage().getLong("id"));
+			assertAck(id);
+		}
+
+		mServer.drop();
+		JSONObject helloJson = mServer.awaitHello();
+		assertEquals(3, helloJson.getLong("last_id"));
+		waitConnected();
+		// the ack of 3 may have been lost with the connection, so the
+		// server sends it again
+		mServer.send(message(3, RequestManager.LOCATION_UPDATE_REQUEST));
+		mServer.send(message(4, RequestManager.LOCATION_UPDATE_REQUEST));
+		assertEquals(4, awaitMessage().getLong("id"));
+		assertAck(3);
+		assertAck(4);
+		assertNull(mMessages.poll());
+	}
+
+	@Test
+	public void testChannelAndRefreshDeliverOnce() throws Exception {
+		connect(0);
+		// came with a refresh response before the channel had it
+		mListener.onMessage(message(5, RequestManager.LOCATION_UPDATE_REQUEST));
+		assertEquals(5, mMessages.take().getLong("id"));
+
+		mServer.send(message(5, RequestManager.LOCATION_UPDATE_REQUEST));
+		mServer.send(message(7, RequestManager.LOCATION_UPDATE_REQUEST));
+		// below the highest id, but never seen
+		mServer.send(message(6, RequestManager.CALL_TAXI_COMPLETE));
+		assertEquals(7, awaitMessage().getLong("id"));
+		assertEquals(6, awaitMessage().getLong("id"));
+		assertAck(5);
+		assertAck(7);
+		assertAck(6);
+		assertNull(mMessages.poll());
+
+		// and the refresh does not hand them out again
+		mListener.onMessage(message(6, RequestManager.CALL_TAXI_COMPLETE));
+		assertNull(mMessages.poll());
+	}
+
+	@Test
+	public void testHeartbeatIsAnswered() throws Exception {
+		connect(0);
+		mServer.send(new JSONObject().put("type", PushChannel.PING));
+		assertEquals(PushChannel.PONG, mServer.awaitControlFrame().getString(
+				"type"));
+		assertTrue(PushChannel.isConnected());
+	}
+
+	@Test
+	public void testLoginSessionStartsOver() throws Exception {
+		connect(0);
+		mServer.send(message(10, RequestManager.LOCATION_UPDATE_REQUEST));
+		assertEquals(10, awaitMessage().getLong("id"));
+		PushChannel.stop();
+
+		// a new session numbers its messages from the start
+		PushChannel.resetSession();
+		connect(0);
+		mServer.send(message(1, RequestManager.LOCATION_UPDATE_REQUEST));
+		mServer.send(message(10, RequestManager.LOCATION_UPDATE_REQUEST));
+		assertEquals(1, awaitMessage().getLong("id"));
+		assertEquals(10, awaitMessage().getLong("id"));
+	}
+
+	@Test
+	public void testSeenIdsAreBounded() throws Exception {
+		for (long id = 1; id <= PushChannel.SEEN_MESSAGE_IDS * 2; ++id) {
+			assertTrue(PushChannel.markMessageSeen(message(id, null)));
+		}
+		assertEquals(PushChannel.SEEN_MESSAGE_IDS,
+				PushChannel.mSeenMessageIds.size());
+		assertFalse(PushChannel.markMessageSeen(message(
+				PushChannel.SEEN_MESSAGE_IDS * 2, null)));
+		// messages without an id are never dropped
+		assertTrue(PushChannel.markMessageSeen(new JSONObject()));
+		assertTrue(PushChannel.markMessageSeen(new JSONObject()));
+	}
+
+	private void connect(long lastId) throws Exception {
+		PushChannel.start("127.0.0.1", mServer.getPort(), mListener);
+		JSONObject helloJson = mServer.awaitHello();
+		assertEquals(lastId, helloJson.getLong("last_id"));
+		waitConnected();
+	}
+
+	private void waitConnected() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_TIME;
+		while (!PushChannel.isConnected()) {
+			assertTrue("not connected", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private JSONObject awaitMessage() throws InterruptedException {
+		JSONObject messageJson = mMessages.poll(WAIT_TIME,
+				TimeUnit.MILLISECONDS);
+		assertNotNull("no message", messageJson);
+		return messageJson;
+	}
+
+	private void assertAck(long id) throws Exception {
+		JSONObject frameJson = mServer.awaitControlFrame();
+		assertEquals(PushChannel.ACK, frameJson.getString("type"));
+		assertEquals(id, frameJson.getLong("id"));
+	}
+
+	private static JSONObject message(long id, String type)
+			throws JSONException {
+		JSONObject messageJson = new JSONObject();
+		messageJson.put("id", id);
+		if (type != null) {
+			messageJson.put("type", type);
+		}
+		return messageJson;
+	}
+}
@@ -0,0 +1,109 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// getState() asks RequestProcessor, so the tests drive the state directly.
+public class RefreshSchedulerTest {
+	@Before
+	public void setUp() {
+		synchronized (RefreshScheduler.mLock) {
+			RefreshScheduler.mArrivalRate = 0;
+			RefreshScheduler.mLastState = RefreshScheduler.STATE_IDLE;
+			RefreshScheduler.mStateChanged = false;
+		}
+	}
+
+	@Test
+	public void testCanUseLongPoll() {
+		assertFalse(RefreshScheduler
+				.canUseLongPoll(RefreshScheduler.STATE_IDLE));
+		assertTrue(RefreshScheduler
+				.canUseLongPoll(RefreshScheduler.STATE_CALLING));
+		assertTrue(RefreshScheduler
+				.canUseLongPoll(RefreshScheduler.STATE_HAS_TAXI));
+	}
+
+	@Test
+	public void testRefreshInterval() {
+		assertEquals(RefreshScheduler.IDLE_INTERVAL, RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_IDLE));
+		assertEquals(RefreshScheduler.CALLING_INTERVAL, RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_CALLING));
+		assertEquals(RefreshScheduler.HAS_TAXI_INTERVAL, RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_HAS_TAXI));
+	}
+
+	@Test
+	public void testArrivalRateShortensInterval() {
+		// one message per refresh converges to a third of the interval
+		for (int i = 0; i < 50; ++i) {
+			RefreshScheduler.onRefreshed(1);
+		}
+		assertEquals(RefreshScheduler.IDLE_INTERVAL / 3, RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_IDLE), 1);
+		// never below MIN_INTERVAL
+		assertEquals(RefreshScheduler.MIN_INTERVAL, RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_CALLING));
+		// and back as the messages stop
+		for (int i = 0; i < 50; ++i) {
+			RefreshScheduler.onRefreshed(0);
+		}
+		assertEquals(RefreshScheduler.HAS_TAXI_INTERVAL, RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_HAS_TAXI), 1);
+	}
+
+	@Test
+	public void testWaitTimesOut() {
+		long start = System.currentTimeMillis();
+		RefreshScheduler.waitForNextRefresh(100);
+		assertTrue(System.currentTimeMillis() - start >= 90);
+	}
+
+	// a state change, say the call was accepted, must not wait out an
+	// idle interval before the next refresh
+	@Test
+	public void testStateChangeWakesWait() throws InterruptedException {
+		final long[] waited = new long[1];
+		Thread refresher = new Thread() {
+			public void run() {
+				long start = System.nanoTime();
+				RefreshScheduler.waitForNextRefresh(RefreshScheduler
+						.getRefreshInterval(RefreshScheduler.STATE_IDLE));
+				waited[0] = System.nanoTime() - start;
+			}
+		};
+		refresher.start();
+		Thread.sleep(100);
+		long start = System.nanoTime();
+		RefreshScheduler.notifyStateChanged();
+		refresher.join(5000);
+		long latency = (System.nanoTime() - start) / 1000;
+		assertFalse(refresher.isAlive());
+		assertTrue(waited[0] / 1000000 < RefreshScheduler.IDLE_INTERVAL);
+		System.out.println("RefreshScheduler: woken after "
+				+ waited[0] / 1000000 + "ms of a "
+				+ RefreshScheduler.IDLE_INTERVAL + "ms wait, latency "
+				+ latency + "us");
+	}
+
+	// the change came while the refresh thread was still busy with the
+	// last refresh, the wait that follows must not sleep through it
+	@Test
+	public void testStateChangeBeforeWaitIsNotLost() {
+		RefreshScheduler.notifyStateChanged();
+		long start = System.currentTimeMillis();
+		RefreshScheduler.waitForNextRefresh(RefreshScheduler
+				.getRefreshInterval(RefreshScheduler.STATE_IDLE));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		// and only one wait is cut short by it
+		start = System.currentTimeMillis();
+		RefreshScheduler.waitForNextRefresh(100);
+		assertTrue(System.currentTimeMillis() - start >= 90);
+	}
+}
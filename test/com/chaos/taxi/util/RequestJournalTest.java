@@ -0,0 +1,199 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chaos.taxi.util.RequestManager.Request;
+
+// The process is "killed" by dropping everything the journal holds in
+// memory and reopening it on the file the dead process left behind.
+public class RequestJournalTest {
+	File mDir = null;
+
+	@Before
+	public void setUp() throws Exception {
+		mDir = File.createTempFile("journal", "");
+		mDir.delete();
+		mDir.mkdirs();
+		kill();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		RequestJournal.close();
+		kill();
+		File[] files = mDir.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i) {
+			files[i].delete();
+		}
+		mDir.delete();
+	}
+
+	@Test
+	public void testReplayAfterKill() throws Exception {
+		RequestJournal.open(mDir);
+		Request first = queueComment(1, "first");
+		Request second = queueComment(2, "second");
+		Request third = queueComment(3, "third");
+		// a refresh is not durable, it must not come back
+		RequestManager.addRequest(new Request(RequestManager.REFRESH_REQUEST,
+				null));
+		RequestJournal.ack(second);
+		restart();
+
+		ArrayList<Request> replayed = popComments();
+		assertEquals(2, replayed.size());
+		assertEquals(first.mJournalId, replayed.get(0).mJournalId);
+		assertEquals(third.mJournalId, replayed.get(1).mJournalId);
+		assertEquals(first.mRequestTime, replayed.get(0).mRequestTime);
+		JsonStreamParserTest.assertJsonEquals(first.mRequestJson,
+				replayed.get(0).mRequestJson);
+		JsonStreamParserTest.assertJsonEquals(third.mRequestJson,
+				replayed.get(1).mRequestJson);
+		assertEquals(0, RequestManager.popRequests(
+				RequestDispatcher.LANE_REALTIME).size());
+	}
+
+	@Test
+	public void testAckOfReplayedRequestSticks() throws Exception {
+		RequestJournal.open(mDir);
+		queueComment(1, "first");
+		queueComment(2, "second");
+		restart();
+
+		ArrayList<Request> replayed = popComments();
+		assertEquals(2, replayed.size());
+		RequestJournal.ack(replayed.get(0));
+		Request fresh = queueComment(3, "third");
+		restart();
+
+		replayed = popComments();
+		assertEquals(2, replayed.size());
+		assertEquals("second", replayed.get(0).mRequestJson
+				.getString("comment"));
+		assertEquals(fresh.mJournalId, replayed.get(1).mJournalId);
+		// replayed ids are not handed out again
+		assertTrue(fresh.mJournalId > replayed.get(0).mJournalId);
+	}
+
+	@Test
+	public void testKillInsideRecordIsIgnored() throws Exception {
+		RequestJournal.open(mDir);
+		queueComment(1, "first");
+		RequestJournal.close();
+
+		// the dead process got the op, id and payload out, not the length
+		File file = new File(mDir, RequestJournal.JOURNAL_FILE);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int end = findEnd(raf);
+			raf.seek(end + 4);
+			raf.write(RequestJournal.OP_ENQUEUE);
+			raf.writeLong(Long.MAX_VALUE);
+			raf.write("{\"type\":\"push-history-evaluation\"".getBytes("UTF-8"));
+		} finally {
+			raf.close();
+		}
+		kill();
+		RequestJournal.open(mDir);
+		RequestJournal.close();
+
+		ArrayList<Request> replayed = popComments();
+		assertEquals(1, replayed.size());
+		assertEquals("first", replayed.get(0).mRequestJson
+				.getString("comment"));
+	}
+
+	@Test
+	public void testOldRequestIsNotReplayed() throws Exception {
+		RequestJournal.open(mDir);
+		Request request = RequestManager.generateSubmitCommentRequest(1,
+				"stale", 4);
+		request.mRequestTime -= RequestJournal.MAX_AGE + 1000;
+		RequestManager.addRequest(request);
+		queueComment(2, "fresh");
+		restart();
+
+		ArrayList<Request> replayed = popComments();
+		assertEquals(1, replayed.size());
+		assertEquals("fresh", replayed.get(0).mRequestJson
+				.getString("comment"));
+	}
+
+	@Test
+	public void testCompactionKeepsLiveRecords() throws Exception {
+		RequestJournal.open(mDir);
+		Request kept = queueComment(0, "kept");
+		// several times the file size goes through, all but one acked
+		StringBuilder comment = new StringBuilder();
+		while (comment.length() < 1000) {
+			comment.append("comment ");
+		}
+		for (int i = 1; i < 1000; ++i) {
+			RequestJournal.ack(queueComment(i, comment.toString()));
+		}
+		restart();
+
+		ArrayList<Request> replayed = popComments();
+		assertEquals(1, replayed.size());
+		assertEquals(kept.mJournalId, replayed.get(0).mJournalId);
+	}
+
+	private Request queueComment(long id, String comment) {
+		Request request = RequestManager.generateSubmitCommentRequest(id,
+				comment, 4.5);
+		RequestManager.addRequest(request);
+		assertTrue(request.mJournalId >= 0);
+		return request;
+	}
+
+	// close only writes what was already queued to the mapping, as the
+	// writer would have before the kill, then the memory is thrown away.
+	// The journal is left open, as the app runs after the replay.
+	private void restart() {
+		RequestJournal.close();
+		kill();
+		RequestJournal.open(mDir);
+		// the writer replays before it looks at the stop flag, the second
+		// open does not replay again
+		RequestJournal.close();
+		RequestJournal.open(mDir);
+	}
+
+	private static void kill() {
+		synchronized (RequestJournal.mLock) {
+			RequestJournal.mReplayed = false;
+			RequestJournal.mPendingOps.clear();
+		}
+		RequestJournal.mLiveRecords.clear();
+		for (int lane = 0; lane < RequestDispatcher.LANE_COUNT; ++lane) {
+			RequestManager.popRequests(lane);
+		}
+	}
+
+	private static ArrayList<Request> popComments() {
+		return RequestManager.popRequests(RequestDispatcher
+				.getLane(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST));
+	}
+
+	private static int findEnd(RandomAccessFile raf) throws IOException {
+		int position = 0;
+		while (true) {
+			raf.seek(position);
+			int length = raf.readInt();
+			if (length < RequestJournal.RECORD_HEADER_SIZE) {
+				return position;
+			}
+			position += length;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.chaos.taxi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.chaos.taxi.util.RequestManager.Request;
+
+public class RequestQueueTest {
+	static final int BURST_FIXES = 1000;
+	static final int BURST_ROUNDS = 200;
+
+	static Request request(String requestType, long key) throws Exception {
+		JSONObject json = new JSONObject();
+		if (key >= 0) {
+			json.put("key", key);
+		}
+		return new Request(requestType, json);
+	}
+
+	static Request locationUpdate(int i) throws Exception {
+		JSONObject json = new JSONObject();
+		json.put("latitude", 32.0603 + i * 0.00001);
+		json.put("longitude", 118.7969);
+		return new Request(RequestManager.LOCATION_UPDATE_REQUEST, json);
+	}
+
+	@Test
+	public void testFifo() throws Exception {
+		RequestQueue queue = new RequestQueue();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		Request first = request(RequestManager.PUSH_GPSCODER_REQUEST, -1);
+		Request second = request(RequestManager.PUSH_GPSCODER_REQUEST, -1);
+		Request third = request(RequestManager.SIGNOUT_REQUEST, -1);
+		assertNull(queue.add(first));
+		assertNull(queue.add(second));
+		assertNull(queue.add(third));
+		assertEquals(3, queue.size());
+		assertSame(first, queue.poll());
+		assertSame(second, queue.poll());
+		assertSame(third, queue.poll());
+		assertTrue(queue.isEmpty());
+		assertFalse(queue.hasType(RequestManager.PUSH_GPSCODER_REQUEST));
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		RequestQueue queue = new RequestQueue();
+		Request first = locationUpdate(0);
+		Request other = request(RequestManager.PUSH_GPSCODER_REQUEST, -1);
+		Request latest = locationUpdate(1);
+		queue.add(first);
+		queue.add(other);
+		// the latest fix takes the slot of the first
+		assertSame(first, queue.add(latest));
+		assertEquals(2, queue.size());
+		assertSame(latest, queue.poll());
+		assertSame(other, queue.poll());
+
+		// not coalesced, every evaluation goes up
+		queue.add(request(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST, 1));
+		assertNull(queue.add(request(
+				RequestManager.PUSH_HISTORY_EVALUATION_REQUEST, 2)));
+		assertEquals(2, queue.size());
+	}
+
+	@Test
+	public void testCoalescedCallKeepsKeyIndex() throws Exception {
+		RequestQueue queue = new RequestQueue();
+		Request first = request(RequestManager.CALL_TAXI_REQUEST, 1);
+		Request second = request(RequestManager.CALL_TAXI_REQUEST, 2);
+		queue.add(first);
+		assertSame(first, queue.add(second));
+		// the replaced call is gone from the key index too
+		assertNull(queue.removeByKey(RequestManager.CALL_TAXI_REQUEST, 1));
+		assertSame(second, queue.removeByKey(RequestManager.CALL_TAXI_REQUEST,
+				2));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testRemoveByType() throws Exception {
+		RequestQueue queue = new RequestQueue();
+		Request keep = request(RequestManager.SIGNOUT_REQUEST, -1);
+		queue.add(request(RequestManager.PUSH_GPSCODER_REQUEST, -1));
+		queue.add(keep);
+		queue.add(request(RequestManager.PUSH_GPSCODER_REQUEST, -1));
+		ArrayList<Request> removed = new ArrayList<Request>();
+		queue.removeByType(RequestManager.PUSH_GPSCODER_REQUEST, removed);
+		assertEquals(2, removed.size());
+		assertEquals(1, queue.size());
+		assertFalse(queue.hasType(RequestManager.PUSH_GPSCODER_REQUEST));
+		queue.removeByType(RequestManager.FIND_TAXI_REQUEST, removed);
+		assertEquals(2, removed.size());
+		assertSame(keep, queue.poll());
+	}
+
+	@Test
+	public void testRemoveByKey() throws Exception {
+		RequestQueue queue = new RequestQueue();
+		Request one = request(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST,
+				1);
+		Request two = request(RequestManager.PUSH_HISTORY_EVALUATION_REQUEST,
+				2);
+		queue.add(one);
+		queue.add(two);
+		assertNull(queue.removeByKey(RequestManager.CANCEL_CALL_TAXI_REQUEST,
+				1));
+		assertSame(one, queue.removeByKey(
+				RequestManager.PUSH_HISTORY_EVALUATION_REQUEST, 1));
+		assertNull(queue.removeByKey(
+				RequestManager.PUSH_HISTORY_EVALUATION_REQUEST, 1));
+		ArrayList<Request> requests = new ArrayList<Request>();
+		queue.drainTo(requests);
+		assertEquals(1, requests.size());
+		assertSame(two, requests.get(0));
+	}
+
+	// a GPS burst while the network is down: without coalescing every fix
+	// would wait in the queue and go up once it is back
+	@Test
+	public void benchmarkGpsBurst() throws Exception {
+		Request[] fixes = new Request[BURST_FIXES];
+		for (int i = 0; i < fixes.length; ++i) {
+			fixes[i] = locationUpdate(i);
+		}
+		long time = 0;
+		int sent = 0;
+		for (int round = 0; round < 2 * BURST_ROUNDS; ++round) {
+			RequestQueue queue = new RequestQueue();
+			queue.add(request(RequestManager.REFRESH_REQUEST, -1));
+			queue.add(request(RequestManager.CALL_TAXI_REQUEST, 1));
+			long start = System.nanoTime();
+			for (int i = 0; i < fixes.length; ++i) {
+				queue.add(fixes[i]);
+			}
+			ArrayList<Request> requests = new ArrayList<Request>();
+			queue.drainTo(requests);
+			if (round >= BURST_ROUNDS) {
+				time += System.nanoTime() - start;
+			}
+			sent = requests.size();
+			assertSame(fixes[fixes.length - 1], requests.get(2));
+		}
+		assertEquals(3, sent);
+		System.out.println("RequestQueue: " + BURST_FIXES
+				+ " fixes coalesced into " + (sent - 2) + " request, "
+				+ time / BURST_ROUNDS / BURST_FIXES + "ns per add");
+	}
+}
@@ -0,0 +1,14 @@
+package com.chaos.taxi.util;
+
+public class UrlConnectionHttpTransportTest extends HttpTransportTestCase {
+	HttpTransport createTransport() {
+		return new UrlConnectionHttpTransport();
+	}
+
+	// on the desktop JDK the body stream holds its lock while it blocks in
+	// read, so disconnect waits for the server; the read still fails
+	@Override
+	boolean canAbortBlockedRead() {
+		return false;
+	}
+}
@@ -0,0 +1,121 @@
+package com.chaos.taxi.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import com.chaos.taxi.util.Geodesy;
+import com.chaos.taxi.util.OfflineGeocoder;
+
+// Compiles an address list into the index file of OfflineGeocoder. Runs on
+// the desktop, not in the app; the output goes to the assets of the app:
+//   java com.chaos.taxi.tools.OfflineGeocoderBuilder addresses.csv assets/geocode_index
+// Each input line is "latitude,longitude,name"; the name may hold commas.
+// Points outside the bounds of isGpsLocationInJiangsu are skipped.
+public class OfflineGeocoderBuilder {
+	static final double MIN_LATITUDE = 30.75784060;
+	static final double MAX_LATITUDE = 35.12451360;
+	static final double MIN_LONGITUDE = 116.36196040;
+	static final double MAX_LONGITUDE = 121.93211430;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: OfflineGeocoderBuilder <addresses.csv> "
+					+ "<" + OfflineGeocoder.INDEX_FILE + ">");
+			System.exit(1);
+		}
+
+		// { key, lat E6, lng E6, name offset }
+		ArrayList<long[]> records = new ArrayList<long[]>();
+		// same names are stored once
+		HashMap<String, Integer> nameOffsets = new HashMap<String, Integer>();
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		DataOutputStream namesOut = new DataOutputStream(names);
+		int skipped = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(args[0]), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",", 3);
+				if (fields.length != 3 || fields[2].trim().length() == 0) {
+					++skipped;
+					continue;
+				}
+				double latitude;
+				double longitude;
+				try {
+					latitude = Double.parseDouble(fields[0].trim());
+					longitude = Double.parseDouble(fields[1].trim());
+				} catch (NumberFormatException e) {
+					++skipped;
+					continue;
+				}
+				if (latitude <= MIN_LATITUDE || latitude >= MAX_LATITUDE
+						|| longitude <= MIN_LONGITUDE
+						|| longitude >= MAX_LONGITUDE) {
+					++skipped;
+					continue;
+				}
+				String name = fields[2].trim();
+				byte[] bytes = name.getBytes("UTF-8");
+				if (bytes.length > 0xffff) {
+					++skipped;
+					continue;
+				}
+				Integer nameOffset = nameOffsets.get(name);
+				if (nameOffset == null) {
+					nameOffset = namesOut.size();
+					namesOut.writeShort(bytes.length);
+					namesOut.write(bytes);
+					nameOffsets.put(name, nameOffset);
+				}
+				int latitudeE6 = Geodesy.toE6(latitude);
+				int longitudeE6 = Geodesy.toE6(longitude);
+				records.add(new long[] {
+						OfflineGeocoder.getKey(latitudeE6, longitudeE6),
+						latitudeE6, longitudeE6, nameOffset });
+			}
+		} finally {
+			reader.close();
+		}
+
+		long[][] sorted = records.toArray(new long[records.size()][]);
+		Arrays.sort(sorted, new Comparator<long[]>() {
+			public int compare(long[] record, long[] other) {
+				return record[0] < other[0] ? -1 : (record[0] == other[0] ? 0
+						: 1);
+			}
+		});
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(args[1])));
+		try {
+			out.writeInt(OfflineGeocoder.MAGIC);
+			out.writeInt(OfflineGeocoder.VERSION);
+			out.writeInt(sorted.length);
+			for (int i = 0; i < sorted.length; ++i) {
+				out.writeLong(sorted[i][0]);
+				out.writeInt((int) sorted[i][1]);
+				out.writeInt((int) sorted[i][2]);
+				out.writeInt((int) sorted[i][3]);
+			}
+			names.writeTo(out);
+		} finally {
+			out.close();
+		}
+		System.out.println("wrote " + sorted.length + " addresses, "
+				+ nameOffsets.size() + " names, skipped " + skipped
+				+ " lines");
+	}
+}